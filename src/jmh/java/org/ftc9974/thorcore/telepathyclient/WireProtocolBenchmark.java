@@ -0,0 +1,228 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode cost of the Telepathy wire format. Every benchmark reports one operation per message, so
+ * throughput reads as messages/s; run with -prof gc (the default for the jmh task) to get the
+ * allocation rate per message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireProtocolBenchmark {
+
+    private static final int MESSAGES = 1000;
+    // distinct packets the single message benchmarks cycle through, a power of two
+    private static final int CORPUS = 64;
+
+    // DOUBLE: numeric telemetry only, STRING: state names and log lines only, MIXED: 3 DOUBLE to 1 STRING
+    @Param({"DOUBLE", "STRING", "MIXED"})
+    public String mix;
+
+    @Param({"8", "48"})
+    public int keyLength;
+
+    // percentage of messages followed by a burst of garbage or cut short by the next message
+    @Param({"0", "10"})
+    public int corruption;
+
+    private byte[] stream;
+    private byte[] streamV2;
+    private List<List<Byte>> boxedPackets;
+    private ByteBuffer[] frames;
+    private int next;
+    private ChannelRegistry channels;
+    private FrameDecoder decoder;
+    private FrameDecoderV2 decoderV2;
+    private Blackhole blackhole;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        Random random = new Random(9974);
+        String[] keys = new String[32];
+        for (int i = 0; i < keys.length; i++) {
+            StringBuilder key = new StringBuilder("robot/subsystem" + i + "/");
+            while (key.length() < keyLength) {
+                key.append((char) ('a' + random.nextInt(26)));
+            }
+            keys[i] = key.substring(0, keyLength);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(MESSAGES * (keyLength + 64 + 32));
+        ByteBuffer bufferV2 = ByteBuffer.allocate(MESSAGES * (keyLength + 64 + 32));
+        ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(256);
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] packet = packet(keys[random.nextInt(keys.length)], stringMessage(i), random);
+            // the same message as a v2 frame
+            byte[] key = new byte[keyLength];
+            System.arraycopy(packet, 1, key, 0, keyLength);
+            writer.message(key, TelepathyAPI.Type.forByte(packet[1 + keyLength]),
+                    Arrays.copyOfRange(packet, 1 + keyLength + 5, packet.length));
+            byte[] frame = writer.toByteArray();
+            if (random.nextInt(100) < corruption) {
+                byte[] garbage = new byte[1 + random.nextInt(16)];
+                random.nextBytes(garbage);
+                if (random.nextBoolean()) {
+                    // interleaved: the packet is cut short by the next one
+                    buffer.put(packet, 0, 1 + random.nextInt(packet.length - 1));
+                    bufferV2.put(frame, 0, 1 + random.nextInt(frame.length - 1));
+                } else {
+                    buffer.put(packet).put(garbage);
+                    bufferV2.put(frame).put(garbage);
+                }
+            } else {
+                buffer.put(packet);
+                bufferV2.put(frame);
+            }
+        }
+        stream = new byte[buffer.position()];
+        buffer.flip().get(stream);
+        streamV2 = new byte[bufferV2.position()];
+        bufferV2.flip().get(streamV2);
+
+        // in the same mix as the stream, so MIXED doesn't measure one message type only
+        boxedPackets = new ArrayList<>();
+        frames = new ByteBuffer[CORPUS];
+        for (int i = 0; i < CORPUS; i++) {
+            byte[] packet = packet(keys[random.nextInt(keys.length)], stringMessage(i), random);
+            List<Byte> boxedPacket = new ArrayList<>();
+            for (byte b : packet) {
+                boxedPacket.add(b);
+            }
+            boxedPackets.add(boxedPacket);
+            frames[i] = ByteBuffer.wrap(packet, 1, packet.length - 1).slice();
+        }
+
+        channels = new ChannelRegistry();
+        decoder = new FrameDecoder(this::onFrame);
+        decoderV2 = new FrameDecoderV2(this::onFrameV2);
+        chunk = new byte[4096];
+    }
+
+    private boolean stringMessage(int index) {
+        return "STRING".equals(mix) || ("MIXED".equals(mix) && index % 4 == 0);
+    }
+
+    private static byte[] packet(String key, boolean string, Random random) {
+        byte[] value = string
+                ? ("state " + Integer.toHexString(random.nextInt())).getBytes()
+                : ByteBuffer.allocate(8).putDouble(random.nextGaussian()).array();
+        return ByteBuffer.allocate(1 + key.length() + 5 + value.length)
+                .put((byte) 0)
+                .put(key.getBytes())
+                .put(string ? TelepathyAPI.Type.STRING.typeKey : TelepathyAPI.Type.DOUBLE.typeKey)
+                .putInt(value.length)
+                .put(value)
+                .array();
+    }
+
+    // same handling as TelepathyAPI.onFrame, corrupted frames can declare too short a value
+    private void onFrame(ByteBuffer frame) {
+        TelepathyAPI.Message<?> message;
+        try {
+            message = TelepathyAPI.deserializeMessage(frame, false, channels);
+        } catch (IndexOutOfBoundsException e) {
+            return;
+        }
+        message.receivedNanos = System.nanoTime();
+        blackhole.consume(message);
+    }
+
+    private void onFrameV2(byte type, ByteBuffer payload) {
+        TelepathyAPI.Message<?> message = TelepathyAPI.deserializeMessageV2(payload, false, channels);
+        message.receivedNanos = System.nanoTime();
+        blackhole.consume(message);
+    }
+
+    // the next packet of the corpus
+    private int next() {
+        next = (next + 1) & (CORPUS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public boolean validatePacket() {
+        return TelepathyAPI.validatePacket(boxedPackets.get(next()));
+    }
+
+    @Benchmark
+    public TelepathyAPI.Message<?> deserializeMessage() {
+        ByteBuffer frame = frames[next()];
+        frame.position(0);
+        return TelepathyAPI.deserializeMessage(frame, false, channels);
+    }
+
+    @Benchmark
+    public TelepathyAPI.Message<?> deserializeMessageWithRaw() {
+        ByteBuffer frame = frames[next()];
+        frame.position(0);
+        return TelepathyAPI.deserializeMessage(frame, true, channels);
+    }
+
+    // the whole stream through FrameDecoder in one call
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decodeStream() {
+        decoder.reset();
+        decoder.feed(stream, 0, stream.length);
+    }
+
+    // the same stream read in socket-sized chunks from an InputStream, like the transport does
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void serve() throws IOException {
+        decoder.reset();
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(stream);
+        int read;
+        while ((read = inputStream.read(chunk, 0, chunk.length)) > 0) {
+            decoder.feed(chunk, 0, read);
+        }
+    }
+
+    // the same messages as ProtocolV2 frames, with the same corruption
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decodeStreamV2() {
+        decoderV2.reset();
+        decoderV2.feed(streamV2, 0, streamV2.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void serveV2() throws IOException {
+        decoderV2.reset();
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(streamV2);
+        int read;
+        while ((read = inputStream.read(chunk, 0, chunk.length)) > 0) {
+            decoderV2.feed(chunk, 0, read);
+        }
+    }
+}
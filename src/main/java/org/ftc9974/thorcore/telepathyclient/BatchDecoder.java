@@ -0,0 +1,209 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Turns {@link ProtocolV2} DICT and BATCH frames back into one message per value. Holds the
+ * connection's id dictionary and the previous value of every id for delta decoding.
+ * <p>
+ * A missing sequence number, or a batch that refers to an id the dictionary doesn't know, means a
+ * frame was lost. Every delta baseline is then considered stale: deltas for an id are skipped until
+ * the next absolute value of it, which the server sends at least once per keyframe interval.
+ * <p>
+ * A lost DICT frame could have declared any id or changed its type, so a gap in the DICT sequence
+ * numbers, or a batch counting more DICT frames than have arrived, forgets every id. Batches are
+ * then rejected rather than read with the wrong value widths, until the next keyframe declares their
+ * ids again.
+ */
+class BatchDecoder {
+
+    @FunctionalInterface
+    interface MessageHandler {
+
+        void onMessage(TelepathyAPI.Message<?> message);
+    }
+
+    private final ChannelRegistry channels;
+    private final MessageHandler handler;
+
+    // indexed by the server's batch id; channel is -1 for ids that were never declared
+    private int[] channel = new int[16];
+    private byte[] types = new byte[16];
+    private long[] previous = new long[16];
+    private boolean[] valid = new boolean[16];
+
+    private int expectedSequence;
+    private int expectedDict;
+    private long rejected;
+
+    BatchDecoder(ChannelRegistry channels, MessageHandler handler) {
+        this.channels = channels;
+        this.handler = handler;
+        Arrays.fill(channel, -1);
+        Arrays.fill(valid, true);
+    }
+
+    // batches that could not be decoded completely
+    long rejected() {
+        return rejected;
+    }
+
+    void onDict(ByteBuffer payload) {
+        try {
+            int sequence = ProtocolV2.getVarint(payload);
+            if (sequence != expectedDict) {
+                forget();
+            }
+            expectedDict = sequence + 1;
+            while (payload.hasRemaining()) {
+                int id = ProtocolV2.getVarint(payload);
+                byte type = payload.get();
+                int keyLength = ProtocolV2.getVarint(payload);
+                int key = payload.position();
+                if (id < 0 || keyLength <= 0 || key + keyLength > payload.limit()) {
+                    throw new IndexOutOfBoundsException("key runs past the end of the DICT");
+                }
+                ensureCapacity(id);
+                channel[id] = channels.lookup(payload, key, keyLength);
+                types[id] = type;
+                previous[id] = 0;
+                valid[id] = true;
+                payload.position(key + keyLength);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // the entries after the bad one are as good as lost
+            rejected++;
+            forget();
+        }
+    }
+
+    void onBatch(ByteBuffer payload) {
+        try {
+            boolean delta = (payload.get() & ProtocolV2.BATCH_DELTA) != 0;
+            int sequence = ProtocolV2.getVarint(payload);
+            if (sequence != expectedSequence) {
+                invalidate();
+            }
+            expectedSequence = sequence + 1;
+            int dicts = ProtocolV2.getVarint(payload);
+            if (dicts != expectedDict) {
+                // the DICT this batch relies on was lost
+                forget();
+                expectedDict = dicts;
+            }
+            while (payload.hasRemaining()) {
+                int id = ProtocolV2.getVarint(payload);
+                if (id < 0 || id >= channel.length || channel[id] < 0) {
+                    // its DICT entry was lost; the value's width is unknown, so the rest is too
+                    rejected++;
+                    invalidate();
+                    return;
+                }
+                decode(id, delta, payload);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            rejected++;
+            invalidate();
+        }
+    }
+
+    private void decode(int id, boolean delta, ByteBuffer payload) {
+        TelepathyAPI.Type type = TelepathyAPI.Type.forByte(types[id]);
+        String key = channels.key(channel[id]);
+        TelepathyAPI.Message<?> message;
+        switch (type) {
+            case STRING:
+                int length = ProtocolV2.getVarint(payload);
+                if (length < 0 || length > payload.remaining()) {
+                    throw new IndexOutOfBoundsException("string runs past the end of the batch");
+                }
+                String value;
+                if (payload.hasArray()) {
+                    value = new String(payload.array(), payload.arrayOffset() + payload.position(), length);
+                    payload.position(payload.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    payload.get(bytes);
+                    value = new String(bytes);
+                }
+                message = new TelepathyAPI.Message<>(key, channel[id], type, value, null);
+                break;
+            case FLOAT:
+            case DOUBLE:
+                long bits;
+                int trailing = delta ? payload.get() : ProtocolV2.DELTA_RAW;
+                boolean raw = trailing == ProtocolV2.DELTA_RAW;
+                if (raw) {
+                    bits = type == TelepathyAPI.Type.DOUBLE ? payload.getLong() : payload.getInt() & 0xFFFFFFFFL;
+                } else {
+                    long xor = trailing >= 64 ? 0 : ProtocolV2.getVarintLong(payload) << trailing;
+                    bits = previous[id] ^ xor;
+                }
+                if (!accept(id, bits, !raw)) {
+                    return;
+                }
+                double d = type == TelepathyAPI.Type.DOUBLE ? Double.longBitsToDouble(bits) : Float.intBitsToFloat((int) bits);
+                message = new TelepathyAPI.Message<>(key, channel[id], type, (long) d, d, null);
+                break;
+            default:
+                long v = ProtocolV2.unzigzag(ProtocolV2.getVarintLong(payload));
+                if (delta) {
+                    v += previous[id];
+                }
+                v = narrow(type, v);
+                if (!accept(id, v, delta)) {
+                    return;
+                }
+                message = new TelepathyAPI.Message<>(key, channel[id], type, v, v, null);
+                break;
+        }
+        handler.onMessage(message);
+    }
+
+    // updates the baseline; false if the value is a delta against a stale one
+    private boolean accept(int id, long value, boolean delta) {
+        previous[id] = value;
+        if (!delta) {
+            valid[id] = true;
+        }
+        return valid[id];
+    }
+
+    private static long narrow(TelepathyAPI.Type type, long value) {
+        switch (type) {
+            case BYTE:
+                return (byte) value;
+            case CHAR:
+                return (char) value;
+            case SHORT:
+                return (short) value;
+            case INT:
+                return (int) value;
+            default:
+                return value;
+        }
+    }
+
+    private void invalidate() {
+        Arrays.fill(valid, false);
+    }
+
+    // every id is undeclared until a DICT declares it again
+    private void forget() {
+        Arrays.fill(channel, -1);
+        invalidate();
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= channel.length) {
+            int length = Math.max(id + 1, channel.length * 2);
+            int old = channel.length;
+            channel = Arrays.copyOf(channel, length);
+            Arrays.fill(channel, old, length, -1);
+            types = Arrays.copyOf(types, length);
+            previous = Arrays.copyOf(previous, length);
+            valid = Arrays.copyOf(valid, length);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Interns telemetry keys and gives each one a dense integer id (0, 1, 2, ...) in the order they are
+ * first seen. The decoder resolves the key bytes of a packet straight to an id, so a key that has
+ * been seen before costs one hash and one byte comparison instead of a new String.
+ * <p>
+ * Lookups of known keys don't lock. Registration is synchronized, and a lookup that races with it
+ * simply falls back to the lock, so every method is safe from any thread.
+ */
+class ChannelRegistry {
+
+    private static final int NOT_FOUND = -1;
+
+    private static final class Table {
+        // open addressing, slot holds id + 1 so 0 means empty
+        final int[] slots;
+        final int[] hashes;
+        final byte[][] keyBytes;
+
+        Table(int slotCount, byte[][] keyBytes) {
+            slots = new int[slotCount];
+            hashes = new int[slotCount];
+            this.keyBytes = keyBytes;
+        }
+    }
+
+    private volatile Table table;
+    private volatile String[] keys;
+    private volatile int size;
+
+    ChannelRegistry() {
+        table = new Table(64, new byte[16][]);
+        keys = new String[16];
+    }
+
+    int size() {
+        return size;
+    }
+
+    String key(int channel) {
+        return keys[channel];
+    }
+
+    // returns the id for the key stored in buffer[index, index + length), registering it if it is new
+    int lookup(ByteBuffer buffer, int index, int length) {
+        int hash = hash(buffer, index, length);
+        int id = probe(table, hash, buffer, index, length);
+        if (id != NOT_FOUND) {
+            return id;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(index + i);
+        }
+        return register(bytes, hash);
+    }
+
+    // returns the id of an already registered key, or -1
+    int find(String key) {
+        byte[] bytes = key.getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int hash = hash(buffer, 0, bytes.length);
+        int id = probe(table, hash, buffer, 0, bytes.length);
+        if (id == NOT_FOUND) {
+            synchronized (this) {
+                id = probe(table, hash, buffer, 0, bytes.length);
+            }
+        }
+        return id;
+    }
+
+    // returns the id of the key, registering it if it is new
+    int intern(String key) {
+        byte[] bytes = key.getBytes();
+        return register(bytes, hash(ByteBuffer.wrap(bytes), 0, bytes.length));
+    }
+
+    private synchronized int register(byte[] bytes, int hash) {
+        Table current = table;
+        int existing = probe(current, hash, ByteBuffer.wrap(bytes), 0, bytes.length);
+        if (existing != NOT_FOUND) {
+            return existing;
+        }
+        int id = size;
+        if (id == current.keyBytes.length || (id + 1) * 2 > current.slots.length) {
+            current = grow(current, Math.max(current.keyBytes.length, (id + 1) * 2));
+        }
+        if (id == keys.length) {
+            keys = Arrays.copyOf(keys, id * 2);
+        }
+        keys[id] = new String(bytes);
+        current.keyBytes[id] = bytes;
+        insert(current, id, hash);
+        table = current;
+        // publishes keys[id] to other threads
+        size = id + 1;
+        return id;
+    }
+
+    private Table grow(Table old, int keyCapacity) {
+        Table grown = new Table(Integer.highestOneBit(keyCapacity) * 4, Arrays.copyOf(old.keyBytes, keyCapacity));
+        for (int slot = 0; slot < old.slots.length; slot++) {
+            if (old.slots[slot] != 0) {
+                insert(grown, old.slots[slot] - 1, old.hashes[slot]);
+            }
+        }
+        return grown;
+    }
+
+    private static void insert(Table table, int id, int hash) {
+        int mask = table.slots.length - 1;
+        int slot = hash & mask;
+        while (table.slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table.hashes[slot] = hash;
+        table.slots[slot] = id + 1;
+    }
+
+    // without the lock this can miss a key that is being registered, never return a wrong id
+    private static int probe(Table table, int hash, ByteBuffer buffer, int index, int length) {
+        int mask = table.slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table.slots[slot] - 1;
+            if (id == NOT_FOUND) {
+                return NOT_FOUND;
+            }
+            if (table.hashes[slot] == hash && matches(table.keyBytes[id], buffer, index, length)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buffer, int index, int length) {
+        if (key == null || key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer.get(index + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a, then spread so that linear probing on the low bits behaves
+    private static int hash(ByteBuffer buffer, int index, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ buffer.get(index + i)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,66 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-channel slots indexed by {@link ChannelRegistry} id, readable from any thread. The table grows
+ * as new channels show up. Nothing is lost as long as a single thread stores values and the others
+ * only read or take them (getAndSet to null); a value taken while the table grows may be seen twice.
+ */
+class ChannelTable<T> {
+
+    private volatile AtomicReferenceArray<T> entries;
+
+    ChannelTable() {
+        entries = new AtomicReferenceArray<>(16);
+    }
+
+    int length() {
+        return entries.length();
+    }
+
+    T get(int channel) {
+        AtomicReferenceArray<T> current = entries;
+        return channel < current.length() ? current.get(channel) : null;
+    }
+
+    void set(int channel, T value) {
+        ensureCapacity(channel).set(channel, value);
+    }
+
+    T getAndSet(int channel, T value) {
+        return ensureCapacity(channel).getAndSet(channel, value);
+    }
+
+    // sets the slot if it is empty and returns whatever it holds afterwards
+    T setIfAbsent(int channel, T value) {
+        AtomicReferenceArray<T> current = ensureCapacity(channel);
+        return current.compareAndSet(channel, null, value) ? value : current.get(channel);
+    }
+
+    void clear() {
+        AtomicReferenceArray<T> current = entries;
+        for (int i = 0; i < current.length(); i++) {
+            current.set(i, null);
+        }
+    }
+
+    private AtomicReferenceArray<T> ensureCapacity(int channel) {
+        AtomicReferenceArray<T> current = entries;
+        if (channel < current.length()) {
+            return current;
+        }
+        synchronized (this) {
+            current = entries;
+            if (channel >= current.length()) {
+                AtomicReferenceArray<T> grown = new AtomicReferenceArray<>(Math.max(channel + 1, current.length() * 2));
+                for (int i = 0; i < current.length(); i++) {
+                    grown.set(i, current.get(i));
+                }
+                entries = grown;
+                current = grown;
+            }
+            return current;
+        }
+    }
+}
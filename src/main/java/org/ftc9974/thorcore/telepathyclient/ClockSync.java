@@ -0,0 +1,177 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how a server's clock relates to this machine's System.nanoTime(), so timestamps from
+ * the server can be put on the client's time axis. Works like NTP: every pong that carries the
+ * server's clock gives an offset sample, server time minus the midpoint of the ping's round trip.
+ * Of the last few samples the one with the shortest round trip is trusted, since queueing delay is
+ * what makes a sample wrong, and a line fitted through the best sample of every second over the
+ * last minute gives the drift between the two clocks.
+ * <p>
+ * Until the first pong, TIME frames alone bound the offset: a stamp can't be received before it
+ * was taken, so the largest server time minus receive time seen is used. Samples come in on the
+ * event loop; the estimate can be read from any thread.
+ */
+final class ClockSync {
+
+    // pongs the best one is picked from
+    private static final int FILTER_SAMPLES = 8;
+    // the drift is fitted through the best sample of each of the last FIT_SAMPLES intervals. drift
+    // moves the offset by microseconds a second, so it only shows over tens of seconds
+    private static final int FIT_SAMPLES = 64;
+    private static final long FIT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // shorter spans give a drift dominated by noise
+    private static final long MIN_FIT_SPAN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // one immutable estimate: offset(t) = offsetNanos + drift * (t - referenceNanos), with t on the
+    // local clock and offset = server clock - local clock
+    private static final class Estimate {
+
+        final long referenceNanos;
+        final long offsetNanos;
+        final double drift;
+        // half the round trip of the best sample, or -1 when only TIME frames were seen
+        final long errorNanos;
+
+        Estimate(long referenceNanos, long offsetNanos, double drift, long errorNanos) {
+            this.referenceNanos = referenceNanos;
+            this.offsetNanos = offsetNanos;
+            this.drift = drift;
+            this.errorNanos = errorNanos;
+        }
+
+        long offsetAt(long localNanos) {
+            return offsetNanos + (long) (drift * (localNanos - referenceNanos));
+        }
+    }
+
+    // event loop only
+    private final long[] filterTimes = new long[FILTER_SAMPLES];
+    private final long[] filterOffsets = new long[FILTER_SAMPLES];
+    private final long[] filterDelays = new long[FILTER_SAMPLES];
+    private int filterCount;
+    private int filterNext;
+    private final long[] fitTimes = new long[FIT_SAMPLES];
+    private final long[] fitOffsets = new long[FIT_SAMPLES];
+    private final long[] fitDelays = new long[FIT_SAMPLES];
+    private int fitCount;
+    // the slot of the current interval, and when that interval began
+    private int fitLast = -1;
+    private long fitIntervalStart;
+    private boolean pongs;
+
+    // null until the first sample
+    private volatile Estimate estimate;
+
+    // a pong for a ping sent at sentNanos, answered when the server's clock read serverNanos
+    void onPong(long sentNanos, long serverNanos, long receivedNanos) {
+        long delay = receivedNanos - sentNanos;
+        if (delay < 0) {
+            return;
+        }
+        long midpoint = sentNanos + delay / 2;
+        filterTimes[filterNext] = midpoint;
+        filterOffsets[filterNext] = serverNanos - midpoint;
+        filterDelays[filterNext] = delay;
+        filterNext = (filterNext + 1) % FILTER_SAMPLES;
+        filterCount = Math.min(filterCount + 1, FILTER_SAMPLES);
+
+        int best = 0;
+        for (int i = 1; i < filterCount; i++) {
+            if (filterDelays[i] < filterDelays[best]) {
+                best = i;
+            }
+        }
+        pongs = true;
+        if (fitLast < 0 || midpoint - fitIntervalStart >= FIT_INTERVAL_NANOS) {
+            fitLast = (fitLast + 1) % FIT_SAMPLES;
+            fitIntervalStart = midpoint;
+            fitCount = Math.min(fitCount + 1, FIT_SAMPLES);
+            fitDelays[fitLast] = Long.MAX_VALUE;
+        }
+        if (delay < fitDelays[fitLast]) {
+            fitTimes[fitLast] = midpoint;
+            fitOffsets[fitLast] = serverNanos - midpoint;
+            fitDelays[fitLast] = delay;
+        }
+        estimate = fit(filterTimes[best], filterOffsets[best], filterDelays[best] / 2);
+    }
+
+    // a TIME frame stamped serverNanos, received at receivedNanos. only used until the first pong
+    void onTime(long serverNanos, long receivedNanos) {
+        if (pongs) {
+            return;
+        }
+        long offset = serverNanos - receivedNanos;
+        Estimate estimate = this.estimate;
+        if (estimate == null || offset > estimate.offsetNanos) {
+            this.estimate = new Estimate(receivedNanos, offset, 0, -1);
+        }
+    }
+
+    // serverNanos on the local System.nanoTime() clock. the identity until there is an estimate
+    long toLocal(long serverNanos) {
+        Estimate estimate = this.estimate;
+        if (estimate == null) {
+            return serverNanos;
+        }
+        // the offset barely moves over one offset's worth of time, so the uncorrected local time will do
+        return serverNanos - estimate.offsetAt(serverNanos - estimate.offsetNanos);
+    }
+
+    boolean synced() {
+        return estimate != null;
+    }
+
+    // server clock minus local clock, now
+    long offsetNanos() {
+        Estimate estimate = this.estimate;
+        return estimate == null ? 0 : estimate.offsetAt(System.nanoTime());
+    }
+
+    // how much faster the server's clock runs, in parts per million
+    double driftPpm() {
+        Estimate estimate = this.estimate;
+        return estimate == null ? 0 : estimate.drift * 1e6;
+    }
+
+    // half the round trip of the sample the offset rests on, or -1 without pongs
+    long errorNanos() {
+        Estimate estimate = this.estimate;
+        return estimate == null ? -1 : estimate.errorNanos;
+    }
+
+    // least squares line through the fitted samples, or the best sample alone while they span too
+    // little time
+    private Estimate fit(long bestTime, long bestOffset, long error) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < fitCount; i++) {
+            first = Math.min(first, fitTimes[i]);
+            last = Math.max(last, fitTimes[i]);
+        }
+        if (last - first < MIN_FIT_SPAN_NANOS) {
+            return new Estimate(bestTime, bestOffset, 0, error);
+        }
+        // relative to the first sample, so the sums stay well within a double's precision
+        double meanTime = 0;
+        double meanOffset = 0;
+        for (int i = 0; i < fitCount; i++) {
+            meanTime += fitTimes[i] - first;
+            meanOffset += fitOffsets[i] - bestOffset;
+        }
+        meanTime /= fitCount;
+        meanOffset /= fitCount;
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < fitCount; i++) {
+            double dt = fitTimes[i] - first - meanTime;
+            covariance += dt * (fitOffsets[i] - bestOffset - meanOffset);
+            variance += dt * dt;
+        }
+        double drift = covariance / variance;
+        return new Estimate(first + (long) meanTime, bestOffset + (long) meanOffset, drift, error);
+    }
+}
@@ -0,0 +1,204 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Keys computed on the client from other keys, each defined by an {@link Expression}. Whenever one
+ * of its inputs gets a new value, a derived key is evaluated again with the latest value of every
+ * input and published as a DOUBLE message of its own, stamped with the input's timestamp. Nothing
+ * is published until every input has had a value. Derived keys can use other derived keys, but not
+ * in a cycle.
+ * <p>
+ * Definitions can be changed from any thread; the event loop binds them to channels on the first
+ * value after a change, so handling a value is an array lookup. Values of derived keys start over
+ * when any definition changes.
+ */
+final class DerivedKeys {
+
+    // one derived key, bound to channels
+    private static final class Derived {
+
+        final String key;
+        final int channel;
+        final Expression expression;
+        final double[] values;
+        final boolean[] seen;
+        // inputs without a value yet
+        int missing;
+
+        Derived(String key, int channel, Expression expression) {
+            this.key = key;
+            this.channel = channel;
+            this.expression = expression;
+            values = new double[expression.inputs().size()];
+            seen = new boolean[values.length];
+            missing = values.length;
+        }
+    }
+
+    // a derived key reading a channel into one of its slots
+    private static final class Input {
+
+        final Derived derived;
+        final int slot;
+
+        Input(Derived derived, int slot) {
+            this.derived = derived;
+            this.slot = slot;
+        }
+    }
+
+    private static final Input[] NO_INPUTS = new Input[0];
+
+    private final ChannelRegistry channels;
+    private final Consumer<TelepathyAPI.Message<?>> publish;
+
+    // guarded by this, in definition order
+    private final Map<String, Expression> definitions = new LinkedHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger();
+    // every input key that has had a value. added to by the event loop, read by missingInputs()
+    private final Set<String> seenInputs = ConcurrentHashMap.newKeySet();
+
+    // event loop only, indexed by channel
+    private int boundGeneration;
+    private Input[][] byChannel = new Input[0][];
+
+    DerivedKeys(ChannelRegistry channels, Consumer<TelepathyAPI.Message<?>> publish) {
+        this.channels = channels;
+        this.publish = publish;
+    }
+
+    // replaces an earlier definition of key. throws IllegalArgumentException if expression doesn't
+    // parse or would make key depend on itself
+    synchronized void define(String key, String expression) {
+        Expression parsed = Expression.parse(expression);
+        Deque<String> pending = new ArrayDeque<>(parsed.inputs());
+        Set<String> visited = new LinkedHashSet<>();
+        while (!pending.isEmpty()) {
+            String input = pending.pop();
+            if (input.equals(key)) {
+                throw new IllegalArgumentException(key + " would depend on itself");
+            }
+            Expression definition = definitions.get(input);
+            if (visited.add(input) && definition != null) {
+                pending.addAll(definition.inputs());
+            }
+        }
+        definitions.put(key, parsed);
+        generation.incrementAndGet();
+    }
+
+    synchronized void remove(String key) {
+        if (definitions.remove(key) != null) {
+            generation.incrementAndGet();
+        }
+    }
+
+    // the keys from the server that key is computed from, through any derived keys in between.
+    // empty if key isn't derived
+    synchronized Set<String> serverInputs(String key) {
+        Set<String> inputs = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        Set<String> visited = new LinkedHashSet<>();
+        pending.push(key);
+        while (!pending.isEmpty()) {
+            String next = pending.pop();
+            Expression definition = definitions.get(next);
+            if (definition == null) {
+                inputs.add(next);
+            } else if (visited.add(next)) {
+                pending.addAll(definition.inputs());
+            }
+        }
+        inputs.remove(key);
+        return inputs;
+    }
+
+    // each derived key whose inputs haven't all had a value, with those inputs. a key that still
+    // misses one once the server has been sending for a while is probably misspelt, or wasn't
+    // quoted and got split up by the operators in it
+    synchronized Map<String, List<String>> missingInputs() {
+        Map<String, List<String>> missing = new LinkedHashMap<>();
+        for (Map.Entry<String, Expression> definition : definitions.entrySet()) {
+            List<String> inputs = new ArrayList<>();
+            for (String input : definition.getValue().inputs()) {
+                if (!seenInputs.contains(input)) {
+                    inputs.add(input);
+                }
+            }
+            if (!inputs.isEmpty()) {
+                missing.put(definition.getKey(), inputs);
+            }
+        }
+        return missing;
+    }
+
+    // event loop: evaluates every derived key that reads message's channel
+    void onValue(TelepathyAPI.Message<?> message) {
+        if (generation.get() != boundGeneration) {
+            bind();
+        }
+        Input[][] byChannel = this.byChannel;
+        if (message.channel >= byChannel.length || byChannel[message.channel] == null) {
+            return;
+        }
+        for (Input input : byChannel[message.channel]) {
+            Derived derived = input.derived;
+            if (!derived.seen[input.slot]) {
+                derived.seen[input.slot] = true;
+                derived.missing--;
+                seenInputs.add(message.key);
+            }
+            derived.values[input.slot] = message.doubleValue;
+            if (derived.missing > 0) {
+                continue;
+            }
+            double value = derived.expression.evaluate(derived.values);
+            TelepathyAPI.Message<Double> result = new TelepathyAPI.Message<>(derived.key, derived.channel,
+                    TelepathyAPI.Type.DOUBLE, (long) value, value, null);
+            result.receivedNanos = message.receivedNanos;
+            result.timestampNanos = message.timestampNanos;
+            result.serverTimestamp = message.serverTimestamp;
+            publish.accept(result);
+        }
+    }
+
+    private void bind() {
+        Map<String, Expression> definitions;
+        synchronized (this) {
+            boundGeneration = generation.get();
+            definitions = new LinkedHashMap<>(this.definitions);
+        }
+        List<List<Input>> inputs = new ArrayList<>();
+        for (Map.Entry<String, Expression> definition : definitions.entrySet()) {
+            Expression expression = definition.getValue();
+            Derived derived = new Derived(definition.getKey(), channels.intern(definition.getKey()), expression);
+            for (int slot = 0; slot < expression.inputs().size(); slot++) {
+                int channel = channels.intern(expression.inputs().get(slot));
+                while (inputs.size() <= channel) {
+                    inputs.add(null);
+                }
+                if (inputs.get(channel) == null) {
+                    inputs.set(channel, new ArrayList<>());
+                }
+                inputs.get(channel).add(new Input(derived, slot));
+            }
+        }
+        Input[][] byChannel = new Input[inputs.size()][];
+        for (int channel = 0; channel < byChannel.length; channel++) {
+            List<Input> reading = inputs.get(channel);
+            byChannel[channel] = reading == null ? null : reading.toArray(NO_INPUTS);
+        }
+        this.byChannel = byChannel;
+    }
+}
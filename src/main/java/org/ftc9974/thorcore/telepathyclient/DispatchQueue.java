@@ -0,0 +1,254 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands decoded messages from the reader thread to one listener running on its own thread.
+ * <p>
+ * LOSSLESS queues use a single-producer/single-consumer ring. The reader never waits for the
+ * listener: once the ring is full, further messages go to an overflow list that only the reader
+ * touches, and {@link #congested()} tells the reader to stop reading from its socket, so TCP pushes
+ * back on that one server. When the listener has worked the ring down to half full it calls
+ * {@link #onDrained()}, and the reader moves the overflow into the ring and reads again. Nothing is
+ * lost, and the overflow holds at most what the reader decoded after the ring filled. CONFLATED
+ * queues keep only the newest message of each channel, so the reader never has to stop and the
+ * listener sees the latest value of every key it can get to; replaced messages are counted as
+ * dropped.
+ * <p>
+ * A LOSSLESS queue can also be made to drop whatever doesn't fit in a full ring instead of
+ * waiting, for a consumer such as the {@link FlightRecorder} that must never hold up the reader;
+ * those messages are counted as dropped too.
+ */
+class DispatchQueue implements TelepathyAPI.ListenerHandle, Runnable {
+
+    private static final int RING_SIZE = 4096;
+
+    private final TelepathyAPI.DataListener listener;
+    private final TelepathyAPI.Delivery delivery;
+    private final Thread consumer;
+    // time spent in the listener per message, if anyone is watching
+    private final LatencyHistogram listenerTime;
+
+    private final TelepathyAPI.Message<?>[] ring;
+    private final int mask;
+    private final boolean dropWhenFull;
+    // reader thread only: messages that came after the ring filled, and whether the reader has
+    // been told to stop
+    private final ArrayDeque<TelepathyAPI.Message<?>> overflow;
+    private boolean congested;
+    private final ChannelTable<TelepathyAPI.Message<?>> latest;
+
+    // both only ever increase. the reader thread writes published, the consumer writes consumed
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+
+    private volatile boolean consumerParked;
+    // set by the reader when it stops reading, cleared by the consumer when it calls onDrained()
+    private volatile boolean drainWanted;
+    private volatile boolean closed;
+
+    DispatchQueue(TelepathyAPI.DataListener listener, TelepathyAPI.Delivery delivery, String name) {
+        this(listener, delivery, name, null);
+    }
+
+    DispatchQueue(TelepathyAPI.DataListener listener, TelepathyAPI.Delivery delivery, String name, LatencyHistogram listenerTime) {
+        this(listener, delivery, name, listenerTime, RING_SIZE, false);
+    }
+
+    // ringSize is a power of two, and only matters to LOSSLESS queues
+    DispatchQueue(TelepathyAPI.DataListener listener, TelepathyAPI.Delivery delivery, String name, LatencyHistogram listenerTime,
+                  int ringSize, boolean dropWhenFull) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two");
+        }
+        this.listener = listener;
+        this.listenerTime = listenerTime;
+        this.delivery = delivery;
+        this.dropWhenFull = dropWhenFull;
+        mask = ringSize - 1;
+        if (delivery == TelepathyAPI.Delivery.LOSSLESS) {
+            ring = new TelepathyAPI.Message<?>[ringSize];
+            overflow = dropWhenFull ? null : new ArrayDeque<>();
+            latest = null;
+        } else {
+            ring = null;
+            overflow = null;
+            latest = new ChannelTable<>();
+        }
+        consumer = new Thread(this, name);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    // reader thread only
+    void offer(TelepathyAPI.Message<?> message) {
+        if (closed) {
+            return;
+        }
+        if (overflow != null && !overflow.isEmpty()) {
+            refill();
+        }
+        long sequence = published.get();
+        if (delivery == TelepathyAPI.Delivery.LOSSLESS) {
+            if (sequence - consumed.get() == ring.length || overflow != null && !overflow.isEmpty()) {
+                if (dropWhenFull) {
+                    dropped.incrementAndGet();
+                } else {
+                    overflow.add(message);
+                    if (!congested) {
+                        congested = true;
+                        stalls.incrementAndGet();
+                    }
+                }
+                wakeConsumer();
+                return;
+            }
+            ring[(int) sequence & mask] = message;
+        } else if (latest.getAndSet(message.channel, message) != null) {
+            dropped.incrementAndGet();
+        }
+        // publishes the ring slot written above. a full volatile write, so the consumerParked read
+        // below can't move ahead of it and miss a consumer that is about to park
+        published.set(sequence + 1);
+        if (consumerParked) {
+            wakeConsumer();
+        }
+    }
+
+    // reader thread: true if the reader should stop reading until onDrained(), because the ring is
+    // full. moves what fits from the overflow into the ring, and is false again once the overflow
+    // is empty and the ring at most half full
+    boolean congested() {
+        if (!congested) {
+            return false;
+        }
+        if (closed) {
+            overflow.clear();
+            congested = false;
+            return false;
+        }
+        // before refill() publishes, so a consumer that gets through everything refilled sees it
+        drainWanted = true;
+        refill();
+        if (overflow.isEmpty() && published.get() - consumed.get() <= ring.length / 2) {
+            congested = false;
+            return false;
+        }
+        return true;
+    }
+
+    // consumer thread, after a congested() that returned true: the reader can read again. may also
+    // be called when it already can
+    void onDrained() {
+    }
+
+    private void refill() {
+        long sequence = published.get();
+        long free = ring.length - (sequence - consumed.get());
+        for (; free > 0 && !overflow.isEmpty(); free--, sequence++) {
+            ring[(int) sequence & mask] = overflow.poll();
+        }
+        published.set(sequence);
+        if (consumerParked) {
+            wakeConsumer();
+        }
+    }
+
+    private void wakeConsumer() {
+        LockSupport.unpark(consumer);
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            long available = published.get();
+            long position = consumed.get();
+            if (position == available) {
+                // a full write, so this and the reader setting drainWanted before reading consumed
+                // can't both miss each other
+                consumed.set(position);
+                checkDrained(position);
+                consumerParked = true;
+                // re-check so a message published just before the flag was set isn't missed
+                if (published.get() == position && !closed) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+                continue;
+            }
+            if (delivery == TelepathyAPI.Delivery.LOSSLESS) {
+                for (; position < available && !closed; position++) {
+                    int slot = (int) position & mask;
+                    TelepathyAPI.Message<?> message = ring[slot];
+                    ring[slot] = null;
+                    deliver(message);
+                    consumed.lazySet(position + 1);
+                    checkDrained(position + 1);
+                }
+            } else {
+                // every offer since the last pass is either about to be delivered or was replaced
+                consumed.lazySet(available);
+                int channels = latest.length();
+                for (int channel = 0; channel < channels && !closed; channel++) {
+                    TelepathyAPI.Message<?> message = latest.getAndSet(channel, null);
+                    if (message != null) {
+                        deliver(message);
+                    }
+                }
+            }
+        }
+    }
+
+    private void checkDrained(long position) {
+        if (drainWanted && published.get() - position <= ring.length / 2) {
+            drainWanted = false;
+            onDrained();
+        }
+    }
+
+    private void deliver(TelepathyAPI.Message<?> message) {
+        long start = listenerTime == null ? 0 : System.nanoTime();
+        try {
+            listener.onNewMessage(message);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        if (listenerTime != null) {
+            listenerTime.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public TelepathyAPI.Delivery delivery() {
+        return delivery;
+    }
+
+    @Override
+    public long lag() {
+        return published.get() - consumed.get();
+    }
+
+    @Override
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public long stalls() {
+        return stalls.get();
+    }
+
+    @Override
+    public void remove() {
+        closed = true;
+        wakeConsumer();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,322 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An arithmetic expression over telemetry keys, such as {@code Target - Position} or
+ * {@code ("Drive/LeftVelocity" + "Drive/RightVelocity") / 2}. It is parsed once into a tree of
+ * MethodHandles taking the input values as a double[], so evaluating it doesn't walk a syntax tree
+ * or allocate, and parts without keys are folded into constants.
+ * <p>
+ * The grammar has + - * / % and ^ (power, right associative), unary minus, parentheses, numbers,
+ * and any static double method of {@link Math} called by name, e.g. {@code abs(x)},
+ * {@code atan2(y, x)}, {@code hypot(x, y)}, {@code toDegrees(x)}. Everything else is a key: a run of
+ * letters, digits and {@code _ . $} that doesn't start with a digit, or any text between double
+ * quotes. Keys with other characters, such as {@code "Drive/Left"} or {@code "Arm Position"}, have
+ * to be quoted, so {@code Position/2} is a division and never a key of that name.
+ */
+final class Expression {
+
+    private static final MethodType EVALUATE = MethodType.methodType(double.class, double[].class);
+    private static final MethodHandle ADD = operator("add", 2);
+    private static final MethodHandle SUBTRACT = operator("subtract", 2);
+    private static final MethodHandle MULTIPLY = operator("multiply", 2);
+    private static final MethodHandle DIVIDE = operator("divide", 2);
+    private static final MethodHandle REMAINDER = operator("remainder", 2);
+    private static final MethodHandle NEGATE = operator("negate", 1);
+    private static final MethodHandle POWER = function("pow", 2);
+    private static final MethodHandle ELEMENT = MethodHandles.arrayElementGetter(double[].class);
+
+    // a compiled subexpression, (double[]) -> double
+    private static final class Term {
+
+        final MethodHandle handle;
+        final boolean constant;
+
+        Term(MethodHandle handle, boolean constant) {
+            this.handle = handle;
+            this.constant = constant;
+        }
+    }
+
+    private final String source;
+    // the keys the expression reads, in the order of their slots in evaluate()'s argument
+    private final List<String> inputs;
+    private final MethodHandle handle;
+
+    private Expression(String source, List<String> inputs, MethodHandle handle) {
+        this.source = source;
+        this.inputs = inputs;
+        this.handle = handle;
+    }
+
+    // throws IllegalArgumentException saying what is wrong and where
+    static Expression parse(String source) {
+        Parser parser = new Parser(source);
+        Term term = parser.sum();
+        parser.skipSpaces();
+        if (parser.position < source.length()) {
+            throw parser.error("Unexpected '" + source.charAt(parser.position) + "'");
+        }
+        return new Expression(source, Collections.unmodifiableList(parser.inputs), term.handle);
+    }
+
+    List<String> inputs() {
+        return inputs;
+    }
+
+    // values holds the value of each of inputs(), in order
+    double evaluate(double[] values) {
+        try {
+            return (double) handle.invokeExact(values);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // nothing in the tree throws checked exceptions
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static final class Parser {
+
+        final String source;
+        final List<String> inputs = new ArrayList<>();
+        int position;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        // sum = product (('+' | '-') product)*
+        Term sum() {
+            Term term = product();
+            while (true) {
+                if (accept('+')) {
+                    term = apply(ADD, term, product());
+                } else if (accept('-')) {
+                    term = apply(SUBTRACT, term, product());
+                } else {
+                    return term;
+                }
+            }
+        }
+
+        // product = unary (('*' | '/' | '%') unary)*
+        Term product() {
+            Term term = unary();
+            while (true) {
+                if (accept('*')) {
+                    term = apply(MULTIPLY, term, unary());
+                } else if (accept('/')) {
+                    term = apply(DIVIDE, term, unary());
+                } else if (accept('%')) {
+                    term = apply(REMAINDER, term, unary());
+                } else {
+                    return term;
+                }
+            }
+        }
+
+        // unary = '-' unary | primary ('^' unary)?, so -2^2 is -4 and 2^-1 is 0.5
+        Term unary() {
+            if (accept('-')) {
+                return apply(NEGATE, unary());
+            }
+            Term term = primary();
+            return accept('^') ? apply(POWER, term, unary()) : term;
+        }
+
+        // primary = number | key | function '(' sum (',' sum)* ')' | '(' sum ')'
+        Term primary() {
+            skipSpaces();
+            if (position == source.length()) {
+                throw error("Expected a value");
+            }
+            char c = source.charAt(position);
+            if (accept('(')) {
+                Term term = sum();
+                expect(')');
+                return term;
+            }
+            if (c == '"') {
+                int end = source.indexOf('"', position + 1);
+                if (end < 0) {
+                    throw error("Unterminated key");
+                }
+                String key = source.substring(position + 1, end);
+                position = end + 1;
+                return key(key);
+            }
+            if (Character.isDigit(c) || c == '.') {
+                return number();
+            }
+            if (!isKeyChar(c)) {
+                throw error("Unexpected '" + c + "'");
+            }
+            int start = position;
+            while (position < source.length() && isKeyChar(source.charAt(position))) {
+                position++;
+            }
+            String name = source.substring(start, position);
+            if (!accept('(')) {
+                return key(name);
+            }
+            List<Term> arguments = new ArrayList<>();
+            do {
+                arguments.add(sum());
+            } while (accept(','));
+            expect(')');
+            MethodHandle function = function(name, arguments.size());
+            if (function == null) {
+                position = start;
+                throw error("Unknown function " + name + " with " + arguments.size() + " argument(s)");
+            }
+            return apply(function, arguments.toArray(new Term[0]));
+        }
+
+        Term number() {
+            int start = position;
+            while (position < source.length() && (Character.isDigit(source.charAt(position)) || source.charAt(position) == '.')) {
+                position++;
+            }
+            // exponent, as in 1e-3
+            if (position < source.length() && (source.charAt(position) == 'e' || source.charAt(position) == 'E')) {
+                int mantissaEnd = position++;
+                if (position < source.length() && (source.charAt(position) == '+' || source.charAt(position) == '-')) {
+                    position++;
+                }
+                if (position == source.length() || !Character.isDigit(source.charAt(position))) {
+                    position = mantissaEnd;
+                } else {
+                    while (position < source.length() && Character.isDigit(source.charAt(position))) {
+                        position++;
+                    }
+                }
+            }
+            try {
+                return constant(Double.parseDouble(source.substring(start, position)));
+            } catch (NumberFormatException e) {
+                position = start;
+                throw error("Bad number");
+            }
+        }
+
+        Term key(String key) {
+            int slot = inputs.indexOf(key);
+            if (slot < 0) {
+                slot = inputs.size();
+                inputs.add(key);
+            }
+            return new Term(MethodHandles.insertArguments(ELEMENT, 1, slot), false);
+        }
+
+        boolean accept(char c) {
+            skipSpaces();
+            if (position < source.length() && source.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!accept(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        void skipSpaces() {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + (position + 1) + " in \"" + source + "\"");
+        }
+
+        private static boolean isKeyChar(char c) {
+            // nothing that is an operator, so a - b and a-b mean the same
+            return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+        }
+    }
+
+    private static Term constant(double value) {
+        return new Term(MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, double[].class), true);
+    }
+
+    // operator(argument(values)...), with every argument given the same values
+    private static Term apply(MethodHandle operator, Term... arguments) {
+        MethodHandle[] handles = new MethodHandle[arguments.length];
+        boolean constant = true;
+        for (int i = 0; i < arguments.length; i++) {
+            handles[i] = arguments[i].handle;
+            constant &= arguments[i].constant;
+        }
+        MethodHandle handle = MethodHandles.permuteArguments(
+                MethodHandles.filterArguments(operator, 0, handles), EVALUATE, new int[arguments.length]);
+        if (!constant) {
+            return new Term(handle, false);
+        }
+        try {
+            return constant((double) handle.invokeExact((double[]) null));
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static MethodHandle operator(String name, int arity) {
+        try {
+            return MethodHandles.lookup().findStatic(Expression.class, name, doubles(arity));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // the Math method, or null if there is none taking arity doubles
+    private static MethodHandle function(String name, int arity) {
+        try {
+            return MethodHandles.publicLookup().findStatic(Math.class, name, doubles(arity));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static MethodType doubles(int arity) {
+        return MethodType.methodType(double.class, Collections.nCopies(arity, double.class));
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double subtract(double a, double b) {
+        return a - b;
+    }
+
+    private static double multiply(double a, double b) {
+        return a * b;
+    }
+
+    private static double divide(double a, double b) {
+        return a / b;
+    }
+
+    private static double remainder(double a, double b) {
+        return a % b;
+    }
+
+    private static double negate(double a) {
+        return -a;
+    }
+}
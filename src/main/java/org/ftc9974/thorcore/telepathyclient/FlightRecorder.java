@@ -0,0 +1,456 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends every received message to memory-mapped segment files in a session directory.
+ * <p>
+ * Records are written on the recorder's own listener thread (see {@link DispatchQueue}), so the
+ * reader thread only pays for handing the message over. It never waits for the recorder either: if
+ * the recorder falls more than {@link #QUEUE_SIZE} messages behind, what doesn't fit is dropped and
+ * counted. Anything slow about files happens on a third thread, which maps each segment while the
+ * one before it fills up, and flushes and truncates each segment once it is full.
+ * <p>
+ * A session directory holds:
+ * <ul>
+ * <li>segment-NNNNNN.tlog: records of [int length][long epoch nanos][long stamp epoch nanos][int channel]
+ * [byte type][value], where value is 8 bytes (a double for FLOAT/DOUBLE, a long otherwise) or UTF-8
+ * text for STRING. A length of 0, or too little space left for a header, ends the segment.</li>
+ * <li>index.tidx: [long epoch nanos][int segment][int offset] entries, one per second of
+ * traffic and one at the start of every segment, so a reader can binary search to any time.</li>
+ * <li>channels.tchn: [int channel][short length][UTF-8 key] for every channel that appears.</li>
+ * </ul>
+ * The first time of a record is when it was received, which never goes backwards, so it orders
+ * the records and the index. The stamp is {@link TelepathyAPI.Message#timestampNanos}, the server's
+ * clock mapped to ours, which can step back when the clock estimate is corrected; it is the
+ * receive time again for servers that don't stamp their values.
+ */
+class FlightRecorder {
+
+    static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 1;
+    private static final int INDEX_ENTRY_SIZE = 8 + 4 + 4;
+    private static final long INDEX_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+    // seconds of a busy robot, far longer than the recorder is held up by anything but a stalled disk
+    static final int QUEUE_SIZE = 1 << 16;
+
+    private final Path directory;
+    private final ChannelRegistry channels;
+    private final long segmentSize;
+    // converts System.nanoTime() to nanoseconds since the epoch
+    private final long epochOffsetNanos;
+    private final DispatchQueue queue;
+    // maps the next segment, and flushes and truncates finished ones
+    private final ExecutorService files;
+
+    private final FileChannel indexFile;
+    private final FileChannel channelsFile;
+    private final ByteBuffer indexEntry;
+    private final BitSet declared;
+
+    private MappedByteBuffer segment;
+    private Future<MappedByteBuffer> nextSegment;
+    private Path segmentPath;
+    private int segmentNumber = -1;
+    private long nextIndexNanos;
+    private boolean closed;
+
+    FlightRecorder(Path directory, ChannelRegistry channels) throws IOException {
+        this(directory, channels, DEFAULT_SEGMENT_SIZE);
+    }
+
+    FlightRecorder(Path directory, ChannelRegistry channels, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.channels = channels;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        indexFile = FileChannel.open(directory.resolve("index.tidx"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channelsFile = FileChannel.open(directory.resolve("channels.tchn"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        declared = new BitSet();
+        files = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "TelepathyRecorderFiles");
+            thread.setDaemon(true);
+            return thread;
+        });
+        nextSegment = files.submit(() -> map(segmentPath(directory, 0)));
+        queue = new DispatchQueue(this::write, TelepathyAPI.Delivery.LOSSLESS, "TelepathyRecorder", null, QUEUE_SIZE, true);
+    }
+
+    // reader thread
+    void offer(TelepathyAPI.Message<?> message) {
+        queue.offer(message);
+    }
+
+    // messages that arrived while the queue was full, and aren't in the recording
+    long dropped() {
+        return queue.dropped();
+    }
+
+    private synchronized void write(TelepathyAPI.Message<?> message) {
+        if (closed) {
+            return;
+        }
+        try {
+            declare(message.channel);
+            long timestamp = message.receivedNanos + epochOffsetNanos;
+            byte[] text = null;
+            int length = HEADER_SIZE + 8;
+            if (message.type == TelepathyAPI.Type.STRING) {
+                text = String.valueOf(message.message).getBytes(StandardCharsets.UTF_8);
+                if (HEADER_SIZE + text.length > segmentSize) {
+                    // can't split a record across segments
+                    text = Arrays.copyOf(text, (int) segmentSize - HEADER_SIZE);
+                }
+                length = HEADER_SIZE + text.length;
+            }
+            if (segment == null || segment.remaining() < length) {
+                rotate();
+            }
+            if (timestamp >= nextIndexNanos) {
+                index(timestamp);
+            }
+            segment.putInt(length)
+                    .putLong(timestamp)
+                    .putLong(message.timestampNanos + epochOffsetNanos)
+                    .putInt(message.channel)
+                    .put(message.type.typeKey);
+            if (text != null) {
+                segment.put(text);
+            } else if (message.type == TelepathyAPI.Type.FLOAT || message.type == TelepathyAPI.Type.DOUBLE) {
+                segment.putDouble(message.doubleValue);
+            } else {
+                segment.putLong(message.longValue);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            closed = true;
+        }
+    }
+
+    private void declare(int channel) throws IOException {
+        if (declared.get(channel)) {
+            return;
+        }
+        byte[] key = channels.key(channel).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(4 + 2 + key.length);
+        entry.putInt(channel).putShort((short) key.length).put(key).flip();
+        while (entry.hasRemaining()) {
+            channelsFile.write(entry);
+        }
+        declared.set(channel);
+    }
+
+    private void index(long timestamp) throws IOException {
+        indexEntry.clear();
+        indexEntry.putLong(timestamp).putInt(segmentNumber).putInt(segment.position()).flip();
+        while (indexEntry.hasRemaining()) {
+            indexFile.write(indexEntry);
+        }
+        nextIndexNanos = timestamp + INDEX_INTERVAL_NANOS;
+    }
+
+    private void rotate() throws IOException {
+        finishSegment();
+        segmentNumber++;
+        segmentPath = segmentPath(directory, segmentNumber);
+        try {
+            // only waits if segments fill up faster than a file can be created
+            segment = nextSegment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        Path next = segmentPath(directory, segmentNumber + 1);
+        nextSegment = files.submit(() -> map(next));
+        // every segment starts with an index entry
+        nextIndexNanos = Long.MIN_VALUE;
+    }
+
+    // files thread
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // the mapping stays valid after the channel is closed
+            return file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    // hands the current segment to the files thread to be flushed and truncated
+    private void finishSegment() {
+        if (segment == null) {
+            return;
+        }
+        MappedByteBuffer finished = segment;
+        Path path = segmentPath;
+        long used = segment.position();
+        segment = null;
+        files.execute(() -> {
+            finished.force();
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                // drop the unused tail; the end of the file ends the segment just like a 0 length does
+                file.truncate(used);
+            } catch (IOException e) {
+                // some platforms refuse to truncate a file that is still mapped, the zeros are harmless
+            }
+        });
+    }
+
+    // waits briefly for queued messages to be written, then closes every file
+    void close() {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        while (queue.lag() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        queue.remove();
+        synchronized (this) {
+            closed = true;
+            finishSegment();
+            // the segment mapped ahead was never used
+            Path unused = segmentPath(directory, segmentNumber + 1);
+            files.execute(() -> {
+                try {
+                    Files.deleteIfExists(unused);
+                } catch (IOException e) {
+                    // still mapped on some platforms; a segment of zeros is an empty one
+                }
+            });
+            files.shutdown();
+            try {
+                // so the session is complete once close() returns
+                files.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                indexFile.close();
+                channelsFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Path segmentPath(Path directory, int segment) {
+        return directory.resolve(String.format("segment-%06d.tlog", segment));
+    }
+
+    /**
+     * Reads a recorded session back, one record at a time. next() moves to the following record and
+     * the accessors describe the current one; nothing is allocated per record except STRING values.
+     */
+    static class Reader implements Closeable {
+
+        private final Path directory;
+        private final List<String> keys;
+        private final long[] indexTimestamps;
+        private final int[] indexSegments;
+        private final int[] indexOffsets;
+
+        private MappedByteBuffer segment;
+        private int segmentNumber;
+
+        private long timestamp;
+        private long stamp;
+        private int channel;
+        private TelepathyAPI.Type type;
+        private long bits;
+        private String text;
+
+        Reader(Path directory) throws IOException {
+            this.directory = directory;
+            keys = new ArrayList<>();
+            ByteBuffer channelEntries = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("channels.tchn")));
+            while (channelEntries.remaining() >= 6) {
+                int id = channelEntries.getInt();
+                byte[] key = new byte[channelEntries.getShort()];
+                channelEntries.get(key);
+                while (keys.size() <= id) {
+                    keys.add(null);
+                }
+                keys.set(id, new String(key, StandardCharsets.UTF_8));
+            }
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("index.tidx")));
+            int entries = index.remaining() / INDEX_ENTRY_SIZE;
+            indexTimestamps = new long[entries];
+            indexSegments = new int[entries];
+            indexOffsets = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                indexTimestamps[i] = index.getLong();
+                indexSegments[i] = index.getInt();
+                indexOffsets[i] = index.getInt();
+            }
+            openSegment(0, 0);
+        }
+
+        // epoch nanos of the first record, or Long.MIN_VALUE for an empty session
+        long startTime() {
+            return indexTimestamps.length == 0 ? Long.MIN_VALUE : indexTimestamps[0];
+        }
+
+        int channelCount() {
+            return keys.size();
+        }
+
+        String key(int channel) {
+            return keys.get(channel);
+        }
+
+        // positions the reader so the next record is the first one at or after the given time
+        void seek(long epochNanos) throws IOException {
+            int low = 0;
+            int high = indexTimestamps.length - 1;
+            int entry = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] <= epochNanos) {
+                    entry = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (entry < 0) {
+                openSegment(0, 0);
+                return;
+            }
+            openSegment(indexSegments[entry], indexOffsets[entry]);
+            // at most one index interval of records to skip
+            while (segment != null) {
+                int position = segment.position();
+                int segmentBefore = segmentNumber;
+                if (!next()) {
+                    return;
+                }
+                if (timestamp >= epochNanos) {
+                    openSegment(segmentBefore, position);
+                    return;
+                }
+            }
+        }
+
+        boolean next() throws IOException {
+            while (segment != null) {
+                if (segment.remaining() >= HEADER_SIZE) {
+                    int start = segment.position();
+                    int length = segment.getInt();
+                    if (length >= HEADER_SIZE && length - 4 <= segment.remaining()) {
+                        timestamp = segment.getLong();
+                        stamp = segment.getLong();
+                        channel = segment.getInt();
+                        type = TelepathyAPI.Type.forByte(segment.get());
+                        if (type == TelepathyAPI.Type.STRING) {
+                            byte[] bytes = new byte[length - HEADER_SIZE];
+                            segment.get(bytes);
+                            text = new String(bytes, StandardCharsets.UTF_8);
+                            bits = 0;
+                        } else {
+                            text = null;
+                            bits = segment.getLong();
+                        }
+                        return true;
+                    }
+                    segment.position(start);
+                }
+                if (!openSegment(segmentNumber + 1, 0)) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        private boolean openSegment(int number, int offset) throws IOException {
+            Path path = segmentPath(directory, number);
+            if (!Files.exists(path)) {
+                segment = null;
+                return false;
+            }
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                segment = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+            segment.position(offset);
+            segmentNumber = number;
+            return true;
+        }
+
+        // epoch nanos the record was received at
+        long timestamp() {
+            return timestamp;
+        }
+
+        // epoch nanos of the server's stamp, or the receive time if it didn't stamp the value
+        long stamp() {
+            return stamp;
+        }
+
+        int channel() {
+            return channel;
+        }
+
+        String key() {
+            return keys.get(channel);
+        }
+
+        TelepathyAPI.Type type() {
+            return type;
+        }
+
+        double doubleValue() {
+            return type == TelepathyAPI.Type.FLOAT || type == TelepathyAPI.Type.DOUBLE ? Double.longBitsToDouble(bits) : bits;
+        }
+
+        long longValue() {
+            return type == TelepathyAPI.Type.FLOAT || type == TelepathyAPI.Type.DOUBLE ? (long) Double.longBitsToDouble(bits) : bits;
+        }
+
+        // the value as Message.valueString() would show it
+        String stringValue() {
+            switch (type) {
+                case STRING:
+                    return text;
+                case CHAR:
+                    return String.valueOf((char) bits);
+                case FLOAT:
+                    return Float.toString((float) Double.longBitsToDouble(bits));
+                case DOUBLE:
+                    return Double.toString(Double.longBitsToDouble(bits));
+                default:
+                    return Long.toString(bits);
+            }
+        }
+
+        @Override
+        public void close() {
+            segment = null;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming decoder for the Telepathy wire format.
+ * <p>
+ * Every 0x00 byte in the stream may be the start of a packet, so the decoder tracks one candidate
+ * per 0x00 byte, exactly like the old List&lt;List&lt;Byte&gt;&gt; scanner did. Instead of re-running
+ * {@link TelepathyAPI#validatePacket(java.util.List)} over every candidate on every byte, each
+ * candidate carries a small parse state that is advanced once per byte. Candidates share a single
+ * reusable byte window, and complete packets are handed out as a view into that window.
+ */
+class FrameDecoder {
+
+    @FunctionalInterface
+    interface FrameHandler {
+
+        // frame contains the packet without its 0x00 header, between position() and limit().
+        // the buffer is only valid for the duration of the call.
+        void onFrame(ByteBuffer frame);
+    }
+
+    // a candidate that has seen this many 0x00 bytes (including its own header) without validating is discarded
+    static final int MAX_CANDIDATE_ZEROS = 20;
+
+    private static final byte STATE_KEY = 0;
+    private static final byte STATE_LENGTH = 1;
+    private static final byte STATE_VALUE = 2;
+    private static final byte STATE_COMPLETE = 3;
+    private static final byte STATE_DEAD = 4;
+
+    // at most MAX_CANDIDATE_ZEROS candidates survive a check, plus the one opened by the current byte
+    private static final int MAX_CANDIDATES = MAX_CANDIDATE_ZEROS + 1;
+
+    private final FrameHandler handler;
+
+    private byte[] window;
+    private ByteBuffer frameView;
+    private int windowLength;
+
+    // total number of 0x00 bytes seen; candidate i was opened by the zeroIndex[i]th one
+    private long zeros;
+
+    private int candidates;
+    private final int[] start = new int[MAX_CANDIDATES];
+    private final long[] zeroIndex = new long[MAX_CANDIDATES];
+    private final byte[] state = new byte[MAX_CANDIDATES];
+    private final byte[] type = new byte[MAX_CANDIDATES];
+    private final int[] progress = new int[MAX_CANDIDATES];
+    private final int[] valueLength = new int[MAX_CANDIDATES];
+    // whether the candidate got as far as a key and a type, so isn't just a 0x00 inside a value
+    private final boolean[] headed = new boolean[MAX_CANDIDATES];
+
+    private long frames;
+    private long rejected;
+
+    FrameDecoder(FrameHandler handler) {
+        this(handler, 1024);
+    }
+
+    FrameDecoder(FrameHandler handler, int initialWindowSize) {
+        this.handler = handler;
+        window = new byte[Math.max(16, initialWindowSize)];
+        frameView = ByteBuffer.wrap(window);
+    }
+
+    // packets passed to the handler
+    long frames() {
+        return frames;
+    }
+
+    // candidates with a plausible key and type that were dropped without validating, i.e. packets
+    // that validatePacket would reject
+    long rejected() {
+        return rejected;
+    }
+
+    void feed(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            feed(bytes[i]);
+        }
+    }
+
+    void feed(ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            feed(bytes.get());
+        }
+    }
+
+    void feed(byte b) {
+        int opened = candidates;
+        if (b == 0) {
+            zeros++;
+            open();
+        }
+        if (candidates == 0) {
+            // nothing can use this byte, so there is no need to keep it
+            return;
+        }
+        append(b);
+        for (int i = 0; i < opened; i++) {
+            advance(i, b);
+        }
+        check();
+    }
+
+    void reset() {
+        candidates = 0;
+        windowLength = 0;
+    }
+
+    private void open() {
+        int i = candidates++;
+        start[i] = windowLength;
+        zeroIndex[i] = zeros;
+        state[i] = STATE_KEY;
+        progress[i] = 0;
+        valueLength[i] = 0;
+        headed[i] = false;
+    }
+
+    private void append(byte b) {
+        if (windowLength == window.length) {
+            int discard = start[0];
+            if (discard > window.length / 2) {
+                // everything before the oldest candidate is unreachable, slide it out
+                System.arraycopy(window, discard, window, 0, windowLength - discard);
+                windowLength -= discard;
+                for (int i = 0; i < candidates; i++) {
+                    start[i] -= discard;
+                }
+            } else {
+                byte[] grown = new byte[window.length * 2];
+                System.arraycopy(window, 0, grown, 0, windowLength);
+                window = grown;
+                frameView = ByteBuffer.wrap(window);
+            }
+        }
+        window[windowLength++] = b;
+    }
+
+    private void advance(int i, byte b) {
+        switch (state[i]) {
+            case STATE_KEY:
+                if (isTextByte(b)) {
+                    progress[i]++;
+                } else if (progress[i] == 0 || b > 7) {
+                    // empty key or invalid type
+                    state[i] = STATE_DEAD;
+                } else {
+                    type[i] = b;
+                    headed[i] = true;
+                    state[i] = STATE_LENGTH;
+                    progress[i] = 0;
+                }
+                break;
+            case STATE_LENGTH:
+                valueLength[i] = (valueLength[i] << 8) | (b & 0xff);
+                if (++progress[i] == 4) {
+                    progress[i] = 0;
+                    if (valueLength[i] < 0) {
+                        state[i] = STATE_DEAD;
+                    } else if (valueLength[i] == 0) {
+                        state[i] = STATE_COMPLETE;
+                    } else {
+                        state[i] = STATE_VALUE;
+                    }
+                }
+                break;
+            case STATE_VALUE:
+                if (type[i] == TelepathyAPI.Type.STRING.typeKey && !isTextByte(b)) {
+                    // invalid characters
+                    state[i] = STATE_DEAD;
+                } else if (++progress[i] == valueLength[i]) {
+                    state[i] = STATE_COMPLETE;
+                }
+                break;
+            case STATE_COMPLETE:
+                // value is longer than its declared length
+                state[i] = STATE_DEAD;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void check() {
+        int kept = 0;
+        for (int i = 0; i < candidates; i++) {
+            // the newest candidate is never checked, just like the last packet in the old scanner
+            if (zeroIndex[i] != zeros) {
+                if (state[i] == STATE_COMPLETE) {
+                    frames++;
+                    frameView.limit(windowLength).position(start[i] + 1);
+                    handler.onFrame(frameView);
+                    continue;
+                }
+                if (zeros - zeroIndex[i] + 1 >= MAX_CANDIDATE_ZEROS) {
+                    if (headed[i]) {
+                        rejected++;
+                    }
+                    continue;
+                }
+            }
+            if (state[i] == STATE_DEAD) {
+                // can never validate, so it has no observable effect
+                if (headed[i]) {
+                    rejected++;
+                }
+                continue;
+            }
+            if (kept != i) {
+                start[kept] = start[i];
+                zeroIndex[kept] = zeroIndex[i];
+                state[kept] = state[i];
+                type[kept] = type[i];
+                progress[kept] = progress[i];
+                valueLength[kept] = valueLength[i];
+                headed[kept] = headed[i];
+            }
+            kept++;
+        }
+        candidates = kept;
+        if (candidates == 0) {
+            windowLength = 0;
+        }
+    }
+
+    // printable ASCII or \t \n \v \f \r; anything else ends a key and is invalid in a STRING value
+    static boolean isTextByte(byte b) {
+        return b >= 32 || (b >= 9 && b <= 13);
+    }
+}
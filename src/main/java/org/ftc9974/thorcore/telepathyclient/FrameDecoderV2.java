@@ -0,0 +1,171 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming decoder for {@link ProtocolV2} frames.
+ * <p>
+ * There is only ever one candidate frame: the one starting at the first MAGIC byte in the buffer.
+ * Its varint length says exactly where it ends, so it is checked once, when its last byte arrives.
+ * Bytes before a MAGIC byte (keep-alives, garbage) are skipped, and a frame with a bad length or CRC
+ * is dropped by skipping its MAGIC byte and looking for the next one.
+ */
+class FrameDecoderV2 {
+
+    @FunctionalInterface
+    interface FrameHandler {
+
+        // payload holds the frame's payload, without its type byte, between position() and limit().
+        // the buffer is only valid for the duration of the call.
+        void onFrame(byte type, ByteBuffer payload);
+    }
+
+    private final FrameHandler handler;
+    private final CRC32C crc = new CRC32C();
+
+    private byte[] buffer;
+    private ByteBuffer payloadView;
+    private int length;
+
+    private long frames;
+    private long rejected;
+    private long inflateNanos;
+
+    FrameDecoderV2(FrameHandler handler) {
+        this(handler, 1024);
+    }
+
+    FrameDecoderV2(FrameHandler handler, int initialBufferSize) {
+        this.handler = handler;
+        buffer = new byte[Math.max(16, initialBufferSize)];
+        payloadView = ByteBuffer.wrap(buffer);
+    }
+
+    // frames passed to the handler
+    long frames() {
+        return frames;
+    }
+
+    // frames dropped because of a bad length or CRC
+    long rejected() {
+        return rejected;
+    }
+
+    // time spent in Inflater.inflate, not counting the decoding of what it produced
+    long inflateNanos() {
+        return inflateNanos;
+    }
+
+    void feed(byte[] bytes, int offset, int count) {
+        if (length + count > buffer.length) {
+            grow(length + count);
+        }
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+        parse();
+    }
+
+    void feed(ByteBuffer bytes) {
+        int count = bytes.remaining();
+        if (bytes.hasArray()) {
+            feed(bytes.array(), bytes.arrayOffset() + bytes.position(), count);
+            bytes.position(bytes.limit());
+        } else {
+            byte[] copy = new byte[count];
+            bytes.get(copy);
+            feed(copy, 0, count);
+        }
+    }
+
+    // inflates whatever the inflater can produce straight into the buffer and decodes it, so
+    // compressed input doesn't need an intermediate copy. returns the number of bytes inflated
+    int inflate(Inflater inflater) throws DataFormatException {
+        int total = 0;
+        while (true) {
+            if (buffer.length - length < 1024) {
+                grow(length + 1024);
+            }
+            long start = System.nanoTime();
+            int inflated = inflater.inflate(buffer, length, buffer.length - length);
+            inflateNanos += System.nanoTime() - start;
+            if (inflated == 0) {
+                if (inflater.needsDictionary()) {
+                    throw new DataFormatException("preset dictionaries are not supported");
+                }
+                return total;
+            }
+            length += inflated;
+            total += inflated;
+            parse();
+        }
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    private void grow(int capacity) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, capacity)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        buffer = grown;
+        payloadView = ByteBuffer.wrap(buffer);
+    }
+
+    private void parse() {
+        int position = 0;
+        while (true) {
+            while (position < length && buffer[position] != ProtocolV2.MAGIC) {
+                position++;
+            }
+            if (length - position < 2) {
+                break;
+            }
+            if (buffer[position + 1] != ProtocolV2.VERSION) {
+                rejected++;
+                position++;
+                continue;
+            }
+            long varint = ProtocolV2.getVarint(buffer, position + 2, length);
+            if (varint < 0) {
+                if (length - position >= ProtocolV2.MAX_HEADER_LENGTH) {
+                    // more than 5 continuation bytes
+                    rejected++;
+                    position++;
+                    continue;
+                }
+                break;
+            }
+            int frameLength = (int) varint;
+            if (frameLength < 1 || frameLength > ProtocolV2.MAX_FRAME_LENGTH) {
+                rejected++;
+                position++;
+                continue;
+            }
+            int body = position + 2 + (int) (varint >>> 32);
+            int end = body + frameLength + ProtocolV2.CRC_LENGTH;
+            if (end > length) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer, position + 1, body + frameLength - position - 1);
+            int expected = (buffer[end - 4] & 0xFF) << 24 | (buffer[end - 3] & 0xFF) << 16
+                    | (buffer[end - 2] & 0xFF) << 8 | (buffer[end - 1] & 0xFF);
+            if ((int) crc.getValue() != expected) {
+                rejected++;
+                position++;
+                continue;
+            }
+            frames++;
+            payloadView.limit(body + frameLength).position(body + 1);
+            handler.onFrame(buffer[body], payloadView);
+            position = end;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, length - position);
+            length -= position;
+        }
+    }
+}
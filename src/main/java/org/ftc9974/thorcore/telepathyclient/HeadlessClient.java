@@ -0,0 +1,402 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The client without a window, for soak tests and loggers: connects through {@link TelepathyAPI}
+ * and writes every message to a file or stdout.
+ * <p>
+ * Messages are formatted on the listener's thread into one buffer. The buffer is written when it
+ * fills up or when the listener has caught up with the socket, so under load every write carries
+ * many messages, and when the stream is quiet nothing waits in the buffer.
+ * <p>
+ * csv and ndjson write one line per message with its time in nanoseconds since the epoch (the
+ * server's timestamp if it sends them, otherwise when it was received), the key, the type and the
+ * value. binary writes the records of a {@link FlightRecorder} segment,
+ * [int length][long epoch nanos][int channel][byte type][value], with value 8 bytes (a double for
+ * FLOAT/DOUBLE, a long otherwise) or UTF-8 text for STRING. Before the first value of a channel
+ * comes a record of type -1 whose value is the channel's key.
+ * <p>
+ * When the server sends {@link TelepathyAPI#SEND_NANOS_KEY} (TestServer --timestamps), the latency
+ * from the server's flush to this listener is measured and its percentiles printed on exit.
+ */
+final class HeadlessClient implements TelepathyAPI.DataListener {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    static final byte BINARY_KEY = -1;
+
+    enum Format {
+        CSV,
+        NDJSON,
+        BINARY
+    }
+
+    private final Format format;
+    private final WritableByteChannel out;
+    // converts System.nanoTime() to nanoseconds since the epoch
+    private final long epochOffsetNanos;
+    private final long limit;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // guarded by this; only contended while closing
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final StringBuilder text = new StringBuilder();
+    // each channel's key, already quoted for the format. BINARY only notes that it was declared
+    private byte[][] keys = new byte[16][];
+    private long written;
+    private IOException error;
+    private int sendNanosChannel = -1;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private volatile TelepathyAPI.ListenerHandle handle;
+
+    HeadlessClient(Format format, WritableByteChannel out, long limit) {
+        this.format = format;
+        this.out = out;
+        this.limit = limit;
+        epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        if (format == Format.CSV) {
+            putAscii("time,key,type,value\n");
+        }
+    }
+
+    static int run(TelepathyAPI telepathy, ReconnectPolicy policy, Namespace ns) {
+        Format format = Format.valueOf(ns.getString("format").toUpperCase());
+        String output = ns.getString("output");
+        WritableByteChannel out;
+        try {
+            out = output.equals("-")
+                    ? new FileOutputStream(FileDescriptor.out).getChannel()
+                    : FileChannel.open(Paths.get(output), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Can't open " + output + ": " + e.getMessage());
+            return 1;
+        }
+        HeadlessClient client = new HeadlessClient(format, out, ns.getLong("count"));
+        client.attach(telepathy);
+        telepathy.addConnectionListener(new TelepathyAPI.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                System.err.println("Connected to " + telepathy);
+            }
+
+            @Override
+            public void onConnectFailed(IOException cause, long retryDelayMillis) {
+                System.err.printf("Connection failed (%s), retrying in %.1fs%n", cause.getMessage(), retryDelayMillis / 1e3);
+            }
+        });
+        telepathy.addDisconnectionListener(() -> System.err.println("Disconnected, reconnecting"));
+        String record = ns.getString("record");
+        try {
+            if (record != null) {
+                Path session = Launcher.recordingSession(record);
+                System.err.println("Recording to " + session);
+                telepathy.startRecording(session);
+            }
+            telepathy.start(policy);
+            double duration = ns.getDouble("duration");
+            long remaining = duration > 0 ? (long) (duration * 1e9) : Long.MAX_VALUE;
+            if (remaining > Launcher.DERIVED_INPUT_GRACE_NANOS && !client.await(Launcher.DERIVED_INPUT_GRACE_NANOS, TimeUnit.NANOSECONDS)) {
+                for (String warning : Launcher.derivedKeyWarnings(telepathy)) {
+                    System.err.println(warning);
+                }
+                remaining -= Launcher.DERIVED_INPUT_GRACE_NANOS;
+            }
+            client.await(remaining, TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            System.err.println("Can't record to " + record + ": " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (telepathy.serverTimestamps()) {
+                System.err.printf("Server clock %+.3f ms from this one, drifting %+.1f ppm%n",
+                        telepathy.clockOffsetNanos() / 1e6, telepathy.clockDriftPpm());
+            }
+            telepathy.shutdown();
+            long unrecorded = telepathy.stopRecording();
+            if (unrecorded > 0) {
+                System.err.println(unrecorded + " messages weren't recorded, the recorder fell behind");
+            }
+        }
+        return client.close();
+    }
+
+    // listens to telepathy, with its lag deciding when to write
+    void attach(TelepathyAPI telepathy) {
+        handle = telepathy.addNewMessageListener(this);
+    }
+
+    // true once --count messages were written or writing failed, false if timeout ran out first
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    @Override
+    public synchronized void onNewMessage(TelepathyAPI.Message<?> message) {
+        if (error != null || done.getCount() == 0) {
+            return;
+        }
+        switch (format) {
+            case CSV:
+                csv(message);
+                break;
+            case NDJSON:
+                ndjson(message);
+                break;
+            case BINARY:
+                binary(message);
+                break;
+        }
+        if (message.channel == sendNanosChannel) {
+            latency.record(message.receivedNanos - message.longValue);
+        }
+        written++;
+        boolean finished = limit > 0 && written >= limit;
+        TelepathyAPI.ListenerHandle handle = this.handle;
+        // caught up with the socket, so this is a good moment to write
+        if (finished || buffer.position() >= BUFFER_SIZE / 2 || handle == null || handle.lag() == 0) {
+            flush();
+        }
+        if (finished || error != null) {
+            done.countDown();
+        }
+    }
+
+    private void csv(TelepathyAPI.Message<?> message) {
+        byte[] key = key(message);
+        text.setLength(0);
+        text.append(message.timestampNanos + epochOffsetNanos).append(',');
+        putAscii(text);
+        ensureRemaining(key.length + 64);
+        buffer.put(key).put((byte) ',');
+        putAscii(message.type.name());
+        buffer.put((byte) ',');
+        if (message.type == TelepathyAPI.Type.STRING || message.type == TelepathyAPI.Type.CHAR) {
+            putUtf8(csvQuote(message.valueString()));
+        } else {
+            text.setLength(0);
+            appendNumber(text, message);
+            putAscii(text);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private void ndjson(TelepathyAPI.Message<?> message) {
+        byte[] key = key(message);
+        text.setLength(0);
+        text.append("{\"time\":").append(message.timestampNanos + epochOffsetNanos).append(",\"key\":");
+        putAscii(text);
+        ensureRemaining(key.length + 64);
+        buffer.put(key);
+        putAscii(",\"type\":\"");
+        putAscii(message.type.name());
+        putAscii("\",\"value\":");
+        if (message.type == TelepathyAPI.Type.STRING || message.type == TelepathyAPI.Type.CHAR) {
+            putUtf8(jsonQuote(message.valueString()));
+        } else if (Double.isNaN(message.doubleValue) || Double.isInfinite(message.doubleValue)) {
+            // JSON has no NaN or infinity
+            putAscii("null");
+        } else {
+            text.setLength(0);
+            appendNumber(text, message);
+            putAscii(text);
+        }
+        putAscii("}\n");
+    }
+
+    private void binary(TelepathyAPI.Message<?> message) {
+        int channel = message.channel;
+        if (channel >= keys.length || keys[channel] == null) {
+            byte[] key = message.key.getBytes(StandardCharsets.UTF_8);
+            record(message.timestampNanos, channel, BINARY_KEY, key.length);
+            buffer.put(key);
+            key(message);
+        }
+        if (message.type == TelepathyAPI.Type.STRING) {
+            byte[] value = String.valueOf(message.getValue()).getBytes(StandardCharsets.UTF_8);
+            record(message.timestampNanos, channel, message.type.typeKey, value.length);
+            buffer.put(value);
+        } else {
+            record(message.timestampNanos, channel, message.type.typeKey, 8);
+            if (message.type == TelepathyAPI.Type.FLOAT || message.type == TelepathyAPI.Type.DOUBLE) {
+                buffer.putDouble(message.doubleValue);
+            } else {
+                buffer.putLong(message.longValue);
+            }
+        }
+    }
+
+    private void record(long timestampNanos, int channel, byte type, int valueLength) {
+        ensureRemaining(4 + 8 + 4 + 1 + valueLength);
+        buffer.putInt(4 + 8 + 4 + 1 + valueLength)
+                .putLong(timestampNanos + epochOffsetNanos)
+                .putInt(channel)
+                .put(type);
+    }
+
+    // the key of message's channel as this format writes it
+    private byte[] key(TelepathyAPI.Message<?> message) {
+        int channel = message.channel;
+        if (channel >= keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(channel + 1, keys.length * 2));
+        }
+        byte[] key = keys[channel];
+        if (key == null) {
+            if (message.key.equals(TelepathyAPI.SEND_NANOS_KEY)) {
+                sendNanosChannel = channel;
+            }
+            String quoted = format == Format.CSV ? csvQuote(message.key) : format == Format.NDJSON ? jsonQuote(message.key) : "";
+            key = quoted.getBytes(StandardCharsets.UTF_8);
+            keys[channel] = key;
+        }
+        return key;
+    }
+
+    private static void appendNumber(StringBuilder text, TelepathyAPI.Message<?> message) {
+        switch (message.type) {
+            case FLOAT:
+                text.append((float) message.doubleValue);
+                break;
+            case DOUBLE:
+                text.append(message.doubleValue);
+                break;
+            default:
+                text.append(message.longValue);
+                break;
+        }
+    }
+
+    static String csvQuote(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+
+    static String jsonQuote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private void putAscii(CharSequence chars) {
+        int length = chars.length();
+        ensureRemaining(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) chars.charAt(i));
+        }
+    }
+
+    private void putUtf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(bytes.length + 2);
+        buffer.put(bytes);
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        flush();
+        if (buffer.remaining() < bytes) {
+            // a record larger than the whole buffer
+            buffer = ByteBuffer.allocate(buffer.position() + bytes);
+        }
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+                System.err.println("Write failed: " + e.getMessage());
+            }
+        }
+        buffer.clear();
+    }
+
+    // returns the exit code: 0, or 1 if writing failed
+    int close() {
+        TelepathyAPI.ListenerHandle handle = this.handle;
+        if (handle != null) {
+            handle.remove();
+        }
+        synchronized (this) {
+            // the listener may still be running; it writes nothing more once done is counted down
+            done.countDown();
+            flush();
+            try {
+                out.close();
+            } catch (IOException e) {
+                error = error == null ? e : error;
+            }
+            System.err.println(written + " messages written");
+            String latency = latencySummary();
+            if (latency != null) {
+                System.err.println(latency);
+            }
+            return error == null ? 0 : 1;
+        }
+    }
+
+    // the percentiles of the SEND_NANOS_KEY latencies, or null if the server sent none
+    synchronized String latencySummary() {
+        if (latency.count() == 0) {
+            return null;
+        }
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        latency.interval(new long[LatencyHistogram.BUCKETS], counts);
+        return String.format("Latency from %d timestamps: p50 %.1fus, p90 %.1fus, p99 %.1fus, p99.9 %.1fus, max %.1fus",
+                latency.count(),
+                LatencyHistogram.percentile(counts, 0.5) / 1e3, LatencyHistogram.percentile(counts, 0.9) / 1e3,
+                LatencyHistogram.percentile(counts, 0.99) / 1e3, LatencyHistogram.percentile(counts, 0.999) / 1e3,
+                LatencyHistogram.percentile(counts, 1) / 1e3);
+    }
+}
@@ -0,0 +1,172 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * The {@link KeyPolicy} rules of one {@link TelepathyAPI}, and the per channel state they need.
+ * A key is matched against the rules once, on its first message after the rules change, so
+ * admitting a message is an array lookup and a comparison. Rules can be changed from any thread;
+ * everything else runs on the event loop.
+ */
+final class KeyPolicies {
+
+    private static final class Rule {
+
+        final String pattern;
+        final Pattern regex;
+        final KeyPolicy policy;
+
+        Rule(String pattern, KeyPolicy policy) {
+            this.pattern = pattern;
+            this.policy = policy;
+            // * matches anything, everything else literally
+            StringBuilder regex = new StringBuilder();
+            for (String part : pattern.split("\\*", -1)) {
+                if (regex.length() > 0) {
+                    regex.append(".*");
+                }
+                regex.append(Pattern.quote(part));
+            }
+            this.regex = Pattern.compile(regex.toString());
+        }
+    }
+
+    private final TelepathyEventLoop loop;
+    private final ChannelRegistry channels;
+    // where held messages go once their interval is up
+    private final Consumer<TelepathyAPI.Message<?>> deliver;
+
+    // the newest rule first
+    private final List<Rule> rules = new CopyOnWriteArrayList<>();
+    private final Set<String> keepEverySample = ConcurrentHashMap.newKeySet();
+    // bumped by every change, so the loop knows to match keys again
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // event loop only, indexed by channel. a null policy hasn't been matched yet
+    private int matchedGeneration;
+    private KeyPolicy[] policies = new KeyPolicy[16];
+    private long[] counts = new long[16];
+    private long[] lastDelivered = new long[16];
+    private TelepathyAPI.Message<?>[] held = new TelepathyAPI.Message<?>[16];
+    private boolean[] flushScheduled = new boolean[16];
+    // decimated, or replaced by a newer message while held
+    private volatile long dropped;
+
+    KeyPolicies(TelepathyEventLoop loop, ChannelRegistry channels, Consumer<TelepathyAPI.Message<?>> deliver) {
+        this.loop = loop;
+        this.channels = channels;
+        this.deliver = deliver;
+    }
+
+    // replaces the rule with the same pattern, if any. the newest matching rule wins
+    synchronized void set(String pattern, KeyPolicy policy) {
+        rules.removeIf(rule -> rule.pattern.equals(pattern));
+        rules.add(0, new Rule(pattern, policy));
+        generation.incrementAndGet();
+    }
+
+    synchronized void remove(String pattern) {
+        if (rules.removeIf(rule -> rule.pattern.equals(pattern))) {
+            generation.incrementAndGet();
+        }
+    }
+
+    void keepEverySample(String key, boolean keep) {
+        if (keep ? keepEverySample.add(key) : keepEverySample.remove(key)) {
+            generation.incrementAndGet();
+        }
+    }
+
+    // the policy the rules give key, ignoring keepEverySample
+    KeyPolicy policy(String key) {
+        for (Rule rule : rules) {
+            if (rule.regex.matcher(key).matches()) {
+                return rule.policy;
+            }
+        }
+        return KeyPolicy.PASS;
+    }
+
+    // event loop: true if the message should be delivered now. a LATEST key's message that comes
+    // too soon is held and delivered later instead
+    boolean admit(TelepathyAPI.Message<?> message, long now) {
+        int channel = message.channel;
+        KeyPolicy policy = policy(channel);
+        long count = counts[channel]++;
+        switch (policy.kind) {
+            case LATEST:
+                if (count > 0 && now - lastDelivered[channel] < policy.intervalNanos) {
+                    if (held[channel] != null) {
+                        dropped++;
+                    }
+                    held[channel] = message;
+                    if (!flushScheduled[channel]) {
+                        flushScheduled[channel] = true;
+                        loop.schedule(() -> flush(channel), lastDelivered[channel] + policy.intervalNanos - now, TimeUnit.NANOSECONDS);
+                    }
+                    return false;
+                }
+                break;
+            case DECIMATE:
+                if (count % policy.every != 0) {
+                    dropped++;
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        // a message held under an earlier LATEST policy is older than this one
+        if (held[channel] != null) {
+            held[channel] = null;
+            dropped++;
+        }
+        lastDelivered[channel] = now;
+        return true;
+    }
+
+    long dropped() {
+        return dropped;
+    }
+
+    private KeyPolicy policy(int channel) {
+        int generation = this.generation.get();
+        if (generation != matchedGeneration) {
+            matchedGeneration = generation;
+            Arrays.fill(policies, null);
+        }
+        if (channel >= policies.length) {
+            int length = Math.max(channel + 1, policies.length * 2);
+            policies = Arrays.copyOf(policies, length);
+            counts = Arrays.copyOf(counts, length);
+            lastDelivered = Arrays.copyOf(lastDelivered, length);
+            held = Arrays.copyOf(held, length);
+            flushScheduled = Arrays.copyOf(flushScheduled, length);
+        }
+        KeyPolicy policy = policies[channel];
+        if (policy == null) {
+            String key = channels.key(channel);
+            policy = keepEverySample.contains(key) ? KeyPolicy.PASS : policy(key);
+            policies[channel] = policy;
+        }
+        return policy;
+    }
+
+    private void flush(int channel) {
+        flushScheduled[channel] = false;
+        TelepathyAPI.Message<?> message = held[channel];
+        if (message != null) {
+            held[channel] = null;
+            lastDelivered[channel] = System.nanoTime();
+            deliver.accept(message);
+        }
+    }
+}
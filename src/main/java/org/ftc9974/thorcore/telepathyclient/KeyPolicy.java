@@ -0,0 +1,103 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.Objects;
+
+/**
+ * What the client does with the messages of a key before its listeners see them, see
+ * {@link TelepathyAPI#setKeyPolicy(String, KeyPolicy)}.
+ * <ul>
+ * <li>{@link #PASS} delivers every message.</li>
+ * <li>{@link #latest(double)} delivers at most maxRate messages a second. A message that arrives too
+ * soon is held, replaced by anything newer, and delivered when the interval is up, so the latest
+ * value always gets through.</li>
+ * <li>{@link #decimate(int)} delivers every nth message and drops the rest.</li>
+ * </ul>
+ */
+public final class KeyPolicy {
+
+    enum Kind {
+        PASS,
+        LATEST,
+        DECIMATE
+    }
+
+    public static final KeyPolicy PASS = new KeyPolicy(Kind.PASS, 0, 1, "pass");
+
+    final Kind kind;
+    // LATEST only
+    final long intervalNanos;
+    // DECIMATE only
+    final int every;
+    private final String spec;
+
+    private KeyPolicy(Kind kind, long intervalNanos, int every, String spec) {
+        this.kind = kind;
+        this.intervalNanos = intervalNanos;
+        this.every = every;
+        this.spec = spec;
+    }
+
+    public static KeyPolicy latest(double maxRate) {
+        if (!(maxRate > 0)) {
+            throw new IllegalArgumentException("maxRate must be positive");
+        }
+        return new KeyPolicy(Kind.LATEST, (long) Math.ceil(1e9 / maxRate), 1, "latest:" + format(maxRate));
+    }
+
+    public static KeyPolicy decimate(int every) {
+        if (every < 1) {
+            throw new IllegalArgumentException("every must be at least 1");
+        }
+        return every == 1 ? PASS : new KeyPolicy(Kind.DECIMATE, 0, every, "decimate:" + every);
+    }
+
+    // "pass", "latest:RATE" or "decimate:N", the format toString() returns
+    public static KeyPolicy parse(String spec) {
+        String[] parts = spec.trim().split(":", 2);
+        try {
+            switch (parts[0]) {
+                case "pass":
+                    if (parts.length == 1) {
+                        return PASS;
+                    }
+                    break;
+                case "latest":
+                    if (parts.length == 2) {
+                        return latest(Double.parseDouble(parts[1]));
+                    }
+                    break;
+                case "decimate":
+                    if (parts.length == 2) {
+                        return decimate(Integer.parseInt(parts[1]));
+                    }
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("expected pass, latest:RATE or decimate:N, not " + spec);
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof KeyPolicy)) {
+            return false;
+        }
+        KeyPolicy other = (KeyPolicy) o;
+        return kind == other.kind && intervalNanos == other.intervalNanos && every == other.every;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, intervalNanos, every);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
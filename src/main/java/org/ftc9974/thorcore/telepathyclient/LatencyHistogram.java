@@ -0,0 +1,82 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of nanosecond durations, in the style of HdrHistogram: every power of two is
+ * split into SUB_BUCKETS linear buckets, so any value is recorded with at most 12.5% error and the
+ * whole range of a long fits in a fixed array. Recording is one atomic increment, never allocates
+ * and is safe from any number of threads.
+ * <p>
+ * Readers look at the counts recorded since their previous {@link #interval(long[], long[])} call,
+ * so the same histogram gives recent percentiles instead of ones dominated by the whole run.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    // fills interval with the counts recorded since last was filled in by the previous call, and
+    // updates last. both arrays are BUCKETS long
+    void interval(long[] last, long[] interval) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            interval[i] = count - last[i];
+            last[i] = count;
+        }
+    }
+
+    // the value below which the given fraction of the counted durations fall, or 0 if there are none
+    static long percentile(long[] counts, double fraction) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // the largest value that lands in bucket index
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
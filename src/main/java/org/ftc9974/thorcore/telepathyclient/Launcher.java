@@ -0,0 +1,198 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentGroup;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Entry point of the jar. Parses the command line, sets up the connection and starts either the
+ * window ({@link Main}) or, with --headless, {@link HeadlessClient}. Nothing here refers to JavaFX,
+ * and Main is only loaded for the window, so headless runs don't need the JavaFX SDK.
+ */
+public class Launcher {
+
+    static final String VERSION = "0.2.0";
+    // how long after connecting a derived key's missing inputs are reported
+    static final long DERIVED_INPUT_GRACE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("Telepathy Client").build()
+                .defaultHelp(true)
+                .description("Client for ThorCore's Telepathy. Serves as a more advanced form of telemetry.")
+                .version(VERSION);
+        parser.addArgument("-d", "--retry-delay")
+                .help("Longest delay (in seconds) between connection attempts. Retries start after 0.25s and back off up to this.")
+                .dest("rd")
+                .setDefault(5d)
+                .type(Double.class);
+        parser.addArgument("--connect-timeout")
+                .help("Give up on a connection attempt after this many seconds.")
+                .dest("ct")
+                .setDefault(2d)
+                .type(Double.class);
+        parser.addArgument("-a", "--ip-address")
+                .help("IP Address to connect to.")
+                .dest("ip")
+                .setDefault("192.168.49.1")
+                .type(String.class);
+        parser.addArgument("-p", "--port")
+                .help("Port to connect to.")
+                .dest("port")
+                .setDefault(6387)
+                .type(Integer.class);
+        parser.addArgument("--legacy")
+                .help("Don't offer protocol v2 when connecting, for servers that don't tolerate it.")
+                .dest("legacy")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--compress")
+                .help("Ask a protocol v2 server to deflate the stream. Worth it for STRING heavy telemetry on a slow link.")
+                .dest("compress")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--missed-pongs")
+                .help("Disconnect after this many heartbeats (100 ms apart) go unanswered. Only protocol v2 servers answer heartbeats.")
+                .dest("missedPongs")
+                .setDefault(20)
+                .type(Integer.class);
+        parser.addArgument("--background-rate")
+                .help("Ask the server to send keys that are neither in view nor graphed only this many times a second. 0 streams every key at full rate. Ignored when recording, and by servers without subscriptions.")
+                .dest("br")
+                .setDefault(1d)
+                .type(Double.class);
+        parser.addArgument("--key-policy")
+                .help("PATTERN=POLICY, where * in PATTERN matches anything and POLICY is pass, latest:RATE (at most RATE values a second, always including the newest) or decimate:N (every Nth value). Can be repeated; later ones win. Graphed keys keep every value.")
+                .dest("keyPolicies")
+                .metavar("PATTERN=POLICY")
+                .action(Arguments.append());
+        parser.addArgument("--derive")
+                .help("KEY=EXPRESSION: show KEY, computed from other keys whenever one of them changes, e.g. \"Error=Target - Position\" or \"Speed=hypot(VelocityX, VelocityY)\". EXPRESSION has + - * / % ^, parentheses and the functions of java.lang.Math. Keys with other characters than letters, digits and _ . $ go in double quotes, e.g. \"Lift=\\\"Lift/Left\\\" - \\\"Lift/Right\\\"\". Can be repeated.")
+                .dest("derive")
+                .metavar("KEY=EXPRESSION")
+                .action(Arguments.append());
+        parser.addArgument("--history-samples")
+                .help("Number of samples kept per numeric key for graphing.")
+                .dest("hs")
+                .setDefault(5000)
+                .type(Integer.class);
+        parser.addArgument("--history-seconds")
+                .help("Only keep samples from the last this many seconds for graphing. 0 keeps as many as --history-samples allows.")
+                .dest("ht")
+                .setDefault(0d)
+                .type(Double.class);
+        parser.addArgument("--stats-window")
+                .help("Show the min, max, mean, standard deviation and rate of every numeric key over the last this many seconds. 0 hides them.")
+                .dest("sw")
+                .setDefault(10d)
+                .type(Double.class);
+        parser.addArgument("-r", "--record")
+                .help("Record every received message into a new session directory inside this directory.")
+                .dest("record")
+                .type(String.class);
+        ArgumentGroup headless = parser.addArgumentGroup("headless mode")
+                .description("Stream telemetry without a window. JavaFX isn't needed on the classpath.");
+        headless.addArgument("--headless")
+                .help("Write every message to --output instead of opening the window.")
+                .dest("headless")
+                .action(Arguments.storeTrue());
+        headless.addArgument("-f", "--format")
+                .help("csv and ndjson have one line per message: time (nanoseconds since the epoch, from the server if it stamps values), key, type and value. binary is documented in HeadlessClient.")
+                .dest("format")
+                .choices("csv", "ndjson", "binary")
+                .setDefault("csv");
+        headless.addArgument("-o", "--output")
+                .help("File to write to, replacing it. - writes to stdout.")
+                .dest("output")
+                .setDefault("-");
+        headless.addArgument("--count")
+                .help("Exit after this many messages. 0 runs until killed.")
+                .dest("count")
+                .setDefault(0L)
+                .type(Long.class);
+        headless.addArgument("--duration")
+                .help("Exit after this many seconds. 0 runs until killed.")
+                .dest("duration")
+                .setDefault(0d)
+                .type(Double.class);
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+            return;
+        }
+        long maxDelay = (long) (ns.getDouble("rd") * 1000);
+        ReconnectPolicy policy = new ReconnectPolicy(Math.min(250, maxDelay), maxDelay,
+                (long) (ns.getDouble("ct") * 1000), TimeUnit.MILLISECONDS);
+        TelepathyAPI telepathy = new TelepathyAPI(ns.getString("ip"), ns.getInt("port"));
+        telepathy.setRetainRaw(false);
+        telepathy.setNegotiate(!ns.getBoolean("legacy"));
+        telepathy.setCompression(ns.getBoolean("compress"));
+        telepathy.setMissedPongLimit(ns.getInt("missedPongs"));
+        List<String> keyPolicies = ns.getList("keyPolicies");
+        if (keyPolicies != null) {
+            for (String rule : keyPolicies) {
+                int separator = rule.lastIndexOf('=');
+                try {
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("expected PATTERN=POLICY");
+                    }
+                    telepathy.setKeyPolicy(rule.substring(0, separator), KeyPolicy.parse(rule.substring(separator + 1)));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("--key-policy " + rule + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        List<String> derivedKeys = ns.getList("derive");
+        if (derivedKeys != null) {
+            for (String definition : derivedKeys) {
+                // keys can't be empty, and expressions have no '='
+                int separator = definition.indexOf('=', 1);
+                try {
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("expected KEY=EXPRESSION");
+                    }
+                    telepathy.deriveKey(definition.substring(0, separator).trim(), definition.substring(separator + 1));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("--derive " + definition + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        if (ns.getBoolean("headless")) {
+            System.exit(HeadlessClient.run(telepathy, policy, ns));
+        }
+        telepathy.setStatisticsWindow((long) (ns.getDouble("sw") * TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+        Main.launch(telepathy, policy, ns, args);
+    }
+
+    // one line for each input of a derived key that hasn't had a value, for when the user expects
+    // the key to show up by now
+    static List<String> derivedKeyWarnings(TelepathyAPI telepathy) {
+        List<String> warnings = new ArrayList<>();
+        for (Map.Entry<String, List<String>> missing : telepathy.missingDerivedInputs().entrySet()) {
+            for (String input : missing.getValue()) {
+                warnings.add("Derived key " + missing.getKey() + " is waiting for a value of \"" + input + "\", which hasn't been received."
+                        + " Check its spelling, and quote keys with other characters than letters, digits and _ . $");
+            }
+        }
+        return warnings;
+    }
+
+    // a new session directory inside directory, named after the current time
+    static Path recordingSession(String directory) {
+        return Paths.get(directory, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+    }
+}
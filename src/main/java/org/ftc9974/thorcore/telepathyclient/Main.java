@@ -1,51 +1,53 @@
 package org.ftc9974.thorcore.telepathyclient;
 
-import javafx.animation.Animation;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.beans.value.ObservableValue;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.geometry.Insets;
 import javafx.geometry.Pos;
-import javafx.scene.Node;
 import javafx.scene.Scene;
-import javafx.scene.chart.*;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.layout.*;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.paint.Color;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
-import javafx.util.Duration;
-import net.sourceforge.argparse4j.ArgumentParsers;
-import net.sourceforge.argparse4j.inf.ArgumentParser;
-import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import org.slf4j.simple.SimpleLogger;
 import org.slf4j.simple.SimpleLoggerFactory;
 
 import javax.swing.text.TabExpander;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 
 public class Main extends Application {
 
     private static SimpleLogger logger;
 
-    private HashMap<String, Label> labels;
-    private HashMap<String, LineChart<Number, Number>> charts;
-    private HashMap<String, TelepathyAPI.Message> latestMessages;
+    // FX thread state, one row per key
+    private TelemetryTable table;
+
+    // written by the network thread, drained once per frame by uiPulse
+    private ChannelTable<TelepathyAPI.Message> pendingMessages;
+    private volatile boolean hasPendingMessages;
+    // every sample of every numeric key, bounded by HISTORY_SAMPLES and HISTORY_SECONDS
+    private ChannelTable<TimeSeriesBuffer> histories;
+    private AnimationTimer uiPulse;
+
+    @FXML
+    private TableView<TelemetryTable.Row> telemetryTable;
 
     @FXML
-    private GridPane telemetryContainer;
+    private TextField filterField;
 
+    // the filter field and the table
     @FXML
-    private ScrollPane scrollPane;
+    private VBox telemetryPane;
 
     @FXML
     private Label messageLabel;
@@ -56,24 +58,50 @@ public class Main extends Application {
     @FXML
     private Button connectButton;
 
-    private static double SECONDS_BETWEEN_RETRY;
+    // link latency, refreshed a few times a second by uiPulse
+    @FXML
+    private Label statusLabel;
+    private long lastStatusUpdate;
+
+    // F3 shows what the client is doing
+    @FXML
+    private Label metricsLabel;
+
+    private static ReconnectPolicy RECONNECT_POLICY;
     private static String IP_ADDRESS;
     private static int PORT;
+    private static int HISTORY_SAMPLES;
+    private static double HISTORY_SECONDS;
+    private static String RECORD_DIRECTORY;
+    // rate of the keys that are neither in view nor graphed, or 0 to stream every key at full rate
+    private static double BACKGROUND_RATE;
+
+    private static final long STATUS_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    // round trips above this, or jitter above a quarter of it, are shown as a degrading link
+    private static final long SLOW_ROUND_TRIP_NS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int METRICS_TOP_KEYS = 8;
 
-    private static String VERSION = "0.2.0";
+    // when the uiPulse first saw the connection up, and whether derived keys were checked since
+    private long connectedSince;
+    private boolean derivedKeysChecked;
 
-    private AtomicBoolean telepathyInitialized, connected;
-    private Timeline connectTimeline;
+    private static TelepathyAPI telepathy;
 
     @Override
     public void start(Stage stage) throws Exception {
         logger.info(String.format("IP address: %s", IP_ADDRESS));
         logger.info(String.format("Port: %d", PORT));
-        telepathyInitialized = new AtomicBoolean(false);
+        if (RECORD_DIRECTORY != null) {
+            Path session = Launcher.recordingSession(RECORD_DIRECTORY);
+            logger.info("Recording to {}", session);
+            telepathy.startRecording(session);
+        }
         stage.setOnCloseRequest(actionEvent -> {
             logger.info("Exiting");
-            if (telepathyInitialized.get()) {
-                TelepathyAPI.shutdown();
+            telepathy.shutdown();
+            long unrecorded = telepathy.stopRecording();
+            if (unrecorded > 0) {
+                logger.warn("{} messages weren't recorded, the recorder fell behind", unrecorded);
             }
             Platform.exit();
             System.exit(0);
@@ -82,323 +110,229 @@ public class Main extends Application {
         stage.setMinWidth(300);
         stage.setMinHeight(300);
         stage.setScene(new Scene(FXMLLoader.load(Objects.requireNonNull(getClass().getClassLoader().getResource("TelemetryScreen.fxml"))), 600, 400));
-        stage.setTitle("Telepathy Client (v" + VERSION + ")");
+        stage.setTitle("Telepathy Client (v" + Launcher.VERSION + ")");
         stage.show();
     }
 
     public void initialize() {
-        labels = new HashMap<>();
-        charts = new HashMap<>();
-        latestMessages = new HashMap<>();
-
-        scrollPane.setVisible(false);
+        pendingMessages = new ChannelTable<>();
+        histories = new ChannelTable<>();
+        table = new TelemetryTable(telemetryTable, filterField, telepathy, this::history);
+
+        telemetryPane.setVisible(false);
+
+        // registered once, they stay with the connection across reconnects
+        telepathy.addNewMessageListener(this::onMessageReceived);
+        telepathy.addDisconnectionListener(this::onDisconnect);
+        telepathy.addConnectionListener(new TelepathyAPI.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                Main.this.onConnected();
+            }
 
-        connected = new AtomicBoolean(false);
+            @Override
+            public void onConnectFailed(IOException cause, long retryDelayMillis) {
+                logger.error(String.format("Connection failed (%s). Check your wireless connection. Retrying in %.1fs",
+                        cause.getMessage(), retryDelayMillis / 1e3));
+            }
+        });
 
-        telemetryContainer.getColumnConstraints().clear();
-        telemetryContainer.getColumnConstraints().addAll(new ColumnConstraints(300), new ColumnConstraints(300));
-        telemetryContainer.getRowConstraints().clear();
+        // connects and reconnects on the event loop, never on this thread
+        logger.info("Attempting to connect");
+        telepathy.start(RECONNECT_POLICY);
 
-        connectTimeline = new Timeline();
-        connectTimeline.setCycleCount(Animation.INDEFINITE);
-        connectTimeline.getKeyFrames().add(new KeyFrame(Duration.seconds(1), actionEvent -> tryConnect()));
-        connectTimeline.getKeyFrames().add(new KeyFrame(Duration.seconds(SECONDS_BETWEEN_RETRY), actionEvent -> {}));
-        connectTimeline.play();
+        root.sceneProperty().addListener((observable, oldScene, scene) -> {
+            if (scene != null) {
+                scene.addEventFilter(KeyEvent.KEY_PRESSED, this::onKeyPressed);
+            }
+        });
 
-        root.widthProperty().addListener(this::onWidthChanged);
+        uiPulse = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                applyPendingMessages();
+                if (now - lastStatusUpdate > STATUS_PERIOD_NS) {
+                    lastStatusUpdate = now;
+                    updateStatus();
+                    updateSubscription();
+                    table.refreshStatistics();
+                    checkDerivedKeys(now);
+                    if (metricsLabel.isVisible()) {
+                        updateMetrics();
+                    }
+                }
+            }
+        };
+        uiPulse.start();
     }
 
+    // skips the rest of the current backoff delay
     @FXML
-    private synchronized void tryConnect() {
+    private void tryConnect() {
         logger.info("Attempting to connect");
-        try {
-            TelepathyAPI.initialize(IP_ADDRESS, PORT);
-            TelepathyAPI.addNewMessageListener(this::onMessageReceived);
-            TelepathyAPI.addDisconnectionListener(this::onDisconnect);
+        telepathy.retryNow();
+    }
+
+    private void onConnected() {
+        logger.info("Connected");
+        Platform.runLater(() -> {
             messageLabel.setText("Connected, but no messages yet");
             connectButton.setVisible(false);
-            connectTimeline.stop();
-            connected.set(true);
-        } catch (Exception e) {
-            if (SECONDS_BETWEEN_RETRY == (long) SECONDS_BETWEEN_RETRY) {
-                logger.error(String.format("Connection failed. Check your wireless connection. Retrying in %ds", (long) SECONDS_BETWEEN_RETRY));
-            } else {
-                logger.error(String.format("Connection failed. Check your wireless connection. Retrying in %fs", SECONDS_BETWEEN_RETRY));
-            }
-        }
+            telemetryPane.setOpacity(1);
+        });
     }
 
+    // the grid, graphs and their histories stay as they are, dimmed, until the reconnect brings new values
     private void onDisconnect() {
-        logger.warn("Telepathy server closed unexpectedly");
+        logger.warn("Telepathy server closed unexpectedly, reconnecting");
         Platform.runLater(() -> {
-            connected.set(false);
             messageLabel.setText("No connection");
-            scrollPane.setVisible(false);
-            telemetryContainer.getChildren().clear();
+            telemetryPane.setOpacity(0.5);
             connectButton.setVisible(true);
         });
     }
 
     private void onMessageReceived(TelepathyAPI.Message message) {
-        if (connected.get()) {
-            for (byte b : message.raw) {
-                logger.info("{}", b);
-            }
-            latestMessages.put(message.key, message);
-            Platform.runLater(() -> {
-                if (!scrollPane.isVisible()) {
-                    scrollPane.setVisible(true);
-                }
-
-                if (labels.containsKey(message.key) || charts.containsKey(message.key)) {
-                    updateNode(message);
-                } else {
-                    addNode(message, false);
-                }
-            });
+        if (message.isNumeric()) {
+            history(message.channel).add(message.timestampNanos, message.getDouble());
         }
+        pendingMessages.set(message.channel, message);
+        hasPendingMessages = true;
     }
 
-    private void addNode(TelepathyAPI.Message message, boolean showAsGraph) {
-        logger.info("Adding Node: {} Graph: {} Type: {}", message.key, showAsGraph, message.type);
-        int row = telemetryContainer.getRowCount();
-        if (showAsGraph) {
-            if (message.type == TelepathyAPI.Type.STRING || message.type == TelepathyAPI.Type.CHAR) {
-                logger.error("STRING/CHAR cannot be graphed");
-                return;
-            }
-
-            Label keyLabel = new Label(message.key);
-            keyLabel.setPadding(new Insets(10));
-            keyLabel.setPrefWidth(300);
-            telemetryContainer.add(keyLabel, 0, row);
-
-            LineChart<Number, Number> chart = new LineChart<>(new NumberAxis(), new NumberAxis());
-            XYChart.Series<Number, Number> series = new XYChart.Series<>();
-            double dataPoint = 0;
-            switch (message.type) {
-                case BYTE:
-                    dataPoint = (double) ((byte) message.message);
-                    break;
-                case INT:
-                    dataPoint = (double) ((int) message.message);
-                    break;
-                case SHORT:
-                    dataPoint = (double) ((short) message.message);
-                    break;
-                case FLOAT:
-                    dataPoint = (double) ((float) message.message);
-                    break;
-                case LONG:
-                    dataPoint = (double) ((long) message.message);
-                    break;
-                case DOUBLE:
-                    dataPoint = (double) message.message;
-                    break;
-            }
-            series.getData().add(new XYChart.Data<>(0, dataPoint));
-            chart.getData().add(series);
-
-            ContextMenu contextMenu = new ContextMenu();
-            MenuItem showAsText = new MenuItem("Show as text");
-            contextMenu.getItems().add(showAsText);
-
-            showAsText.setOnAction((event) -> {
-                Integer currentRow = GridPane.getRowIndex(keyLabel);
-                if (currentRow == null) {
-                    currentRow = 0;
-                }
-                logger.info("Moving row to {} from {}", currentRow, telemetryContainer.getRowCount() - 1);
-                removeNode(message.key);
-                addNode(latestMessages.get(message.key), false);
-                moveRowInPlace(telemetryContainer, telemetryContainer.getRowCount() - 1, currentRow);
-                if (currentRow % 2 == 1) {
-                    setRowStyle(telemetryContainer, currentRow, "-fx-background-color: #a1a1a1;");
-                } else {
-                    setRowStyle(telemetryContainer, currentRow, "");
-                }
-            });
-
-            keyLabel.setContextMenu(contextMenu);
-
-            if (row % 2 == 1) {
-                keyLabel.setStyle("-fx-background-color: #a1a1a1;");
-                chart.setStyle("-fx-background-color: #a1a1a1;");
-            }
-
-            telemetryContainer.add(chart, 1, row);
-
-            charts.put(message.key, chart);
-        } else {
-            Label keyLabel = new Label(message.key);
-            keyLabel.setPadding(new Insets(10));
-            keyLabel.setPrefWidth(300);
-            telemetryContainer.add(keyLabel, 0, row);
-
-            Label valueLabel = new Label(message.message.toString());
-            valueLabel.setPadding(new Insets(10, 0, 10, 0));
-            valueLabel.setMinWidth(300);
-
-            if (!(message.type == TelepathyAPI.Type.STRING || message.type == TelepathyAPI.Type.CHAR)) {
-                ContextMenu contextMenu = new ContextMenu();
-                MenuItem showAsGraphItem = new MenuItem("Show as graph");
-                contextMenu.getItems().add(showAsGraphItem);
-
-                showAsGraphItem.setOnAction((event) -> {
-                    Integer currentRow = GridPane.getRowIndex(keyLabel);
-                    if (currentRow == null) {
-                        currentRow = 0;
-                    }
-                    logger.info("Moving row to {} from {}", currentRow, telemetryContainer.getRowCount() - 1);
-                    removeNode(message.key);
-                    addNode(latestMessages.get(message.key), true);
-                    moveRowInPlace(telemetryContainer, telemetryContainer.getRowCount() - 1, currentRow);
-                    if (currentRow % 2 == 1) {
-                        setRowStyle(telemetryContainer, currentRow, "-fx-background-color: #a1a1a1;");
-                    } else {
-                        setRowStyle(telemetryContainer, currentRow, "");
-                    }
-                });
-
-                keyLabel.setContextMenu(contextMenu);
-            }
-
-            telemetryContainer.add(valueLabel, 1, row);
-
-            if (row % 2 == 1) {
-                keyLabel.setStyle("-fx-background-color: #a1a1a1;");
-                valueLabel.setStyle("-fx-background-color: #a1a1a1;");
-            }
-
-            labels.put(message.key, valueLabel);
+    private TimeSeriesBuffer history(int channel) {
+        TimeSeriesBuffer history = histories.get(channel);
+        if (history == null) {
+            history = histories.setIfAbsent(channel,
+                    new TimeSeriesBuffer(HISTORY_SAMPLES, (long) (HISTORY_SECONDS * TimeUnit.SECONDS.toNanos(1))));
         }
+        return history;
     }
 
-    private void updateNode(TelepathyAPI.Message message) {
-        if (labels.containsKey(message.key)) {
-            labels.get(message.key).setText(message.message.toString());
-        } else if (charts.containsKey(message.key)) {
-            XYChart.Series<Number, Number> series = charts.get(message.key).getData().get(0);
-            double dataPoint = 0;
-            switch (message.type) {
-                case BYTE:
-                    dataPoint = (double) ((byte) message.message);
-                    break;
-                case INT:
-                    dataPoint = (double) ((int) message.message);
-                    break;
-                case SHORT:
-                    dataPoint = (double) ((short) message.message);
-                    break;
-                case FLOAT:
-                    dataPoint = (double) ((float) message.message);
-                    break;
-                case LONG:
-                    dataPoint = (double) ((long) message.message);
-                    break;
-                case DOUBLE:
-                    dataPoint = (double) message.message;
-                    break;
+    // runs once per frame; only the latest message of each key is applied, graphs catch up from their history
+    private void applyPendingMessages() {
+        if (!hasPendingMessages) {
+            return;
+        }
+        hasPendingMessages = false;
+        if (!telemetryPane.isVisible() || telemetryPane.getOpacity() < 1) {
+            telemetryPane.setVisible(true);
+            telemetryPane.setOpacity(1);
+        }
+        int channels = pendingMessages.length();
+        TelepathyMetrics metrics = telepathy.metrics();
+        long now = System.nanoTime();
+        for (int channel = 0; channel < channels; channel++) {
+            TelepathyAPI.Message message = pendingMessages.getAndSet(channel, null);
+            if (message == null) {
+                continue;
             }
-            series.getData().add(new XYChart.Data<>(series.getData().size(), dataPoint));
-        } else {
-            logger.warn("Update on nonexistent node: {}", message.key);
+            metrics.recordUiLag(now - message.receivedNanos);
+            table.update(message);
         }
     }
 
-    private void removeNode(String key) {
-        Integer row = 0;
-        if (labels.containsKey(key)) {
-            row = GridPane.getRowIndex(labels.get(key));
-        } else if (charts.containsKey(key)) {
-            row = GridPane.getRowIndex(charts.get(key));
+    private void updateStatus() {
+        if (!telepathy.connected()) {
+            statusLabel.setText(telemetryPane.isVisible() ? "Disconnected, reconnecting" : "");
+            statusLabel.setTextFill(Color.web("#d05000"));
+            return;
         }
-        if (row == null) {
-            row = 0;
+        long rtt = telepathy.roundTripNanos();
+        if (rtt < 0) {
+            statusLabel.setText(telepathy.protocolVersion() == 1 ? "Legacy server, latency unknown" : "Latency unknown");
+            statusLabel.setTextFill(Color.web("#a1a1a1"));
+            return;
         }
-        deleteRowInPlace(telemetryContainer, row);
-        labels.remove(key);
-        charts.remove(key);
+        long jitter = telepathy.jitterNanos();
+        statusLabel.setText(String.format("RTT %.1f ms, jitter %.1f ms", rtt / 1e6, jitter / 1e6));
+        boolean degrading = rtt > SLOW_ROUND_TRIP_NS || jitter > SLOW_ROUND_TRIP_NS / 4;
+        statusLabel.setTextFill(degrading ? Color.web("#d05000") : Color.web("#a1a1a1"));
     }
 
-    // via https://stackoverflow.com/a/40517410
-    private void deleteRowInPlace(GridPane grid, final int row) {
-        Set<Node> deleteNodes = new HashSet<>();
-        for (Node child : grid.getChildren()) {
-            // get index from child
-            Integer rowIndex = GridPane.getRowIndex(child);
-
-            // handle null values for index=0
-            int r = rowIndex == null ? 0 : rowIndex;
-
-            if (r == row) {
-                // collect matching rows for deletion
-                deleteNodes.add(child);
+    // once, a while after connecting: a derived key that still misses an input probably has a typo
+    private void checkDerivedKeys(long now) {
+        if (derivedKeysChecked || !telepathy.connected()) {
+            return;
+        }
+        if (connectedSince == 0) {
+            connectedSince = now;
+        } else if (now - connectedSince > Launcher.DERIVED_INPUT_GRACE_NANOS) {
+            derivedKeysChecked = true;
+            for (String warning : Launcher.derivedKeyWarnings(telepathy)) {
+                logger.warn(warning);
             }
         }
-
-        // remove nodes from row
-        grid.getChildren().removeAll(deleteNodes);
     }
 
-    private void moveRowInPlace(GridPane grid, final int from, final int to) {
-        for (Node child : grid.getChildren()) {
-            Integer rowIndex = GridPane.getRowIndex(child);
-
-            int r = rowIndex == null ? 0 : rowIndex;
+    // at most a few times a second, however fast the table scrolls
+    private void updateSubscription() {
+        if (BACKGROUND_RATE > 0 && table.takeWatchedChanged()) {
+            telepathy.subscribe(table.subscription(BACKGROUND_RATE));
+        }
+    }
 
-            if (r == from) {
-                GridPane.setRowIndex(child, to);
+    private void onKeyPressed(KeyEvent event) {
+        if (event.getCode() == KeyCode.F3) {
+            metricsLabel.setVisible(!metricsLabel.isVisible());
+            if (metricsLabel.isVisible()) {
+                updateMetrics();
             }
+            event.consume();
         }
     }
 
-    private void setRowStyle(GridPane grid, int row, String style) {
-        for (Node child : grid.getChildren()) {
-            Integer rowIndex = GridPane.getRowIndex(child);
-
-            int r = rowIndex == null ? 0 : rowIndex;
-
-            if (r == row) {
-                child.setStyle(style);
+    private void updateMetrics() {
+        TelepathyMetrics metrics = telepathy.metrics();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-10s %10.1f KiB/s%n", "received", metrics.getBytesPerSecond() / 1024));
+        text.append(String.format("%-10s %10.0f msg/s%n", "messages", metrics.getMessagesPerSecond()));
+        text.append(String.format("%-10s %10d%n", "rejected", metrics.getRejectedFrames()));
+        text.append(String.format("%-10s %10d%n", "conflated", metrics.getPolicyDroppedMessages()));
+        if (telepathy.serverTimestamps()) {
+            text.append(String.format("%-10s %+10.3f ms  drift %+.1f ppm%n", "clock", telepathy.clockOffsetNanos() / 1e6, telepathy.clockDriftPpm()));
+        }
+        text.append(String.format("%-10s p50 %8.1f us  p99 %8.1f us%n", "decode", metrics.getDecodeP50Micros(), metrics.getDecodeP99Micros()));
+        text.append(String.format("%-10s p50 %8.1f us  p99 %8.1f us%n", "listeners", metrics.getListenerP50Micros(), metrics.getListenerP99Micros()));
+        text.append(String.format("%-10s p50 %8.1f ms  p99 %8.1f ms%n", "ui lag", metrics.getUiLagP50Millis(), metrics.getUiLagP99Millis()));
+        // busiest keys first
+        int channels = pendingMessages.length();
+        boolean[] shown = new boolean[channels];
+        for (int i = 0; i < METRICS_TOP_KEYS; i++) {
+            int busiest = -1;
+            for (int channel = 0; channel < channels; channel++) {
+                if (!shown[channel] && table.row(channel) != null
+                        && (busiest < 0 || metrics.messagesPerSecond(channel) > metrics.messagesPerSecond(busiest))) {
+                    busiest = channel;
+                }
+            }
+            if (busiest < 0) {
+                break;
             }
+            shown[busiest] = true;
+            text.append(String.format("%n%-30.30s %8.0f/s", table.row(busiest).key, metrics.messagesPerSecond(busiest)));
         }
+        metricsLabel.setText(text.toString());
     }
 
+    // for IDE run configurations; the jar starts at Launcher
     public static void main(String[] args) {
+        Launcher.main(args);
+    }
+
+    static void launch(TelepathyAPI telepathy, ReconnectPolicy reconnectPolicy, Namespace ns, String[] args) {
         SimpleLoggerFactory simpleLoggerFactory = new SimpleLoggerFactory();
         logger = (SimpleLogger) simpleLoggerFactory.getLogger("Main");
-        logger.info("Telepathy Client v" + VERSION + "; Initializing");
-        ArgumentParser parser = ArgumentParsers.newFor("Telepathy Client").build()
-                .defaultHelp(true)
-                .description("Client for ThorCore's Telepathy. Serves as a more advanced form of telemetry.")
-                .version(VERSION);
-        parser.addArgument("-d", "--retry-delay")
-                .help("Delay (in seconds) between retrying connection.")
-                .dest("rd")
-                .setDefault(20d)
-                .type(Double.class);
-        parser.addArgument("-a", "--ip-address")
-                .help("IP Address to connect to.")
-                .dest("ip")
-                .setDefault("192.168.49.1")
-                .type(String.class);
-        parser.addArgument("-p", "--port")
-                .help("Port to connect to.")
-                .dest("port")
-                .setDefault(6387)
-                .type(Integer.class);
-        Namespace ns;
-        try {
-            ns = parser.parseArgs(args);
-        } catch (ArgumentParserException e) {
-            parser.handleError(e);
-            System.exit(1);
-            return;
-        }
-        SECONDS_BETWEEN_RETRY = ns.getDouble("rd");
+        logger.info("Telepathy Client v" + Launcher.VERSION + "; Initializing");
+        Main.telepathy = telepathy;
+        RECONNECT_POLICY = reconnectPolicy;
         IP_ADDRESS = ns.getString("ip");
         PORT = ns.getInt("port");
+        HISTORY_SAMPLES = ns.getInt("hs");
+        HISTORY_SECONDS = ns.getDouble("ht");
+        RECORD_DIRECTORY = ns.getString("record");
+        // a recording should have every value of every key
+        BACKGROUND_RATE = RECORD_DIRECTORY == null ? ns.getDouble("br") : 0;
         /*Thread testServerThread = new Thread(() -> {
             try {
                 TestServer.main(args);
@@ -409,22 +343,4 @@ public class Main extends Application {
         testServerThread.start();*/
         Application.launch(Main.class, args);
     }
-
-    private void onWidthChanged(ObservableValue<? extends Number> observableValue, Number number, Number t1) {
-        Platform.runLater(() -> {
-            logger.info("Resize event");
-            if (telemetryContainer != null) {
-                for (Node child : telemetryContainer.getChildren()) {
-                    Integer col = GridPane.getColumnIndex(child);
-
-                    int c = col == null ? 0 : col;
-
-                    if (c == 1) {
-                        ((Region) child).setPrefWidth(observableValue.getValue().doubleValue() - 260);
-                    }
-                }
-                telemetryContainer.getColumnConstraints().get(1).setPrefWidth(observableValue.getValue().doubleValue() - 280);
-            }
-        });
-    }
 }
@@ -0,0 +1,257 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Measures how the client scales with the number of connections. For every connection count it
+ * starts that many local servers, connects one TelepathyAPI to each, streams messages from all of
+ * them and reports what the client received and what the shared event loop cost. With --compress
+ * it also reports the compression ratio and what deflating and inflating cost per message.
+ */
+public class MultiServerHarness {
+
+    private static final int KEYS_PER_SERVER = 20;
+    private static final String[] STATES = {"IDLE", "DRIVE_TO_JUNCTION", "RAISE_LIFT", "SCORE_CONE", "PARK"};
+
+    public static void main(String[] args) throws Exception {
+        ArgumentParser parser = ArgumentParsers.newFor("MultiServerHarness").build()
+                .defaultHelp(true)
+                .description("Connects to many local Telepathy servers at once and reports throughput and event loop cost.");
+        parser.addArgument("-c", "--connections")
+                .help("Comma separated connection counts to measure.")
+                .dest("connections")
+                .setDefault("1,4,16,64");
+        parser.addArgument("-r", "--rate")
+                .help("Messages per second sent by each server. 0 sends as fast as possible.")
+                .dest("rate")
+                .setDefault(1000)
+                .type(Integer.class);
+        parser.addArgument("-s", "--seconds")
+                .help("How long to measure each connection count.")
+                .dest("seconds")
+                .setDefault(5d)
+                .type(Double.class);
+        parser.addArgument("--protocol")
+                .help("Wire format the servers speak.")
+                .dest("protocol")
+                .choices("legacy", "v2")
+                .setDefault("legacy");
+        parser.addArgument("--compress")
+                .help("Deflate the stream. Implies --protocol v2.")
+                .dest("compress")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--mix")
+                .help("Values to send: DOUBLEs, or STRING state names and log lines.")
+                .dest("mix")
+                .choices("double", "string")
+                .setDefault("double");
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+            return;
+        }
+        int rate = ns.getInt("rate");
+        long durationNanos = (long) (ns.getDouble("seconds") * TimeUnit.SECONDS.toNanos(1));
+        boolean compress = ns.getBoolean("compress");
+        boolean v2 = compress || ns.getString("protocol").equals("v2");
+        boolean strings = ns.getString("mix").equals("string");
+
+        System.out.printf("%11s %12s %12s %10s %10s %15s", "connections", "sent/s", "received/s", "loop cpu", "us/msg", "client threads");
+        if (compress) {
+            System.out.printf(" %8s %15s %15s", "ratio", "inflate us/msg", "deflate us/msg");
+        }
+        System.out.println();
+        for (String count : ns.getString("connections").split(",")) {
+            run(Integer.parseInt(count.trim()), rate, durationNanos, v2, compress, strings);
+        }
+    }
+
+    private static void run(int connections, int rate, long durationNanos, boolean v2, boolean compress, boolean strings) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        List<ServerSocketChannel> servers = new ArrayList<>();
+        List<TelepathyAPI> clients = new ArrayList<>();
+        List<SocketChannel> sockets = new ArrayList<>();
+        LongAdder received = new LongAdder();
+        for (int i = 0; i < connections; i++) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            servers.add(server);
+            TelepathyAPI client = new TelepathyAPI("127.0.0.1", server.socket().getLocalPort());
+            client.setRetainRaw(false);
+            client.setCompression(compress);
+            client.addNewMessageListener(message -> received.increment());
+            client.connect();
+            clients.add(client);
+            SocketChannel socket = server.accept();
+            if (v2) {
+                // the client's HELLO is left unread; it always offers what this server accepts
+                socket.write(ByteBuffer.wrap(ProtocolV2.hello(compress ? ProtocolV2.FEATURE_DEFLATE : 0)));
+            }
+            sockets.add(socket);
+        }
+        ProtocolV2.Compressor[] compressors = new ProtocolV2.Compressor[compress ? connections : 0];
+        for (int i = 0; i < compressors.length; i++) {
+            compressors[i] = new ProtocolV2.Compressor(Deflater.DEFAULT_COMPRESSION);
+        }
+        ProtocolV2.FrameWriter compressed = new ProtocolV2.FrameWriter(64 * 1024);
+        // the event loop plus one thread per listener
+        int clientThreads = clientThreads(threads);
+
+        // one batch is 10 ms worth of packets, written to every server in turn
+        int batchSize = rate == 0 ? 1000 : Math.max(1, rate / 100);
+        ByteBuffer batch = batch(batchSize, 0, v2, strings);
+        long round = 0;
+        long loopThread = loopThreadId(threads);
+        long loopCpuBefore = threads.getThreadCpuTime(loopThread);
+        long receivedBefore = received.sum();
+        long sent = 0;
+        long start = System.nanoTime();
+        long nextBatch = start;
+        while (System.nanoTime() - start < durationNanos) {
+            for (int i = 0; i < connections; i++) {
+                ByteBuffer out = batch;
+                batch.rewind();
+                if (compress) {
+                    compressed.clear();
+                    compressors[i].compress(batch.array(), 0, batch.limit(), compressed);
+                    out = compressed.flip();
+                }
+                while (out.hasRemaining()) {
+                    sockets.get(i).write(out);
+                }
+            }
+            sent += (long) batchSize * connections;
+            // new values every round, so the deflater can't just point back at the previous batch
+            batch = batch(batchSize, ++round * batchSize, v2, strings);
+            if (rate != 0) {
+                nextBatch += TimeUnit.MILLISECONDS.toNanos(10);
+                long sleep = nextBatch - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+            }
+        }
+        // give the client a moment to drain what is still in flight
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (received.sum() - receivedBefore < sent && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long loopCpu = threads.getThreadCpuTime(loopThread) - loopCpuBefore;
+        long count = received.sum() - receivedBefore;
+
+        System.out.printf("%11d %12.0f %12.0f %9.1f%% %10.2f %15d",
+                connections, sent / seconds, count / seconds, 100.0 * loopCpu / (seconds * 1e9),
+                count == 0 ? 0 : loopCpu / 1000.0 / count, clientThreads);
+        if (compress) {
+            long inflated = 0;
+            long compressedBytes = 0;
+            long inflateNanos = 0;
+            for (TelepathyAPI client : clients) {
+                inflated += client.inflatedBytes();
+                compressedBytes += client.compressedBytes();
+                inflateNanos += client.inflateNanos();
+            }
+            long deflateNanos = 0;
+            for (ProtocolV2.Compressor compressor : compressors) {
+                deflateNanos += compressor.nanos();
+                compressor.end();
+            }
+            System.out.printf(" %8.2f %15.3f %15.3f",
+                    compressedBytes == 0 ? 0 : (double) inflated / compressedBytes,
+                    count == 0 ? 0 : inflateNanos / 1000.0 / count,
+                    sent == 0 ? 0 : deflateNanos / 1000.0 / sent);
+        }
+        System.out.println();
+
+        for (TelepathyAPI client : clients) {
+            client.shutdown();
+        }
+        for (SocketChannel socket : sockets) {
+            socket.close();
+        }
+        for (ServerSocketChannel server : servers) {
+            server.close();
+        }
+        // let the listener threads exit so they aren't counted in the next round
+        while (clientThreads(threads) > 1) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static int clientThreads(ThreadMXBean threads) {
+        int count = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("Telepathy")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer batch(int messages, long first, boolean v2, boolean strings) {
+        if (v2) {
+            ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(messages * 128);
+            for (int i = 0; i < messages; i++) {
+                byte[] key = ("harness/key" + i % KEYS_PER_SERVER).getBytes();
+                writer.message(key, strings ? TelepathyAPI.Type.STRING : TelepathyAPI.Type.DOUBLE, value(first + i, strings));
+            }
+            return ByteBuffer.wrap(writer.toByteArray());
+        }
+        ByteBuffer batch = ByteBuffer.allocate(messages * 128);
+        for (int i = 0; i < messages; i++) {
+            byte[] key = ("harness/key" + i % KEYS_PER_SERVER).getBytes();
+            byte[] value = value(first + i, strings);
+            batch.put((byte) 0)
+                    .put(key)
+                    .put(strings ? TelepathyAPI.Type.STRING.typeKey : TelepathyAPI.Type.DOUBLE.typeKey)
+                    .putInt(value.length)
+                    .put(value);
+        }
+        batch.flip();
+        return batch;
+    }
+
+    // state machine names and log lines, as sent by a typical opmode
+    private static byte[] value(long i, boolean strings) {
+        if (!strings) {
+            return ByteBuffer.allocate(8).putDouble(Math.sin(i / 100.0)).array();
+        }
+        String state = STATES[(int) (i / 700 % STATES.length)];
+        if (i % 2 == 0) {
+            return state.getBytes();
+        }
+        return (state + ": lift at " + (i * 37 % 1200) + " ticks, target " + (i / 700 * 100 % 1200)).getBytes();
+    }
+
+    private static long loopThreadId(ThreadMXBean threads) throws IOException {
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().equals("TelepathyEventLoop")) {
+                return info.getThreadId();
+            }
+        }
+        throw new IOException("Event loop is not running");
+    }
+}
@@ -0,0 +1,583 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+/**
+ * Constants and encoding helpers for version 2 of the Telepathy wire format, shared by the client
+ * and {@link TestServer}.
+ * <p>
+ * Every v2 frame is
+ * <pre>
+ *   MAGIC  VERSION  length (varint)  type  payload  CRC32C (4 bytes, big endian)
+ * </pre>
+ * where length counts the type byte and the payload, and the CRC covers everything from VERSION to
+ * the end of the payload. A receiver that loses sync skips to the next MAGIC byte and checks that
+ * frame's CRC, so one corrupted frame costs one frame instead of a window of speculative candidates.
+ * <p>
+ * Negotiation: a v2 client sends a HELLO frame as soon as it connects. A v2 server answers with its
+ * own HELLO and then speaks v2; a legacy server ignores it and starts streaming 0x00 delimited
+ * packets. The client tells the two apart by the first byte it receives, MAGIC or 0x00. Unless the
+ * server accepts FEATURE_HEARTBEAT, the client keeps sending single 0x00 keep-alive bytes, which a v2
+ * receiver skips while looking for MAGIC.
+ */
+final class ProtocolV2 {
+
+    static final byte MAGIC = (byte) 0xC5;
+    static final byte VERSION = 2;
+
+    // HELLO payload: varint feature flags. the client's HELLO offers features, the server's
+    // HELLO says which of them it accepted
+    static final byte TYPE_HELLO = 1;
+    // MESSAGE payload: varint key length, key, Type.typeKey, value. numeric values are big endian
+    // and exactly as wide as their type, STRING values fill the rest of the payload
+    static final byte TYPE_MESSAGE = 2;
+    // DICT payload: varint sequence number, then entries of varint id, Type.typeKey, varint key
+    // length, key. sequence numbers count DICT frames from 0. declares (or redeclares) the key and
+    // type behind a BATCH id for the rest of the connection
+    static final byte TYPE_DICT = 3;
+    // BATCH payload: flags, varint sequence number, varint count of the DICT frames sent before it,
+    // then (varint id, value) pairs until the end of the frame. sequence numbers count BATCH frames
+    // from 0. values are encoded by valueType:
+    //   STRING              varint length, bytes
+    //   FLOAT, DOUBLE       raw bits (4 or 8 bytes), or with BATCH_DELTA the bits XORed with the
+    //                       previous value of the id: a byte with the XOR's trailing zero count
+    //                       (64 if it is 0) followed by varint64(xor >>> count) unless it is 0.
+    //                       when that would be longer than the raw bits, DELTA_RAW and the raw bits
+    //   the integral types  zigzag varint64 of the value, or with BATCH_DELTA of value - previous
+    // previous values start at 0 and are updated by every value of the id, delta or not
+    static final byte TYPE_BATCH = 4;
+
+    // COMPRESSED payload: the next piece of one raw deflate stream (no zlib header) that carries
+    // ordinary v2 frames. the server sync-flushes the stream at the end of every write, so each
+    // COMPRESSED frame can be inflated as soon as it arrives. only sent once FEATURE_DEFLATE is accepted
+    static final byte TYPE_COMPRESSED = 5;
+
+    // PING payload: the client's 8 byte System.nanoTime(). the server answers every PING with a PONG
+    // carrying the same payload, as soon as it can. only sent once FEATURE_HEARTBEAT is accepted.
+    // once FEATURE_TIMESTAMPS is accepted too, the PONG adds 8 bytes: the server's clock when it answered
+    static final byte TYPE_PING = 6;
+    static final byte TYPE_PONG = 7;
+
+    // SUBSCRIBE payload, client to server: varint entry count, then per entry a flags byte, varint
+    // key length, key and the varint minimum interval between values of a matching key in
+    // microseconds (0 for no limit). SUBSCRIBE_PREFIX makes the entry match every key that starts
+    // with it. each SUBSCRIBE replaces the previous one; until the first, every key is sent. a key
+    // matched by several entries gets the shortest of their intervals, and one matched by none is
+    // not sent. only sent once FEATURE_SUBSCRIBE is accepted
+    static final byte TYPE_SUBSCRIBE = 8;
+
+    // TIME payload: 8 bytes of the server's clock in nanoseconds, from any fixed origin. stamps the
+    // values of every MESSAGE and BATCH frame after it until the next TIME frame, so a server sends
+    // one per batch or per sampling loop. only sent once FEATURE_TIMESTAMPS is accepted
+    static final byte TYPE_TIME = 9;
+
+    static final int FEATURE_DEFLATE = 1;
+    static final int FEATURE_HEARTBEAT = 2;
+    static final int FEATURE_SUBSCRIBE = 4;
+    static final int FEATURE_TIMESTAMPS = 8;
+
+    static final byte SUBSCRIBE_PREFIX = 1;
+
+    static final byte BATCH_DELTA = 1;
+    static final byte DELTA_RAW = 0x7F;
+
+    // larger declared lengths are treated as corruption. kept small because a corrupted length makes
+    // the decoder wait for that many bytes before the CRC can reject it
+    static final int MAX_FRAME_LENGTH = 1 << 16;
+
+    // MAGIC, VERSION, up to 5 varint bytes
+    static final int MAX_HEADER_LENGTH = 7;
+    static final int CRC_LENGTH = 4;
+
+    private ProtocolV2() {
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // absolute read of the varint at index; returns -1 if it needs bytes past limit or is too long
+    static long getVarint(byte[] bytes, int index, int limit) {
+        int value = 0;
+        for (int shift = 0, i = index; shift < 35; shift += 7, i++) {
+            if (i >= limit) {
+                return -1;
+            }
+            byte b = bytes[i];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                // value in the low 32 bits, encoded size above them
+                return (long) (i - index + 1) << 32 | (value & 0xFFFFFFFFL);
+            }
+        }
+        return -1;
+    }
+
+    static void putVarintLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarintLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException("varint is longer than 10 bytes");
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // relative read of a varint from buffer
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException("varint is longer than 5 bytes");
+    }
+
+    // features is the set offered by a client, or accepted by a server
+    static byte[] hello(int features) {
+        FrameWriter writer = new FrameWriter(16);
+        writer.begin(TYPE_HELLO).putVarint(features);
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    // the answer to a PING whose payload is between position() and limit()
+    static byte[] pong(ByteBuffer ping) {
+        FrameWriter writer = new FrameWriter(32);
+        writer.begin(TYPE_PONG).put(ping.array(), ping.arrayOffset() + ping.position(), ping.remaining());
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    // the answer to a PING once FEATURE_TIMESTAMPS is accepted
+    static byte[] pong(ByteBuffer ping, long serverNanos) {
+        FrameWriter writer = new FrameWriter(32);
+        writer.begin(TYPE_PONG).put(ping.array(), ping.arrayOffset() + ping.position(), ping.remaining()).putLong(serverNanos);
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    static byte[] time(long serverNanos) {
+        FrameWriter writer = new FrameWriter(16);
+        writer.begin(TYPE_TIME).putLong(serverNanos);
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes v2 frames into a growable buffer. Call {@link #begin(byte)}, put the payload into the
+     * returned buffer and call {@link #end()}; several frames can be written before the buffer is
+     * drained with {@link #flip()} or {@link #toByteArray()}.
+     */
+    static final class FrameWriter {
+
+        private final CRC32C crc = new CRC32C();
+        private final PayloadBuffer payload = new PayloadBuffer();
+        private ByteBuffer buffer;
+        private int frameStart = -1;
+
+        FrameWriter(int initialCapacity) {
+            buffer = ByteBuffer.allocate(Math.max(initialCapacity, 64));
+        }
+
+        // the payload goes after a header with room for the longest varint, and is moved back
+        // once its length is known
+        PayloadBuffer begin(byte type) {
+            ensureRemaining(MAX_HEADER_LENGTH + 1);
+            frameStart = buffer.position();
+            buffer.position(frameStart + MAX_HEADER_LENGTH);
+            buffer.put(type);
+            return payload;
+        }
+
+        void end() {
+            int payloadStart = frameStart + MAX_HEADER_LENGTH;
+            int length = buffer.position() - payloadStart;
+            if (length > MAX_FRAME_LENGTH) {
+                buffer.position(frameStart);
+                frameStart = -1;
+                throw new IllegalArgumentException("frame is longer than " + MAX_FRAME_LENGTH + " bytes");
+            }
+            int header = 2 + varintSize(length);
+            byte[] array = buffer.array();
+            System.arraycopy(array, payloadStart, array, frameStart + header, length);
+            buffer.position(frameStart);
+            buffer.put(MAGIC).put(VERSION);
+            putVarint(buffer, length);
+            buffer.position(frameStart + header + length);
+            crc.reset();
+            crc.update(array, frameStart + 1, header - 1 + length);
+            ensureRemaining(CRC_LENGTH);
+            buffer.putInt((int) crc.getValue());
+            frameStart = -1;
+        }
+
+        // bytes written so far, including any frame in progress
+        int size() {
+            return buffer.position();
+        }
+
+        // flips the buffer for writing to a channel; call clear() once it is drained
+        ByteBuffer flip() {
+            return buffer.flip();
+        }
+
+        void clear() {
+            buffer.clear();
+            frameStart = -1;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+            buffer.clear();
+            return bytes;
+        }
+
+        private void ensureRemaining(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        // the writer's buffer may grow mid-frame, so payload writes go through here
+        final class PayloadBuffer {
+
+            PayloadBuffer put(byte value) {
+                ensureRemaining(1);
+                buffer.put(value);
+                return this;
+            }
+
+            PayloadBuffer put(byte[] bytes) {
+                return put(bytes, 0, bytes.length);
+            }
+
+            PayloadBuffer put(byte[] bytes, int offset, int length) {
+                ensureRemaining(length);
+                buffer.put(bytes, offset, length);
+                return this;
+            }
+
+            PayloadBuffer putShort(short value) {
+                ensureRemaining(2);
+                buffer.putShort(value);
+                return this;
+            }
+
+            PayloadBuffer putInt(int value) {
+                ensureRemaining(4);
+                buffer.putInt(value);
+                return this;
+            }
+
+            PayloadBuffer putLong(long value) {
+                ensureRemaining(8);
+                buffer.putLong(value);
+                return this;
+            }
+
+            PayloadBuffer putDouble(double value) {
+                ensureRemaining(8);
+                buffer.putDouble(value);
+                return this;
+            }
+
+            PayloadBuffer putVarint(int value) {
+                ensureRemaining(5);
+                ProtocolV2.putVarint(buffer, value);
+                return this;
+            }
+        }
+
+        // MESSAGE frame carrying value, which is encoded exactly as in a legacy packet
+        void message(byte[] key, TelepathyAPI.Type type, byte[] value) {
+            begin(TYPE_MESSAGE)
+                    .putVarint(key.length)
+                    .put(key)
+                    .put(type.typeKey)
+                    .put(value);
+            end();
+        }
+    }
+
+    /**
+     * Server side of FEATURE_DEFLATE: compresses already encoded frames into COMPRESSED frames. One
+     * Deflater lives for the whole connection, so repeated keys and strings compress against
+     * everything sent before them.
+     */
+    static final class Compressor {
+
+        private final Deflater deflater;
+        private final byte[] output = new byte[8192];
+        private long bytesIn;
+        private long bytesOut;
+        private long nanos;
+
+        Compressor(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        // compresses whole frames and sync-flushes, so the client can decode all of them right away
+        void compress(byte[] frames, int offset, int length, FrameWriter out) {
+            long start = System.nanoTime();
+            int before = out.size();
+            deflater.setInput(frames, offset, length);
+            int written;
+            do {
+                written = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                if (written > 0) {
+                    out.begin(TYPE_COMPRESSED).put(output, 0, written);
+                    out.end();
+                }
+                // a full output buffer means the flush isn't finished
+            } while (written == output.length);
+            bytesIn += length;
+            bytesOut += out.size() - before;
+            nanos += System.nanoTime() - start;
+        }
+
+        // frame bytes given to compress(), and COMPRESSED frame bytes written for them
+        long bytesIn() {
+            return bytesIn;
+        }
+
+        long bytesOut() {
+            return bytesOut;
+        }
+
+        // time spent compressing
+        long nanos() {
+            return nanos;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Packs messages into DICT and BATCH frames. Keys get ids the first time they are added, and the
+     * DICT frame declaring them is written just ahead of the BATCH that first uses them. A keyframe
+     * starts every keyframeInterval batches: its batches are written without deltas, and every id
+     * in them is declared again, so a receiver that lost a batch or a DICT to corruption is back in
+     * sync by the next keyframe. A keyframe too big for one batch carries on into the next ones,
+     * until the caller's flush() or until every id has been declared again.
+     */
+    static final class BatchEncoder {
+
+        // flush before the batch gets near MAX_FRAME_LENGTH
+        private static final int MAX_BATCH_BYTES = MAX_FRAME_LENGTH / 2;
+
+        private final FrameWriter out;
+        private final boolean delta;
+        private final int keyframeInterval;
+        private final ChannelRegistry ids = new ChannelRegistry();
+
+        private byte[] types = new byte[16];
+        private long[] previous = new long[16];
+        // the keyframe each id was last declared in, counting keyframes from 1
+        private int[] declared = new int[16];
+        private ByteBuffer dict = ByteBuffer.allocate(256);
+        private ByteBuffer values = ByteBuffer.allocate(1024);
+        private int sequence;
+        private int dicts;
+        private int count;
+        private boolean batchDelta;
+        private boolean keyframe;
+        private int keyframes;
+        // ids declared in the current keyframe so far, and the first batch of the next one
+        private int keyframeDeclared;
+        private int nextKeyframe;
+
+        BatchEncoder(FrameWriter out, boolean delta, int keyframeInterval) {
+            this.out = out;
+            this.delta = delta;
+            this.keyframeInterval = Math.max(1, keyframeInterval);
+        }
+
+        // values added but not flushed yet
+        int pending() {
+            return count;
+        }
+
+        void addString(String key, String value) {
+            byte[] bytes = value.getBytes();
+            int id = id(key, TelepathyAPI.Type.STRING);
+            values = ensureRemaining(values, 10 + bytes.length);
+            putVarint(values, bytes.length);
+            values.put(bytes);
+            added();
+        }
+
+        void addDouble(String key, double value) {
+            addFloatingPoint(id(key, TelepathyAPI.Type.DOUBLE), Double.doubleToRawLongBits(value), 8);
+        }
+
+        void addFloat(String key, float value) {
+            addFloatingPoint(id(key, TelepathyAPI.Type.FLOAT), Float.floatToRawIntBits(value) & 0xFFFFFFFFL, 4);
+        }
+
+        // BYTE, CHAR, SHORT, INT or LONG
+        void addIntegral(String key, TelepathyAPI.Type type, long value) {
+            int id = id(key, type);
+            values = ensureRemaining(values, 10);
+            putVarintLong(values, zigzag(batchDelta ? value - previous[id] : value));
+            previous[id] = value;
+            added();
+        }
+
+        private void addFloatingPoint(int id, long bits, int width) {
+            values = ensureRemaining(values, 11);
+            long xor = bits ^ previous[id];
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (batchDelta && (64 - Long.numberOfLeadingZeros(xor) - trailing + 6) / 7 <= width) {
+                values.put((byte) trailing);
+                if (xor != 0) {
+                    putVarintLong(values, xor >>> trailing);
+                }
+            } else {
+                if (batchDelta) {
+                    // noisy values don't have enough bits in common with the previous one
+                    values.put(DELTA_RAW);
+                }
+                if (width == 8) {
+                    values.putLong(bits);
+                } else {
+                    values.putInt((int) bits);
+                }
+            }
+            previous[id] = bits;
+            added();
+        }
+
+        // writes the id of key into the batch, declaring it first if it is new, changed type, or
+        // hasn't been declared yet in this keyframe
+        private int id(String key, TelepathyAPI.Type type) {
+            int known = ids.size();
+            int id = ids.intern(key);
+            if (id >= types.length) {
+                types = Arrays.copyOf(types, Math.max(id + 1, types.length * 2));
+                previous = Arrays.copyOf(previous, types.length);
+                declared = Arrays.copyOf(declared, types.length);
+            }
+            boolean changed = id >= known || types[id] != type.typeKey;
+            if (changed && id < known && count > 0) {
+                // the DICT goes ahead of the whole batch, so earlier values of the id need their own
+                write();
+            }
+            if (count == 0) {
+                if (keyframe && keyframeDeclared >= known) {
+                    keyframe = false;
+                }
+                if (!keyframe && sequence >= nextKeyframe) {
+                    keyframe = true;
+                    keyframes++;
+                    keyframeDeclared = 0;
+                    nextKeyframe = sequence + keyframeInterval;
+                }
+                batchDelta = delta && !keyframe;
+            }
+            boolean undeclared = keyframe && declared[id] != keyframes;
+            if (changed || undeclared) {
+                byte[] keyBytes = key.getBytes();
+                dict = ensureRemaining(dict, 11 + keyBytes.length);
+                putVarint(dict, id);
+                dict.put(type.typeKey);
+                putVarint(dict, keyBytes.length);
+                dict.put(keyBytes);
+                types[id] = type.typeKey;
+                previous[id] = 0;
+            }
+            if (undeclared) {
+                declared[id] = keyframes;
+                keyframeDeclared++;
+            }
+            values = ensureRemaining(values, 5);
+            putVarint(values, id);
+            return id;
+        }
+
+        private void added() {
+            count++;
+            if (values.position() + dict.position() > MAX_BATCH_BYTES) {
+                // a keyframe goes on in the next batch, so the ids after this one are declared too
+                write();
+            }
+        }
+
+        // writes the pending DICT and BATCH frames to the FrameWriter, and ends the keyframe if one
+        // is going
+        void flush() {
+            write();
+            keyframe = false;
+        }
+
+        private void write() {
+            if (dict.position() > 0) {
+                out.begin(TYPE_DICT).putVarint(dicts++).put(dict.array(), 0, dict.position());
+                out.end();
+                dict.clear();
+            }
+            if (count > 0) {
+                out.begin(TYPE_BATCH)
+                        .put(batchDelta ? BATCH_DELTA : 0)
+                        .putVarint(sequence++)
+                        .putVarint(dicts)
+                        .put(values.array(), 0, values.position());
+                out.end();
+                values.clear();
+                count = 0;
+            }
+        }
+
+        private static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes) {
+            if (buffer.remaining() >= bytes) {
+                return buffer;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            return grown.put(buffer);
+        }
+    }
+}
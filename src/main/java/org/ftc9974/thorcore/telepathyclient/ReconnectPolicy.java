@@ -0,0 +1,43 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link TelepathyAPI#start(ReconnectPolicy)} retries. The delay before retry n (counting from 0)
+ * is min(maxDelay, initialDelay * 2^n), of which a random half is jitter, so clients that lost the
+ * robot at the same moment don't all come back at the same moment. The count starts over once a
+ * connection receives data.
+ */
+public final class ReconnectPolicy {
+
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(250, 5000, 2000, TimeUnit.MILLISECONDS);
+
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final long connectTimeoutNanos;
+
+    public ReconnectPolicy(long initialDelay, long maxDelay, long connectTimeout, TimeUnit unit) {
+        if (initialDelay <= 0 || maxDelay < initialDelay || connectTimeout <= 0) {
+            throw new IllegalArgumentException("delays and timeout must be positive, and maxDelay at least initialDelay");
+        }
+        initialDelayNanos = unit.toNanos(initialDelay);
+        maxDelayNanos = unit.toNanos(maxDelay);
+        connectTimeoutNanos = unit.toNanos(connectTimeout);
+    }
+
+    long delayNanos(int attempt) {
+        long ceiling = initialDelayNanos;
+        for (int i = 0; i < attempt && ceiling < maxDelayNanos; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxDelayNanos);
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    // an attempt that hasn't connected after this long is abandoned and counts as failed
+    long connectTimeoutNanos() {
+        return connectTimeoutNanos;
+    }
+}
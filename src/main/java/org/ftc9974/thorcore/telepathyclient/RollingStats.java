@@ -0,0 +1,228 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+/**
+ * Min, max, mean, standard deviation and rate of one numeric key over a sliding time window,
+ * updated in O(1) per sample. Samples are kept in a primitive ring like {@link TimeSeriesBuffer};
+ * when one leaves the window its contribution is taken back out of a Welford mean/variance, and
+ * min and max come from monotonic deques of ring slots.
+ * <p>
+ * The ring starts small and doubles whenever it is full of samples that are still in the window,
+ * so it ends up sized for the key's rate and then stops allocating. Only a key faster than
+ * maxCapacity samples per window loses its oldest samples early; its statistics then cover the
+ * last maxCapacity samples, and the rate is still right since it is taken over the span the ring
+ * holds.
+ * <p>
+ * Removing from a Welford sum loses a little precision every time, so the sums are recomputed
+ * from the retained samples once per capacity removals, which is still O(1) per sample on
+ * average. NaN and infinite values are skipped.
+ * <p>
+ * The event loop adds, the FX thread reads; all access is synchronized on the instance, so a
+ * reader that wants several values from the same moment can hold its monitor around them.
+ */
+final class RollingStats {
+
+    // 10 s of a 6.5 kHz key
+    static final int DEFAULT_MAX_CAPACITY = 1 << 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxCapacity;
+    private long[] timestamps;
+    private double[] values;
+    private long windowNanos;
+
+    // index of the oldest retained sample in the arrays
+    private int tail;
+    private int count;
+    private double mean;
+    // sum of squared differences from the mean
+    private double m2;
+    private int removedSinceRecompute;
+
+    // ring slots, oldest first, whose values decrease (max) or increase (min) from front to back,
+    // so the front is the extreme of the window
+    private int[] maxSlots;
+    private int[] minSlots;
+    private int maxHead, maxSize;
+    private int minHead, minSize;
+
+    // the latest time seen by add() or expire()
+    private long nowNanos;
+
+    RollingStats(long windowNanos) {
+        this(windowNanos, DEFAULT_MAX_CAPACITY);
+    }
+
+    RollingStats(long windowNanos, int maxCapacity) {
+        if (maxCapacity <= 0) {
+            throw new IllegalArgumentException("Statistics capacity must be positive");
+        }
+        this.maxCapacity = maxCapacity;
+        int capacity = Math.min(INITIAL_CAPACITY, maxCapacity);
+        timestamps = new long[capacity];
+        values = new double[capacity];
+        maxSlots = new int[capacity];
+        minSlots = new int[capacity];
+        this.windowNanos = windowNanos;
+    }
+
+    synchronized void setWindow(long windowNanos) {
+        this.windowNanos = windowNanos;
+        expire(nowNanos);
+    }
+
+    synchronized void add(long timestampNanos, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        nowNanos = Math.max(nowNanos, timestampNanos);
+        expire(nowNanos);
+        if (count == timestamps.length) {
+            if (timestamps.length < maxCapacity) {
+                grow();
+            } else {
+                removeOldest();
+            }
+        }
+        int slot = tail + count;
+        if (slot >= timestamps.length) {
+            slot -= timestamps.length;
+        }
+        timestamps[slot] = timestampNanos;
+        values[slot] = value;
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+
+        while (maxSize > 0 && values[maxSlots[back(maxHead, maxSize)]] <= value) {
+            maxSize--;
+        }
+        maxSlots[back(maxHead, maxSize + 1)] = slot;
+        maxSize++;
+        while (minSize > 0 && values[minSlots[back(minHead, minSize)]] >= value) {
+            minSize--;
+        }
+        minSlots[back(minHead, minSize + 1)] = slot;
+        minSize++;
+    }
+
+    // drops samples that are older than the window at nowNanos. readers call it so a key that
+    // went quiet empties out instead of showing its last window
+    synchronized void expire(long nowNanos) {
+        this.nowNanos = Math.max(this.nowNanos, nowNanos);
+        while (count > 0 && this.nowNanos - timestamps[tail] > windowNanos) {
+            removeOldest();
+        }
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    synchronized double min() {
+        return minSize == 0 ? Double.NaN : values[minSlots[minHead]];
+    }
+
+    synchronized double max() {
+        return maxSize == 0 ? Double.NaN : values[maxSlots[maxHead]];
+    }
+
+    synchronized double mean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    // population standard deviation of the window
+    synchronized double stddev() {
+        return count == 0 ? Double.NaN : Math.sqrt(Math.max(0, m2 / count));
+    }
+
+    // samples per second over the span from the oldest retained sample to the latest add() or
+    // expire(), so it falls off once a key stops and is 0 when the window is empty
+    synchronized double rate() {
+        long span = nowNanos - timestamps[tail];
+        return count == 0 || span <= 0 ? 0 : count * 1e9 / span;
+    }
+
+    synchronized int capacity() {
+        return timestamps.length;
+    }
+
+    private void removeOldest() {
+        int slot = tail;
+        double value = values[slot];
+        tail = tail + 1 == timestamps.length ? 0 : tail + 1;
+        count--;
+        if (maxSize > 0 && maxSlots[maxHead] == slot) {
+            maxHead = maxHead + 1 == maxSlots.length ? 0 : maxHead + 1;
+            maxSize--;
+        }
+        if (minSize > 0 && minSlots[minHead] == slot) {
+            minHead = minHead + 1 == minSlots.length ? 0 : minHead + 1;
+            minSize--;
+        }
+        if (count == 0) {
+            mean = 0;
+            m2 = 0;
+            removedSinceRecompute = 0;
+            return;
+        }
+        double delta = value - mean;
+        mean -= delta / count;
+        m2 -= delta * (value - mean);
+        if (++removedSinceRecompute >= timestamps.length) {
+            recompute();
+        }
+    }
+
+    // doubles the ring, unrolling it so the oldest sample is in slot 0
+    private void grow() {
+        int capacity = timestamps.length;
+        int grown = Math.min(capacity * 2, maxCapacity);
+        long[] timestamps = new long[grown];
+        double[] values = new double[grown];
+        for (int i = 0, slot = tail; i < count; i++, slot = slot + 1 == capacity ? 0 : slot + 1) {
+            timestamps[i] = this.timestamps[slot];
+            values[i] = this.values[slot];
+        }
+        maxSlots = unroll(maxSlots, maxHead, maxSize, grown);
+        minSlots = unroll(minSlots, minHead, minSize, grown);
+        maxHead = 0;
+        minHead = 0;
+        this.timestamps = timestamps;
+        this.values = values;
+        tail = 0;
+    }
+
+    // a deque of size entries from head, copied to the front of a new array of length capacity
+    // with its slots renumbered for the unrolled ring
+    private int[] unroll(int[] deque, int head, int size, int capacity) {
+        int[] unrolled = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            int slot = deque[(head + i) % deque.length] - tail;
+            unrolled[i] = slot < 0 ? slot + deque.length : slot;
+        }
+        return unrolled;
+    }
+
+    // exact two-pass mean and m2 of the retained samples
+    private void recompute() {
+        removedSinceRecompute = 0;
+        double sum = 0;
+        for (int i = 0, slot = tail; i < count; i++, slot = slot + 1 == values.length ? 0 : slot + 1) {
+            sum += values[slot];
+        }
+        mean = sum / count;
+        double squares = 0;
+        for (int i = 0, slot = tail; i < count; i++, slot = slot + 1 == values.length ? 0 : slot + 1) {
+            double delta = values[slot] - mean;
+            squares += delta * delta;
+        }
+        m2 = squares;
+    }
+
+    // the position of the last of size entries of a deque starting at head
+    private int back(int head, int size) {
+        int index = head + size - 1;
+        return index >= maxSlots.length ? index - maxSlots.length : index;
+    }
+}
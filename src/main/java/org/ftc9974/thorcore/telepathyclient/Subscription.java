@@ -0,0 +1,117 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The keys a client wants a server to stream, see {@link TelepathyAPI#subscribe(Subscription)}.
+ * Entries are exact keys or key prefixes, each with an optional maximum rate. A key matched by
+ * several entries gets the highest of their rates, and a key matched by none isn't sent at all, so
+ * a client that still wants to notice new keys subscribes to the prefix "" at a low rate.
+ */
+public final class Subscription {
+
+    // an exact key or prefix, and the minimum interval between its values in microseconds
+    private static final class Entry {
+
+        final String key;
+        final boolean prefix;
+        final int intervalMicros;
+
+        Entry(String key, boolean prefix, int intervalMicros) {
+            this.key = key;
+            this.prefix = prefix;
+            this.intervalMicros = intervalMicros;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    // the shortest interval of the exact entries of each key
+    private final Map<String, Integer> exact = new HashMap<>();
+
+    public Subscription key(String key) {
+        return add(key, false, 0);
+    }
+
+    // maxRate in values per second
+    public Subscription key(String key, double maxRate) {
+        return add(key, false, intervalMicros(maxRate));
+    }
+
+    public Subscription prefix(String prefix) {
+        return add(prefix, true, 0);
+    }
+
+    public Subscription prefix(String prefix, double maxRate) {
+        return add(prefix, true, intervalMicros(maxRate));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private Subscription add(String key, boolean prefix, int intervalMicros) {
+        entries.add(new Entry(key, prefix, intervalMicros));
+        if (!prefix) {
+            exact.merge(key, intervalMicros, Math::min);
+        }
+        return this;
+    }
+
+    private static int intervalMicros(double maxRate) {
+        if (!(maxRate > 0)) {
+            throw new IllegalArgumentException("maxRate must be positive");
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.ceil(1e6 / maxRate));
+    }
+
+    // the shortest interval in microseconds the entries allow between values of key, or -1 if key
+    // isn't subscribed to
+    long intervalMicros(String key) {
+        Integer interval = exact.get(key);
+        long shortest = interval == null ? -1 : interval;
+        for (Entry entry : entries) {
+            if (entry.prefix && key.startsWith(entry.key) && (shortest < 0 || entry.intervalMicros < shortest)) {
+                shortest = entry.intervalMicros;
+            }
+        }
+        return shortest;
+    }
+
+    // as a SUBSCRIBE frame. throws IllegalArgumentException if the entries don't fit in one frame
+    byte[] toFrame() {
+        ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(64);
+        ProtocolV2.FrameWriter.PayloadBuffer payload = writer.begin(ProtocolV2.TYPE_SUBSCRIBE).putVarint(entries.size());
+        for (Entry entry : entries) {
+            byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+            payload.put(entry.prefix ? ProtocolV2.SUBSCRIBE_PREFIX : 0)
+                    .putVarint(key.length)
+                    .put(key)
+                    .putVarint(entry.intervalMicros);
+        }
+        writer.end();
+        return writer.toByteArray();
+    }
+
+    // the payload of a SUBSCRIBE frame. throws IndexOutOfBoundsException if it is truncated
+    static Subscription fromPayload(ByteBuffer payload) {
+        Subscription subscription = new Subscription();
+        int count = ProtocolV2.getVarint(payload);
+        for (int i = 0; i < count; i++) {
+            byte flags = payload.get();
+            int length = ProtocolV2.getVarint(payload);
+            if (length < 0 || length > payload.remaining()) {
+                throw new IndexOutOfBoundsException("key runs past the end of the frame");
+            }
+            String key = new String(payload.array(), payload.arrayOffset() + payload.position(), length, StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+            int interval = ProtocolV2.getVarint(payload);
+            subscription.add(key, (flags & ProtocolV2.SUBSCRIBE_PREFIX) != 0, Math.max(0, interval));
+        }
+        return subscription;
+    }
+}
@@ -0,0 +1,177 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Line graph of a {@link TimeSeriesBuffer}, drawn onto a Canvas instead of one scene graph node per
+ * point. Samples are reduced to a first/min/max/last summary per pixel column, so the drawing work
+ * depends on the width of the graph, not on how many samples are retained.
+ * <p>
+ * The x axis is time, from the samples' timestamps, so bursts and gaps in delivery don't stretch or
+ * squeeze the line. It ends at the newest sample and covers the history's window, or everything
+ * retained if the history has no window.
+ */
+class TelemetryChart extends Region {
+
+    private static final Color LINE_COLOR = Color.web("#f3622d");
+    private static final Color AXIS_COLOR = Color.web("#505050");
+    private static final Font AXIS_FONT = Font.font(10);
+    private static final double AXIS_WIDTH = 60;
+    private static final double PADDING = 6;
+
+    private final TimeSeriesBuffer history;
+    private final Canvas canvas;
+
+    // scratch space for one redraw, reused between frames
+    private final long[] timestamps;
+    private final double[] values;
+    private double[] columnFirst, columnLast, columnMin, columnMax;
+
+    TelemetryChart(TimeSeriesBuffer history) {
+        this.history = history;
+        timestamps = new long[history.capacity()];
+        values = new double[history.capacity()];
+        canvas = new Canvas();
+        getChildren().add(canvas);
+        setPrefHeight(200);
+        setMinHeight(100);
+    }
+
+    // redraws from the history; call whenever it has new samples
+    void refresh() {
+        double width = canvas.getWidth();
+        double height = canvas.getHeight();
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, width, height);
+        if (width <= AXIS_WIDTH || height <= 2 * PADDING) {
+            return;
+        }
+
+        long first;
+        int count;
+        synchronized (history) {
+            first = history.first();
+            count = history.read(first, timestamps, values);
+        }
+        if (count == 0) {
+            return;
+        }
+
+        int columns = (int) (width - AXIS_WIDTH - PADDING);
+        ensureColumns(columns);
+        long end = timestamps[count - 1];
+        long span = history.windowNanos() > 0 ? history.windowNanos() : end - timestamps[0];
+        long start = end - span;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int lastColumn = -1;
+        for (int i = 0; i < count; i++) {
+            double value = values[i];
+            if (Double.isNaN(value) || Double.isInfinite(value) || timestamps[i] < start) {
+                continue;
+            }
+            int column = span <= 0 ? columns - 1 : (int) ((double) (timestamps[i] - start) * (columns - 1) / span);
+            // a clock offset correction can step timestamps back a little; the line never does
+            column = Math.max(lastColumn, Math.min(columns - 1, column));
+            if (column != lastColumn) {
+                columnFirst[column] = value;
+                columnMin[column] = value;
+                columnMax[column] = value;
+                // mark skipped columns empty
+                for (int c = lastColumn + 1; c < column; c++) {
+                    columnFirst[c] = Double.NaN;
+                }
+                lastColumn = column;
+            } else {
+                columnMin[column] = Math.min(columnMin[column], value);
+                columnMax[column] = Math.max(columnMax[column], value);
+            }
+            columnLast[column] = value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (lastColumn < 0) {
+            return;
+        }
+        if (min == max) {
+            min -= 1;
+            max += 1;
+        }
+
+        double top = PADDING;
+        double bottom = height - PADDING;
+        double scale = (bottom - top) / (max - min);
+
+        gc.setFill(AXIS_COLOR);
+        gc.setFont(AXIS_FONT);
+        gc.setTextAlign(TextAlignment.RIGHT);
+        gc.setTextBaseline(VPos.TOP);
+        gc.fillText(format(max), AXIS_WIDTH - PADDING, top);
+        gc.setTextBaseline(VPos.BOTTOM);
+        gc.fillText(format(min), AXIS_WIDTH - PADDING, bottom);
+        gc.setTextAlign(TextAlignment.LEFT);
+        gc.fillText(String.format("-%.1f s", span / 1e9), AXIS_WIDTH + PADDING, bottom);
+        gc.setStroke(AXIS_COLOR);
+        gc.setLineWidth(1);
+        gc.strokeLine(AXIS_WIDTH + 0.5, top, AXIS_WIDTH + 0.5, bottom);
+        if (min < 0 && max > 0) {
+            double zero = Math.round(bottom - (0 - min) * scale) + 0.5;
+            gc.setLineDashes(2, 4);
+            gc.strokeLine(AXIS_WIDTH, zero, width - PADDING, zero);
+            gc.setLineDashes(null);
+        }
+
+        gc.setStroke(LINE_COLOR);
+        gc.setLineWidth(1.5);
+        gc.beginPath();
+        boolean started = false;
+        for (int c = 0; c <= lastColumn; c++) {
+            if (Double.isNaN(columnFirst[c])) {
+                continue;
+            }
+            double x = AXIS_WIDTH + 1 + c;
+            if (started) {
+                gc.lineTo(x, bottom - (columnFirst[c] - min) * scale);
+            } else {
+                gc.moveTo(x, bottom - (columnFirst[c] - min) * scale);
+                started = true;
+            }
+            if (columnMin[c] != columnMax[c]) {
+                gc.lineTo(x, bottom - (columnMin[c] - min) * scale);
+                gc.lineTo(x, bottom - (columnMax[c] - min) * scale);
+            }
+            gc.lineTo(x, bottom - (columnLast[c] - min) * scale);
+        }
+        gc.stroke();
+    }
+
+    private void ensureColumns(int columns) {
+        if (columnFirst == null || columnFirst.length < columns) {
+            columnFirst = new double[columns];
+            columnLast = new double[columns];
+            columnMin = new double[columns];
+            columnMax = new double[columns];
+        }
+    }
+
+    private static String format(double value) {
+        return String.format("%.4g", value);
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double width = snapSizeX(getWidth());
+        double height = snapSizeY(getHeight());
+        if (canvas.getWidth() != width || canvas.getHeight() != height) {
+            canvas.setWidth(width);
+            canvas.setHeight(height);
+            refresh();
+        }
+    }
+}
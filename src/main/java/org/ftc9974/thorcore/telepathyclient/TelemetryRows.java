@@ -0,0 +1,105 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The rows of a {@link TelemetryTable}, without any of its JavaFX: one per key, in the order the
+ * keys first arrived and found by channel id, the filter that picks the ones shown, and which of
+ * them are watched. A row is watched while it is in view or graphed, and
+ * {@link #subscription(double, Function)} asks the server for the watched keys at full rate.
+ */
+final class TelemetryRows<R extends TelemetryRows.Row> {
+
+    static class Row {
+
+        final int channel;
+        final String key;
+        // lower case key, for filtering
+        private final String search;
+        TelepathyAPI.Message message;
+
+        Row(TelepathyAPI.Message message) {
+            channel = message.channel;
+            key = message.key;
+            search = key.toLowerCase(Locale.ROOT);
+            this.message = message;
+        }
+    }
+
+    private final List<R> rows;
+    private final Function<TelepathyAPI.Message, R> newRow;
+    private Row[] byChannel = new Row[16];
+    private final Set<R> watched = new LinkedHashSet<>();
+    private final Set<R> watchedView = Collections.unmodifiableSet(watched);
+    private boolean watchedChanged;
+
+    // new rows are added to the end of rows, newRow makes the row of a key from its first message
+    TelemetryRows(List<R> rows, Function<TelepathyAPI.Message, R> newRow) {
+        this.rows = rows;
+        this.newRow = newRow;
+    }
+
+    @SuppressWarnings("unchecked")
+    R row(int channel) {
+        return channel < byChannel.length ? (R) byChannel[channel] : null;
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    // the row for the key of message, which mustn't have one yet
+    R add(TelepathyAPI.Message message) {
+        if (message.channel >= byChannel.length) {
+            byChannel = Arrays.copyOf(byChannel, Math.max(message.channel + 1, byChannel.length * 2));
+        }
+        R row = newRow.apply(message);
+        byChannel[message.channel] = row;
+        rows.add(row);
+        return row;
+    }
+
+    // the rows whose key contains text, ignoring case and surrounding spaces. null, which
+    // FilteredList takes as every row, if text is blank
+    static Predicate<Row> filter(String text) {
+        String search = text.trim().toLowerCase(Locale.ROOT);
+        return search.isEmpty() ? null : row -> row.search.contains(search);
+    }
+
+    void setWatched(R row, boolean watched) {
+        watchedChanged |= watched ? this.watched.add(row) : this.watched.remove(row);
+    }
+
+    // in the order they started being watched
+    Set<R> watched() {
+        return watchedView;
+    }
+
+    // true if the watched rows changed since the last call
+    boolean takeWatchedChanged() {
+        boolean changed = watchedChanged;
+        watchedChanged = false;
+        return changed;
+    }
+
+    // the watched keys at full rate, and every other key at backgroundRate so new keys still show up.
+    // a watched derived key needs its inputs, as given by derivedInputs, at full rate instead
+    Subscription subscription(double backgroundRate, Function<String, ? extends Collection<String>> derivedInputs) {
+        Subscription subscription = new Subscription().prefix("", backgroundRate);
+        for (R row : watched) {
+            subscription.key(row.key);
+            for (String input : derivedInputs.apply(row.key)) {
+                subscription.key(input);
+            }
+        }
+        return subscription;
+    }
+}
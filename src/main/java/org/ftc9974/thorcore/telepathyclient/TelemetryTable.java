@@ -0,0 +1,333 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+import javafx.geometry.Insets;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.Menu;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.RadioMenuItem;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableRow;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+import javafx.scene.control.Toggle;
+import javafx.scene.control.ToggleGroup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * The key/value table of the main screen. TableView only creates cells for the rows in view and
+ * recycles them while scrolling, so each key costs one {@link Row} instead of a row of nodes.
+ * Rows are kept by {@link TelemetryRows}, and updating or graphing one only touches its cell, if it
+ * is in view. Keys can be sorted by clicking the header and filtered by typing into the filter
+ * field; unsorted, they stay in the order they first arrived.
+ * <p>
+ * Rows that are in view or graphed are watched, and {@link #subscription(double)} asks the server
+ * for those at full rate and everything else at a trickle.
+ * <p>
+ * While the connection keeps statistics, numeric keys also show the min, max, mean, standard
+ * deviation and rate of their last statistics window, redrawn by {@link #refreshStatistics()}.
+ */
+class TelemetryTable {
+
+    static final class Row extends TelemetryRows.Row {
+
+        // non-null while the row is shown as a graph
+        TelemetryChart chart;
+        // the cell showing the value, while the row is in view
+        private ValueCell cell;
+        // the cells showing each statistic, while the row is in view
+        private final StatCell[] statCells = new StatCell[Stat.values().length];
+
+        private Row(TelepathyAPI.Message message) {
+            super(message);
+        }
+    }
+
+    private enum Stat {
+        MIN("Min"), MAX("Max"), MEAN("Mean"), STDDEV("Std dev"), RATE("Rate");
+
+        final String title;
+
+        Stat(String title) {
+            this.title = title;
+        }
+    }
+
+    private static final double CELL_PADDING = 10;
+    // offered by the row menu; --key-policy can set any other
+    private static final KeyPolicy[] MENU_POLICIES = {
+            KeyPolicy.PASS, KeyPolicy.latest(10), KeyPolicy.latest(1), KeyPolicy.decimate(10)
+    };
+    private static final String[] MENU_POLICY_NAMES = {
+            "Every value", "Latest, 10 per second", "Latest, 1 per second", "Every 10th value"
+    };
+
+    private final TableView<Row> table;
+    private final TelepathyAPI telepathy;
+    private final TableColumn<Row, Row> valueColumn;
+    private final IntFunction<TimeSeriesBuffer> histories;
+
+    private final ObservableList<Row> items = FXCollections.observableArrayList();
+    private final FilteredList<Row> filtered = new FilteredList<>(items);
+    private final TelemetryRows<Row> rows = new TelemetryRows<>(items, Row::new);
+
+    TelemetryTable(TableView<Row> table, TextField filter, TelepathyAPI telepathy, IntFunction<TimeSeriesBuffer> histories) {
+        this.table = table;
+        this.telepathy = telepathy;
+        this.histories = histories;
+
+        TableColumn<Row, String> keyColumn = new TableColumn<>("Key");
+        keyColumn.setCellValueFactory(features -> new ReadOnlyStringWrapper(features.getValue().key));
+        keyColumn.setPrefWidth(300);
+        // values change every frame, so only keys are sortable
+        valueColumn = new TableColumn<>("Value");
+        valueColumn.setCellValueFactory(features -> new ReadOnlyObjectWrapper<>(features.getValue()));
+        valueColumn.setCellFactory(column -> new ValueCell());
+        valueColumn.setSortable(false);
+        table.getColumns().setAll(List.of(keyColumn, valueColumn));
+        long window = telepathy.statisticsWindow(TimeUnit.MILLISECONDS);
+        if (window > 0) {
+            TableColumn<Row, Row> statsColumn = new TableColumn<>(String.format("Last %.3g s", window / 1000.0));
+            for (Stat stat : Stat.values()) {
+                TableColumn<Row, Row> column = new TableColumn<>(stat.title);
+                column.setCellValueFactory(features -> new ReadOnlyObjectWrapper<>(features.getValue()));
+                column.setCellFactory(view -> new StatCell(stat));
+                column.setSortable(false);
+                statsColumn.getColumns().add(column);
+            }
+            table.getColumns().add(statsColumn);
+        }
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        table.setRowFactory(view -> new KeyRow());
+
+        SortedList<Row> sorted = new SortedList<>(filtered);
+        sorted.comparatorProperty().bind(table.comparatorProperty());
+        table.setItems(sorted);
+
+        filter.textProperty().addListener((observable, oldText, text) -> filtered.setPredicate(TelemetryRows.filter(text)));
+    }
+
+    Row row(int channel) {
+        return rows.row(channel);
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    // shows message as the latest value of its key, adding a row for keys seen for the first time
+    void update(TelepathyAPI.Message message) {
+        Row row = rows.row(message.channel);
+        if (row == null) {
+            rows.add(message);
+            return;
+        }
+        row.message = message;
+        if (row.cell != null) {
+            row.cell.show(row);
+        }
+    }
+
+    // redraws the statistics of the rows in view. a few times a second is plenty, and a key that
+    // stopped changing still has its window move on
+    void refreshStatistics() {
+        long now = System.nanoTime();
+        for (Row row : rows.watched()) {
+            for (StatCell cell : row.statCells) {
+                if (cell != null) {
+                    cell.show(row, now);
+                }
+            }
+        }
+    }
+
+    // true if the watched rows changed since the last call
+    boolean takeWatchedChanged() {
+        return rows.takeWatchedChanged();
+    }
+
+    Subscription subscription(double backgroundRate) {
+        return rows.subscription(backgroundRate, telepathy::derivedKeyInputs);
+    }
+
+    private void updateWatched(Row row) {
+        rows.setWatched(row, row.cell != null || row.chart != null);
+    }
+
+    void setGraphed(Row row, boolean graphed) {
+        if (graphed == (row.chart != null) || graphed && !row.message.isNumeric()) {
+            return;
+        }
+        if (graphed) {
+            row.chart = new TelemetryChart(histories.apply(row.channel));
+            row.chart.prefWidthProperty().bind(valueColumn.widthProperty().subtract(CELL_PADDING));
+        } else {
+            row.chart.prefWidthProperty().unbind();
+            row.chart = null;
+        }
+        updateWatched(row);
+        // a graph needs every sample, whatever the key's policy
+        telepathy.keepEverySample(row.key, graphed);
+        if (row.cell != null) {
+            row.cell.show(row);
+        }
+    }
+
+    private final class ValueCell extends TableCell<Row, Row> {
+
+        private Row row;
+
+        ValueCell() {
+            setPadding(new Insets(CELL_PADDING, 0, CELL_PADDING, 0));
+        }
+
+        @Override
+        protected void updateItem(Row item, boolean empty) {
+            super.updateItem(item, empty);
+            Row next = empty ? null : item;
+            if (row != null && row != next && row.cell == this) {
+                row.cell = null;
+                updateWatched(row);
+            }
+            row = next;
+            if (row == null) {
+                setText(null);
+                setGraphic(null);
+                return;
+            }
+            row.cell = this;
+            updateWatched(row);
+            show(row);
+        }
+
+        void show(Row row) {
+            if (row.chart != null) {
+                setText(null);
+                setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+                if (getGraphic() != row.chart) {
+                    setGraphic(row.chart);
+                }
+                row.chart.refresh();
+            } else {
+                setGraphic(null);
+                setContentDisplay(ContentDisplay.TEXT_ONLY);
+                setText(row.message.valueString());
+            }
+        }
+    }
+
+    private final class StatCell extends TableCell<Row, Row> {
+
+        private final Stat stat;
+        private Row row;
+
+        StatCell(Stat stat) {
+            this.stat = stat;
+            setPadding(new Insets(CELL_PADDING, 0, CELL_PADDING, 0));
+        }
+
+        @Override
+        protected void updateItem(Row item, boolean empty) {
+            super.updateItem(item, empty);
+            Row next = empty ? null : item;
+            if (row != null && row != next && row.statCells[stat.ordinal()] == this) {
+                row.statCells[stat.ordinal()] = null;
+            }
+            row = next;
+            if (row == null) {
+                setText(null);
+                return;
+            }
+            row.statCells[stat.ordinal()] = this;
+            show(row, System.nanoTime());
+        }
+
+        void show(Row row, long now) {
+            RollingStats stats = telepathy.statistics(row.channel);
+            if (stats == null || !row.message.isNumeric()) {
+                setText(null);
+                return;
+            }
+            double value;
+            synchronized (stats) {
+                stats.expire(now);
+                switch (stat) {
+                    case MIN:
+                        value = stats.min();
+                        break;
+                    case MAX:
+                        value = stats.max();
+                        break;
+                    case MEAN:
+                        value = stats.mean();
+                        break;
+                    case STDDEV:
+                        value = stats.stddev();
+                        break;
+                    default:
+                        value = stats.rate();
+                        break;
+                }
+            }
+            if (Double.isNaN(value)) {
+                setText(null);
+            } else {
+                setText(stat == Stat.RATE ? String.format("%.1f/s", value) : String.format("%.6g", value));
+            }
+        }
+    }
+
+    // one context menu per row in view, relabelled for whichever key the row is showing
+    private final class KeyRow extends TableRow<Row> {
+
+        KeyRow() {
+            MenuItem toggle = new MenuItem();
+            Menu rate = new Menu("Rate");
+            ToggleGroup rates = new ToggleGroup();
+            for (int i = 0; i < MENU_POLICIES.length; i++) {
+                KeyPolicy policy = MENU_POLICIES[i];
+                RadioMenuItem item = new RadioMenuItem(MENU_POLICY_NAMES[i]);
+                item.setUserData(policy);
+                item.setToggleGroup(rates);
+                item.setOnAction(event -> {
+                    Row row = getItem();
+                    if (row != null) {
+                        telepathy.setKeyPolicy(row.key, policy);
+                    }
+                });
+                rate.getItems().add(item);
+            }
+            ContextMenu menu = new ContextMenu(toggle, rate);
+            menu.setOnShowing(event -> {
+                Row row = getItem();
+                toggle.setText(row != null && row.chart != null ? "Show as text" : "Show as graph");
+                toggle.setDisable(row == null || !row.message.isNumeric());
+                rate.setDisable(row == null);
+                KeyPolicy current = row == null ? null : telepathy.keyPolicy(row.key);
+                rates.selectToggle(null);
+                for (Toggle item : rates.getToggles()) {
+                    if (item.getUserData().equals(current)) {
+                        rates.selectToggle(item);
+                    }
+                }
+            });
+            toggle.setOnAction(event -> {
+                Row row = getItem();
+                if (row != null) {
+                    setGraphed(row, row.chart == null);
+                }
+            });
+            setContextMenu(menu);
+        }
+    }
+}
@@ -2,19 +2,36 @@ package org.ftc9974.thorcore.telepathyclient;
 
 import org.apache.commons.lang3.ArrayUtils;
 
-import java.io.BufferedInputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class TelepathyAPI {
 
+    // LONG key a server can send with its System.nanoTime() when the writes before it were flushed.
+    // on one machine every JVM's nanoTime() reads the same clock, so receivedNanos minus its value
+    // is latency. TestServer --timestamps sends it and HeadlessClient measures it
+    static final String SEND_NANOS_KEY = "TestServer/SendNanos";
+
     public enum Type {
         STRING(0, String.class),
         BYTE(1, byte.class),
@@ -62,16 +79,125 @@ public class TelepathyAPI {
 
     public static class Message<T> {
         String key;
+        // ChannelRegistry id of the key
+        int channel;
         Type type;
+        // boxed value; numeric messages only box when getValue() is called
         T message;
+        // null unless raw retention is enabled, see setRetainRaw
         byte[] raw;
+        // integral value of BYTE, CHAR, SHORT, INT and LONG messages
+        long longValue;
+        // value of every numeric message, widened to double
+        double doubleValue;
+        // System.nanoTime() when the packet was decoded
+        long receivedNanos;
+        // when the value was taken, on the System.nanoTime() clock: the server's TIME stamp moved
+        // onto this clock by ClockSync, or receivedNanos when the server doesn't stamp values
+        long timestampNanos;
+        boolean serverTimestamp;
 
-        Message(String key, Type type, T message, byte[] raw) {
+        Message(String key, int channel, Type type, T message, byte[] raw) {
             this.key = key;
+            this.channel = channel;
             this.type = type;
             this.message = message;
             this.raw = raw;
         }
+
+        Message(String key, int channel, Type type, long longValue, double doubleValue, byte[] raw) {
+            this.key = key;
+            this.channel = channel;
+            this.type = type;
+            this.longValue = longValue;
+            this.doubleValue = doubleValue;
+            this.raw = raw;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getChannel() {
+            return channel;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+
+        // the time to plot or compare the value at; every key shares this axis
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        // true if getTimestampNanos() comes from the server rather than from receiving the message
+        public boolean hasServerTimestamp() {
+            return serverTimestamp;
+        }
+
+        // true for every type that can be graphed
+        public boolean isNumeric() {
+            return type != Type.STRING && type != Type.CHAR;
+        }
+
+        public double getDouble() {
+            return doubleValue;
+        }
+
+        // FLOAT and DOUBLE values are truncated
+        public long getLong() {
+            return type == Type.FLOAT || type == Type.DOUBLE ? (long) doubleValue : longValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T getValue() {
+            if (message == null) {
+                message = (T) box();
+            }
+            return message;
+        }
+
+        // formats the value without boxing it
+        public String valueString() {
+            switch (type) {
+                case STRING:
+                    return String.valueOf(message);
+                case CHAR:
+                    return String.valueOf((char) longValue);
+                case FLOAT:
+                    return Float.toString((float) doubleValue);
+                case DOUBLE:
+                    return Double.toString(doubleValue);
+                default:
+                    return Long.toString(longValue);
+            }
+        }
+
+        private Object box() {
+            switch (type) {
+                case BYTE:
+                    return (byte) longValue;
+                case CHAR:
+                    return (char) longValue;
+                case SHORT:
+                    return (short) longValue;
+                case INT:
+                    return (int) longValue;
+                case FLOAT:
+                    return (float) doubleValue;
+                case LONG:
+                    return longValue;
+                case DOUBLE:
+                    return doubleValue;
+                default:
+                    return null;
+            }
+        }
     }
 
     @FunctionalInterface
@@ -80,157 +206,1071 @@ public class TelepathyAPI {
         void onNewMessage(Message<?> message);
     }
 
-    private static Socket socket;
-
-    private static Thread dataListener, keepAliveHandler;
+    public enum Delivery {
+        // every message, in order. if the listener falls too far behind, reading from the server stops
+        // until it catches up, which never holds up other connections
+        LOSSLESS,
+        // only the newest message of each key; reading never waits
+        CONFLATED
+    }
 
-    private static boolean hasFiredDCListeners;
+    // a registered DataListener. each one runs on its own thread
+    public interface ListenerHandle {
 
-    private static AtomicBoolean inUse;
+        Delivery delivery();
 
-    private static List<DataListener> listeners;
-    private static List<Runnable> disconnectedListeners;
+        // messages handed to the listener's queue that it hasn't consumed yet
+        long lag();
 
-    private static AtomicBoolean connected;
+        // messages replaced by a newer one before the listener got to them (CONFLATED only)
+        long dropped();
 
-    private static final Object listenerLock = new Object();
+        // times reading stopped because the listener's queue was full (LOSSLESS only)
+        long stalls();
 
-    public static void initialize(String ip, int port) throws IOException {
-        socket = new Socket(ip, port);
-        inUse = new AtomicBoolean(true);
-        listeners = new ArrayList<>();
-        disconnectedListeners = new ArrayList<>();
-        connected = new AtomicBoolean(true);
-        dataListener = new Thread(TelepathyAPI::serve, "TelepathyListener");
-        dataListener.start();
-        keepAliveHandler = new Thread(TelepathyAPI::handleKeepAlive, "TelepathyKeepAlive");
-        keepAliveHandler.start();
+        void remove();
     }
 
-    public static boolean connected() {
-        return socket != null && connected.get();
-    }
+    // keep-alive bytes, or pings once the server accepts FEATURE_HEARTBEAT
+    private static final long HEARTBEAT_PERIOD_MS = 100;
 
-    public static void addDisconnectionListener(Runnable listener) {
-        disconnectedListeners.add(listener);
+    public interface ConnectionListener {
+
+        void onConnected();
+
+        // a start() attempt failed; the next one begins in retryDelayMillis
+        default void onConnectFailed(IOException cause, long retryDelayMillis) {
+        }
     }
 
-    private static void serve() {
-        try (BufferedInputStream inputStream = new BufferedInputStream(socket.getInputStream())) {
-            List<List<Byte>> packets = new ArrayList<>();
-            while (inUse.get()) {
-                if (!connected() && !hasFiredDCListeners) {
-                    for (Runnable disconnectedListener : disconnectedListeners) {
-                        disconnectedListener.run();
-                    }
-                    hasFiredDCListeners = true;
-                } else if (connected()) {
-                    hasFiredDCListeners = false;
-                }
-                if (inputStream.available() > 0) {
-                    byte b = (byte) inputStream.read();
-                    if (b == 0) {
-                        packets.add(new ArrayList<>());
+    private static final AtomicInteger listenerCount = new AtomicInteger();
+    private static final AtomicInteger instanceCount = new AtomicInteger();
+
+    private final String ip;
+    private final int port;
+    private final TelepathyEventLoop loop;
+    private final int instance = instanceCount.incrementAndGet();
+
+    // the current connection, replaced by every connect(). guarded by this
+    private Session session;
+
+    private final List<DispatchQueue> listeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> disconnectedListeners = new CopyOnWriteArrayList<>();
+    private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
+
+    // set by start(), cleared by disconnect(). the rest is event loop only
+    private volatile ReconnectPolicy reconnectPolicy;
+    private int failedAttempts;
+    private TelepathyEventLoop.Timer reconnectTimer;
+    private SocketChannel connecting;
+
+    private final AtomicBoolean connected = new AtomicBoolean();
+
+    private volatile FlightRecorder recorder;
+
+    private volatile boolean retainRaw = true;
+    private volatile boolean negotiate = true;
+    private volatile boolean compression;
+    private volatile int missedPongLimit = 20;
+    // the SUBSCRIBE frame sent to every server that accepts FEATURE_SUBSCRIBE, or null for every key
+    private volatile byte[] subscription;
+
+    // survives reconnects, so a key keeps its channel id for the life of the connection object
+    private final ChannelRegistry channels = new ChannelRegistry();
+
+    private final TelepathyMetrics metrics = new TelepathyMetrics(this, channels);
+    private final KeyPolicies policies;
+    private final DerivedKeys derived = new DerivedKeys(channels, message -> publish(message, message.receivedNanos));
+    // rolling statistics of every numeric key, indexed by channel, while the window isn't 0. the
+    // event loop fills and grows the array, and writes the field again after every new entry
+    private volatile RollingStats[] statistics = new RollingStats[0];
+    private volatile long statisticsWindowNanos;
+    // started by the first connect(), stopped by shutdown(). guarded by this
+    private TelepathyEventLoop.Timer metricsTimer;
+    private ObjectName metricsName;
+
+    // one socket and its decoders. events from a previous connection go to that connection's
+    // session, so they can't touch the current one
+    private final class Session implements TelepathyEventLoop.ChannelHandler, FrameDecoderV2.FrameHandler {
+
+        final SocketChannel channel;
+        final FrameDecoder legacyDecoder = new FrameDecoder(TelepathyAPI.this::onFrame);
+        final FrameDecoderV2 decoder = new FrameDecoderV2(this);
+        final BatchDecoder batches = new BatchDecoder(channels, this::dispatch);
+        final ByteBuffer keepAliveBuffer = ByteBuffer.allocate(1);
+        final ProtocolV2.FrameWriter pingWriter = new ProtocolV2.FrameWriter(32);
+        // the rest of frames the socket's send buffer couldn't take, written before anything else
+        ByteBuffer unsent = ByteBuffer.allocate(64);
+        TelepathyEventLoop.Timer heartbeatTimer;
+        // the channel's registration with the loop, and whether OP_READ is off because a listener's
+        // queue is full. loop only
+        SelectionKey key;
+        boolean paused;
+        // set when the server accepts FEATURE_HEARTBEAT. outstandingPings counts pings sent since
+        // the last pong
+        boolean pings;
+        int outstandingPings;
+        // set when the server accepts FEATURE_SUBSCRIBE
+        volatile boolean subscribes;
+        // set when the server accepts FEATURE_TIMESTAMPS. the server's clock is its own on every
+        // connection, so the estimate starts over with the session
+        volatile boolean timestamps;
+        final ClockSync clock = new ClockSync();
+        // the latest TIME frame on the local clock, stamped on values until the next one
+        boolean stamped;
+        long stampNanos;
+        // -1 until the first pong
+        volatile long roundTripNanos = -1;
+        volatile long smoothedRoundTripNanos = -1;
+        volatile long jitterNanos;
+        // 0 until the first byte from the server shows which format it speaks
+        volatile int version;
+        // set up when the server accepts FEATURE_DEFLATE. frames inflated from COMPRESSED frames
+        // come back to onFrame through the second decoder
+        volatile Inflater inflater;
+        FrameDecoderV2 inflated;
+        volatile long compressedBytes;
+        volatile long inflatedBytes;
+        volatile long inflateNanos;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // runs on the event loop whenever the socket has data. one read per wakeup, so a busy
+        // connection can't starve the others sharing the loop
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            ByteBuffer readBuffer = loop.readBuffer();
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                // server closed the connection
+                disconnect(this, true);
+                return;
+            }
+            if (read == 0) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (version == 0) {
+                // a server that accepts and hangs up straight away keeps backing off
+                failedAttempts = 0;
+                version = negotiate && readBuffer.get(0) == ProtocolV2.MAGIC ? ProtocolV2.VERSION : 1;
+            }
+            if (version == ProtocolV2.VERSION) {
+                decoder.feed(readBuffer.array(), 0, read);
+            } else {
+                legacyDecoder.feed(readBuffer.array(), 0, read);
+            }
+            metrics.recordRead(read, System.nanoTime() - start);
+            this.key = key;
+            if (anyListenerCongested()) {
+                // TCP pushes back on this server until resumeReading(), the loop carries on
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                paused = true;
+            }
+        }
+
+        // frames this connection's decoders dropped
+        long rejected() {
+            return legacyDecoder.rejected() + decoder.rejected() + batches.rejected()
+                    + (inflated == null ? 0 : inflated.rejected());
+        }
+
+        @Override
+        public void onError(SelectionKey key, IOException e) {
+            disconnect(this, true);
+        }
+
+        @Override
+        public void onFrame(byte type, ByteBuffer payload) {
+            switch (type) {
+                case ProtocolV2.TYPE_HELLO:
+                    int features = payload.hasRemaining() ? ProtocolV2.getVarint(payload) : 0;
+                    pings = (features & ProtocolV2.FEATURE_HEARTBEAT) != 0;
+                    subscribes = (features & ProtocolV2.FEATURE_SUBSCRIBE) != 0;
+                    timestamps = (features & ProtocolV2.FEATURE_TIMESTAMPS) != 0;
+                    sendSubscription();
+                    if ((features & ProtocolV2.FEATURE_DEFLATE) != 0 && inflater == null) {
+                        inflater = new Inflater(true);
+                        inflated = new FrameDecoderV2((innerType, innerPayload) -> {
+                            if (innerType != ProtocolV2.TYPE_COMPRESSED) {
+                                onFrame(innerType, innerPayload);
+                            }
+                        }, 8192);
                     }
-                    for (List<Byte> packet : packets) {
-                        packet.add(b);
+                    break;
+                case ProtocolV2.TYPE_COMPRESSED:
+                    if (inflater != null) {
+                        inflate(payload);
                     }
-                }
-                List<List<Byte>> trimmedPackets = new ArrayList<>();
-                for (int i = 0; i < packets.size() - 1; i++) {
-                    if (validatePacket(packets.get(i))) {
-                        List<Byte> packet = packets.get(i);
-                        Message message = deserializeMessage(packet.subList(1, packet.size()));
-                        synchronized (listenerLock) {
-                            for (DataListener listener : listeners) {
-                                listener.onNewMessage(message);
-                            }
+                    break;
+                case ProtocolV2.TYPE_PONG:
+                    if (payload.remaining() >= 8) {
+                        long now = System.nanoTime();
+                        long sent = payload.getLong();
+                        onPong(now - sent);
+                        if (timestamps && payload.remaining() >= 8) {
+                            clock.onPong(sent, payload.getLong(), now);
                         }
-                    } else if (packets.get(i).stream().filter(b -> b == 0).count() < 20) {
-                        trimmedPackets.add(packets.get(i));
                     }
+                    break;
+                case ProtocolV2.TYPE_TIME:
+                    if (timestamps && payload.remaining() >= 8) {
+                        long serverNanos = payload.getLong();
+                        clock.onTime(serverNanos, System.nanoTime());
+                        stampNanos = clock.toLocal(serverNanos);
+                        stamped = true;
+                    }
+                    break;
+                case ProtocolV2.TYPE_MESSAGE:
+                    Message<?> message;
+                    try {
+                        message = deserializeMessageV2(payload, retainRaw, channels);
+                    } catch (IndexOutOfBoundsException e) {
+                        metrics.recordUndecodable();
+                        return;
+                    }
+                    dispatch(message);
+                    break;
+                case ProtocolV2.TYPE_DICT:
+                    batches.onDict(payload);
+                    break;
+                case ProtocolV2.TYPE_BATCH:
+                    batches.onBatch(payload);
+                    break;
+                default:
+                    // frame types from a newer server are skipped
+                    break;
+            }
+        }
+
+        void dispatch(Message<?> message) {
+            if (stamped) {
+                message.timestampNanos = stampNanos;
+                message.serverTimestamp = true;
+            }
+            TelepathyAPI.this.dispatch(message);
+        }
+
+        private void inflate(ByteBuffer payload) {
+            int length = payload.remaining();
+            // the whole COMPRESSED frame, so the ratio includes its framing
+            compressedBytes += 2 + ProtocolV2.varintSize(length + 1) + 1 + length + ProtocolV2.CRC_LENGTH;
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), length);
+            try {
+                inflatedBytes += inflated.inflate(inflater);
+            } catch (DataFormatException e) {
+                // the rest of the deflate stream can't be recovered. later frames in this read
+                // must not reach the inflater either
+                inflater.end();
+                inflater = null;
+                disconnect(this, true);
+                return;
+            }
+            inflateNanos = inflated.inflateNanos();
+        }
+
+        // runs on the event loop every HEARTBEAT_PERIOD_MS
+        void heartbeat() {
+            if (!pings) {
+                sendKeepAlive();
+                return;
+            }
+            if (paused) {
+                // pongs wait unread behind the data, and it's this end that stopped reading, not the
+                // server that stopped answering
+                return;
+            }
+            if (outstandingPings >= missedPongLimit) {
+                // the link is dead even though no write has failed yet
+                disconnect(this, true);
+                return;
+            }
+            outstandingPings++;
+            pingWriter.begin(ProtocolV2.TYPE_PING).putLong(System.nanoTime());
+            pingWriter.end();
+            try {
+                write(pingWriter.flip());
+            } catch (IOException e) {
+                disconnect(this, true);
+            } finally {
+                pingWriter.clear();
+            }
+        }
+
+        // event loop only
+        void sendSubscription() {
+            byte[] frame = subscription;
+            if (!subscribes || frame == null || !channel.isOpen()) {
+                return;
+            }
+            try {
+                write(ByteBuffer.wrap(frame));
+            } catch (IOException e) {
+                disconnect(this, true);
+            }
+        }
+
+        // writes as much of bytes as the send buffer takes now, and keeps the rest for the next write
+        // or heartbeat, so a frame is never cut short or interleaved with another
+        void write(ByteBuffer bytes) throws IOException {
+            if (flushUnsent()) {
+                channel.write(bytes);
+            }
+            if (bytes.hasRemaining()) {
+                if (unsent.remaining() < bytes.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(unsent.capacity() * 2, unsent.position() + bytes.remaining()));
+                    unsent.flip();
+                    grown.put(unsent);
+                    unsent = grown;
                 }
-                if (!packets.isEmpty()) {
-                    trimmedPackets.add(packets.get(packets.size() - 1));
+                unsent.put(bytes);
+            }
+        }
+
+        // true once nothing is left unsent
+        boolean flushUnsent() throws IOException {
+            if (unsent.position() == 0) {
+                return true;
+            }
+            unsent.flip();
+            channel.write(unsent);
+            unsent.compact();
+            return unsent.position() == 0;
+        }
+
+        // rtt is smoothed like TCP's SRTT; jitter is the mean difference between consecutive
+        // round trips, as in RFC 3550
+        private void onPong(long rtt) {
+            if (rtt < 0) {
+                return;
+            }
+            outstandingPings = 0;
+            if (smoothedRoundTripNanos < 0) {
+                smoothedRoundTripNanos = rtt;
+            } else {
+                jitterNanos += (Math.abs(rtt - roundTripNanos) - jitterNanos) / 16;
+                smoothedRoundTripNanos += (rtt - smoothedRoundTripNanos) / 8;
+            }
+            roundTripNanos = rtt;
+        }
+
+        void sendKeepAlive() {
+            try {
+                if (!flushUnsent()) {
+                    // a keep-alive byte inside a frame would corrupt it
+                    return;
                 }
-                packets.clear();
-                packets.addAll(trimmedPackets);
+                keepAliveBuffer.clear();
+                // a full send buffer just means this keep-alive is skipped
+                channel.write(keepAliveBuffer);
+            } catch (IOException e) {
+                // keep alive refused, connection lost
+                disconnect(this, true);
             }
+        }
+    }
+
+    // nothing happens until connect(), so listeners can be added first without missing a message
+    public TelepathyAPI(String ip, int port) {
+        this(ip, port, TelepathyEventLoop.shared());
+    }
+
+    TelepathyAPI(String ip, int port, TelepathyEventLoop loop) {
+        this.ip = ip;
+        this.port = port;
+        this.loop = loop;
+        policies = new KeyPolicies(loop, channels, this::deliver);
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // can be called again after a disconnect; listeners and channel ids carry over. blocks for as
+    // long as the operating system takes to connect or give up, so don't call it from a UI thread
+    public void connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(ip, port));
+        try {
+            if (negotiate) {
+                // still blocking, so the whole HELLO goes out before anything else
+                channel.write(ByteBuffer.wrap(hello()));
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
         } catch (IOException e) {
-            e.printStackTrace();
+            channel.close();
+            throw e;
         }
+        startSession(channel, null);
     }
 
-    private static void handleKeepAlive() {
-        try (OutputStream outputStream = socket.getOutputStream()) {
-            while (inUse.get()) {
-                outputStream.write(0);
-                try {
-                    TimeUnit.MILLISECONDS.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    // connects in the background, and whenever the connection drops reconnects with policy's
+    // backoff, until disconnect() or shutdown(). never blocks, so it is safe on a UI thread
+    public void start(ReconnectPolicy policy) {
+        reconnectPolicy = policy;
+        startMetrics();
+        retryNow();
+    }
+
+    // with start(), cuts the current backoff delay short and tries to connect right away
+    public void retryNow() {
+        loop.execute(() -> {
+            if (reconnectTimer != null) {
+                reconnectTimer.cancel();
+                reconnectTimer = null;
+            }
+            attemptConnect();
+        });
+    }
+
+    private byte[] hello() {
+        int features = ProtocolV2.FEATURE_HEARTBEAT | ProtocolV2.FEATURE_SUBSCRIBE | ProtocolV2.FEATURE_TIMESTAMPS
+                | (compression ? ProtocolV2.FEATURE_DEFLATE : 0);
+        return ProtocolV2.hello(features);
+    }
+
+    // channel is connected and non-blocking. key is its registration with the loop if it already has one
+    private void startSession(SocketChannel channel, SelectionKey key) throws IOException {
+        Session session = new Session(channel);
+        synchronized (this) {
+            if (!connected.compareAndSet(false, true)) {
+                channel.close();
+                throw new IllegalStateException("Already connected to " + this);
+            }
+            this.session = session;
+            if (key == null) {
+                loop.register(channel, SelectionKey.OP_READ, session);
+            } else {
+                key.attach(session);
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            session.heartbeatTimer = loop.scheduleAtFixedRate(session::heartbeat, HEARTBEAT_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+        startMetrics();
+        for (ConnectionListener listener : connectionListeners) {
+            listener.onConnected();
+        }
+    }
+
+    // event loop only, like everything else that touches connecting and reconnectTimer
+    private void attemptConnect() {
+        ReconnectPolicy policy = reconnectPolicy;
+        if (policy == null || connected.get() || connecting != null) {
+            return;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException e) {
+            connectFailed(e);
+            return;
+        }
+        connecting = channel;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // ip is normally a literal address, so this doesn't wait on DNS
+            if (channel.connect(new InetSocketAddress(ip, port))) {
+                established(channel, null);
+                return;
+            }
+        } catch (IOException e) {
+            connectFailed(e);
+            return;
+        }
+        TelepathyEventLoop.Timer timeout = loop.schedule(() -> {
+            if (connecting == channel) {
+                connectFailed(new SocketTimeoutException("Connecting to " + this + " timed out"));
+            }
+        }, policy.connectTimeoutNanos(), TimeUnit.NANOSECONDS);
+        loop.register(channel, SelectionKey.OP_CONNECT, new TelepathyEventLoop.ChannelHandler() {
+            @Override
+            public void onReady(SelectionKey key) throws IOException {
+                if (channel.finishConnect()) {
+                    timeout.cancel();
+                    established(channel, key);
                 }
             }
+
+            @Override
+            public void onError(SelectionKey key, IOException e) {
+                timeout.cancel();
+                if (connecting == channel) {
+                    connectFailed(e);
+                }
+            }
+        });
+    }
+
+    private void established(SocketChannel channel, SelectionKey key) {
+        try {
+            if (negotiate) {
+                ByteBuffer hello = ByteBuffer.wrap(hello());
+                // a few bytes into an empty send buffer, so this only comes up short if the socket is broken
+                channel.write(hello);
+                if (hello.hasRemaining()) {
+                    throw new IOException("Couldn't send HELLO to " + this);
+                }
+            }
+            connecting = null;
+            startSession(channel, key);
         } catch (IOException e) {
-            // keep alive refused, connection lost
-            connected.set(false);
+            connectFailed(e);
+        } catch (IllegalStateException e) {
+            // connect() got there first
         }
     }
 
-    public static void addNewMessageListener(DataListener listener) {
-        synchronized (listenerLock) {
-            listeners.add(listener);
+    private void connectFailed(IOException cause) {
+        if (connecting != null) {
+            try {
+                connecting.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            connecting = null;
+        }
+        ReconnectPolicy policy = reconnectPolicy;
+        if (policy == null) {
+            return;
+        }
+        long delay = scheduleReconnect(policy);
+        for (ConnectionListener listener : connectionListeners) {
+            listener.onConnectFailed(cause, TimeUnit.NANOSECONDS.toMillis(delay));
         }
     }
 
-    public static void shutdown() {
-        inUse.set(false);
+    private long scheduleReconnect(ReconnectPolicy policy) {
+        long delay = policy.delayNanos(failedAttempts++);
+        reconnectTimer = loop.schedule(() -> {
+            reconnectTimer = null;
+            attemptConnect();
+        }, delay, TimeUnit.NANOSECONDS);
+        return delay;
     }
 
-    private static Message<?> deserializeMessage(List<Byte> bytes) {
-        List<Byte> keyBytes = new ArrayList<>();
-        for (byte aByte : bytes) {
-            if (aByte < 32) {
-                // check for control characters
-                if (aByte < 9 || aByte > 13) {
-                    break;
+    public boolean connected() {
+        return connected.get();
+    }
+
+    // 2 if the server speaks ProtocolV2, 1 for the legacy format, 0 if nothing has been received yet
+    public int protocolVersion() {
+        Session session = currentSession();
+        return session == null ? 0 : session.version;
+    }
+
+    // whether connect() offers ProtocolV2. disable it for servers that don't tolerate the HELLO frame
+    public void setNegotiate(boolean negotiate) {
+        this.negotiate = negotiate;
+    }
+
+    // whether connect() asks a v2 server to deflate the stream. takes effect on the next connect()
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    // how many heartbeats may go by without a pong before the connection is dropped. only applies to
+    // v2 servers that accept FEATURE_HEARTBEAT; legacy connections are dropped when a keep-alive fails
+    public void setMissedPongLimit(int missedPongLimit) {
+        if (missedPongLimit < 1) {
+            throw new IllegalArgumentException("missedPongLimit must be at least 1");
+        }
+        this.missedPongLimit = missedPongLimit;
+    }
+
+    // asks the server to only stream the keys in subscription, now and after every reconnect. it is
+    // copied, so later changes to it need another call. servers that don't accept FEATURE_SUBSCRIBE
+    // (legacy servers and older v2 ones) keep sending every key
+    public void subscribe(Subscription subscription) {
+        this.subscription = subscription.toFrame();
+        loop.execute(() -> {
+            Session session = currentSession();
+            if (session != null) {
+                session.sendSubscription();
+            }
+        });
+    }
+
+    // what listeners get of the keys matching pattern, where * matches anything. when several patterns
+    // match a key, the one set most recently wins; setting a pattern again replaces it. recordings
+    // always get every message
+    public void setKeyPolicy(String pattern, KeyPolicy policy) {
+        policies.set(pattern, policy);
+    }
+
+    public void removeKeyPolicy(String pattern) {
+        policies.remove(pattern);
+    }
+
+    // the policy the patterns give key
+    public KeyPolicy keyPolicy(String key) {
+        return policies.policy(key);
+    }
+
+    long policyDroppedMessages() {
+        return policies.dropped();
+    }
+
+    // publishes key as a DOUBLE computed from other keys by expression, e.g. "Target - Position", see
+    // Expression for the syntax. it is evaluated again whenever an input changes, on the event loop,
+    // and can be graphed like any key. throws IllegalArgumentException for a bad expression
+    public void deriveKey(String key, String expression) {
+        derived.define(key, expression);
+    }
+
+    public void removeDerivedKey(String key) {
+        derived.remove(key);
+    }
+
+    // each derived key that is waiting for a first value of some of its inputs, with those inputs
+    public Map<String, List<String>> missingDerivedInputs() {
+        return derived.missingInputs();
+    }
+
+    // the server keys a derived key is computed from, or an empty set for any other key
+    Set<String> derivedKeyInputs(String key) {
+        return derived.serverInputs(key);
+    }
+
+    // keeps min, max, mean, standard deviation and rate of every numeric key over the last window,
+    // see statistics(int). 0, the default, turns it off and drops what was kept
+    public void setStatisticsWindow(long window, TimeUnit unit) {
+        if (window < 0) {
+            throw new IllegalArgumentException("Statistics window can't be negative");
+        }
+        long windowNanos = unit.toNanos(window);
+        statisticsWindowNanos = windowNanos;
+        loop.execute(() -> {
+            if (windowNanos == 0) {
+                statistics = new RollingStats[0];
+                return;
+            }
+            for (RollingStats stats : statistics) {
+                if (stats != null) {
+                    stats.setWindow(windowNanos);
                 }
             }
-            keyBytes.add(aByte);
+        });
+    }
+
+    public long statisticsWindow(TimeUnit unit) {
+        return unit.convert(statisticsWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // the statistics of a numeric channel, or null if it has had no value since they were turned on
+    RollingStats statistics(int channel) {
+        RollingStats[] statistics = this.statistics;
+        return channel < statistics.length ? statistics[channel] : null;
+    }
+
+    // while set, every message of key is delivered whatever its policy says, e.g. while it is graphed
+    public void keepEverySample(String key, boolean keep) {
+        policies.keepEverySample(key, keep);
+    }
+
+    // whether the current server honours subscribe()
+    public boolean subscriptionsSupported() {
+        Session session = currentSession();
+        return session != null && session.subscribes;
+    }
+
+    // smoothed round trip time of the current connection's pings, or -1 if it has none (legacy
+    // servers, servers without FEATURE_HEARTBEAT, or no pong yet)
+    public long roundTripNanos() {
+        Session session = currentSession();
+        return session == null ? -1 : session.smoothedRoundTripNanos;
+    }
+
+    // the most recent round trip, unsmoothed
+    public long lastRoundTripNanos() {
+        Session session = currentSession();
+        return session == null ? -1 : session.roundTripNanos;
+    }
+
+    // how much consecutive round trips differ, on average
+    public long jitterNanos() {
+        Session session = currentSession();
+        return session == null ? 0 : session.jitterNanos;
+    }
+
+    // true once the current server stamps its values, see Message.getTimestampNanos()
+    public boolean serverTimestamps() {
+        Session session = currentSession();
+        return session != null && session.timestamps;
+    }
+
+    // the current server's clock minus this machine's System.nanoTime(), as estimated from pongs
+    // and TIME frames, or 0 before the first
+    public long clockOffsetNanos() {
+        Session session = currentSession();
+        return session == null ? 0 : session.clock.offsetNanos();
+    }
+
+    // how much faster the server's clock runs than this machine's, in parts per million
+    public double clockDriftPpm() {
+        Session session = currentSession();
+        return session == null ? 0 : session.clock.driftPpm();
+    }
+
+    // true once the server has agreed to compress the current connection
+    public boolean compressed() {
+        Session session = currentSession();
+        return session != null && session.inflater != null;
+    }
+
+    // compressed bytes received on the current connection, and the bytes they inflated to
+    public long compressedBytes() {
+        Session session = currentSession();
+        return session == null ? 0 : session.compressedBytes;
+    }
+
+    public long inflatedBytes() {
+        Session session = currentSession();
+        return session == null ? 0 : session.inflatedBytes;
+    }
+
+    // event loop time spent inflating on the current connection
+    public long inflateNanos() {
+        Session session = currentSession();
+        return session == null ? 0 : session.inflateNanos;
+    }
+
+    private synchronized Session currentSession() {
+        return session;
+    }
+
+    // called on the event loop whenever the server closes the connection or it fails
+    public void addDisconnectionListener(Runnable listener) {
+        disconnectedListeners.add(listener);
+    }
+
+    // called on the event loop (or connect()'s caller) when a connection is made, and after every
+    // failed start() attempt
+    public void addConnectionListener(ConnectionListener listener) {
+        connectionListeners.add(listener);
+    }
+
+    private void onFrame(ByteBuffer frame) {
+        Message<?> message;
+        try {
+            message = deserializeMessage(frame, retainRaw, channels);
+        } catch (IndexOutOfBoundsException e) {
+            // declared value is too short for its type
+            metrics.recordUndecodable();
+            return;
+        }
+        dispatch(message);
+    }
+
+    private void dispatch(Message<?> message) {
+        long now = System.nanoTime();
+        message.receivedNanos = now;
+        // a stamp can't be later than its arrival, whatever the offset estimate says so far
+        message.timestampNanos = message.serverTimestamp ? Math.min(message.timestampNanos, now) : now;
+        metrics.recordMessage(message.channel);
+        // recordings keep everything, whatever the listeners see
+        FlightRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.offer(message);
+        }
+        publish(message, now);
+    }
+
+    // a received or derived message to the statistics, the listeners and the keys derived from it.
+    // derived values aren't recorded, since a recording should hold what the server sent
+    private void publish(Message<?> message, long now) {
+        // before the policies, so a conflated key's statistics still see every value
+        if (statisticsWindowNanos > 0 && message.isNumeric()) {
+            statistics(message).add(message.timestampNanos, message.doubleValue);
+        }
+        if (policies.admit(message, now)) {
+            deliver(message);
         }
-        String key = new String(ArrayUtils.toPrimitive(keyBytes.toArray(new Byte[0])));
-        ByteBuffer buffer = ByteBuffer.wrap(ArrayUtils.toPrimitive(bytes.subList(keyBytes.size(), bytes.size()).toArray(new Byte[0])));
-        byte[] raw = ArrayUtils.toPrimitive(bytes.toArray(new Byte[0]));
-        Type type = Type.forByte(buffer.get());
+        if (message.isNumeric()) {
+            derived.onValue(message);
+        }
+    }
+
+    // the statistics of message's channel, created on its first value. event loop only
+    private RollingStats statistics(Message<?> message) {
+        RollingStats[] statistics = this.statistics;
+        if (message.channel >= statistics.length) {
+            statistics = Arrays.copyOf(statistics, Math.max(16, message.channel * 2));
+        }
+        RollingStats stats = statistics[message.channel];
+        if (stats == null) {
+            stats = new RollingStats(statisticsWindowNanos);
+            statistics[message.channel] = stats;
+            // publishes the new instance to readers
+            this.statistics = statistics;
+        }
+        return stats;
+    }
+
+    private void deliver(Message<?> message) {
+        for (DispatchQueue listener : listeners) {
+            listener.offer(message);
+        }
+    }
+
+    // event loop only. asks every listener, so each one that is full gets to refill and watch for
+    // its consumer catching up
+    private boolean anyListenerCongested() {
+        boolean congested = false;
+        for (DispatchQueue listener : listeners) {
+            congested |= listener.congested();
+        }
+        return congested;
+    }
+
+    // event loop only, once a listener has caught up or gone
+    private void resumeReading() {
+        Session session = currentSession();
+        if (session == null || !session.paused || anyListenerCongested()) {
+            return;
+        }
+        session.paused = false;
+        if (session.key.isValid()) {
+            session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void disconnect(Session session, boolean notify) {
+        synchronized (this) {
+            if (session != this.session || !connected.compareAndSet(true, false)) {
+                return;
+            }
+            session.heartbeatTimer.cancel();
+        }
+        metrics.endSession(session.rejected());
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // on the loop, so it can't free the inflater in the middle of an inflate
+        loop.execute(() -> {
+            if (session.inflater != null) {
+                session.inflater.end();
+            }
+        });
+        if (notify) {
+            for (Runnable disconnectedListener : disconnectedListeners) {
+                disconnectedListener.run();
+            }
+            ReconnectPolicy policy = reconnectPolicy;
+            if (policy != null) {
+                scheduleReconnect(policy);
+            }
+        }
+    }
+
+    public ListenerHandle addNewMessageListener(DataListener listener) {
+        return addNewMessageListener(listener, Delivery.LOSSLESS);
+    }
+
+    // the listener is called on its own thread, so a slow listener doesn't hold up socket reads
+    public ListenerHandle addNewMessageListener(DataListener listener, Delivery delivery) {
+        DispatchQueue queue = new DispatchQueue(listener, delivery, "TelepathyListener-" + listenerCount.incrementAndGet(), metrics.listener) {
+            @Override
+            void onDrained() {
+                loop.execute(TelepathyAPI.this::resumeReading);
+            }
+
+            @Override
+            public void remove() {
+                super.remove();
+                listeners.remove(this);
+                loop.execute(TelepathyAPI.this::resumeReading);
+            }
+        };
+        listeners.add(queue);
+        return queue;
+    }
+
+    ChannelRegistry channels() {
+        return channels;
+    }
+
+    // records every message received from now on, across reconnects, until stopRecording()
+    public synchronized void startRecording(Path directory) throws IOException {
+        stopRecording();
+        recorder = new FlightRecorder(directory, channels);
+    }
+
+    // returns how many messages the recording lost because the recorder fell too far behind
+    public synchronized long stopRecording() {
+        if (recorder == null) {
+            return 0;
+        }
+        recorder.close();
+        long dropped = recorder.dropped();
+        recorder = null;
+        return dropped;
+    }
+
+    // whether messages keep a copy of their packet in Message.raw. disable it to save a copy per message.
+    // values from v2 batches have no packet of their own and always leave raw null
+    public void setRetainRaw(boolean retain) {
+        retainRaw = retain;
+    }
+
+    // closes the connection without notifying disconnection listeners, and stops start() from
+    // reconnecting. connect() or start() can still be called again
+    public void disconnect() {
+        reconnectPolicy = null;
+        loop.execute(() -> {
+            if (reconnectTimer != null) {
+                reconnectTimer.cancel();
+                reconnectTimer = null;
+            }
+            if (connecting != null) {
+                connectFailed(new IOException("Disconnected"));
+            }
+            Session session = currentSession();
+            if (session != null) {
+                disconnect(session, false);
+            }
+        });
+    }
+
+    // counters and latency percentiles for this connection. also registered with JMX once connected
+    TelepathyMetrics metrics() {
+        return metrics;
+    }
+
+    private synchronized void startMetrics() {
+        if (metricsTimer != null) {
+            return;
+        }
+        metricsTimer = loop.scheduleAtFixedRate(() -> {
+            Session session = connected() ? currentSession() : null;
+            metrics.tick(System.nanoTime(), session == null ? 0 : session.rejected());
+        }, 1, TimeUnit.SECONDS);
+        try {
+            metricsName = new ObjectName("org.ftc9974.thorcore.telepathyclient:type=TelepathyAPI,name="
+                    + ObjectName.quote(this + " #" + instance));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            // metrics are still shown in the window, just not over JMX
+            e.printStackTrace();
+            metricsName = null;
+        }
+    }
+
+    // disconnects and removes every listener
+    public void shutdown() {
+        disconnect();
+        synchronized (this) {
+            if (metricsTimer != null) {
+                metricsTimer.cancel();
+                metricsTimer = null;
+            }
+            if (metricsName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+                } catch (JMException e) {
+                    e.printStackTrace();
+                }
+                metricsName = null;
+            }
+        }
+        for (DispatchQueue listener : listeners) {
+            listener.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return ip + ":" + port;
+    }
+
+    // frame holds one validated packet without its 0x00 header, between position() and limit()
+    static Message<?> deserializeMessage(ByteBuffer frame, boolean retainRaw, ChannelRegistry channels) {
+        int start = frame.position();
+        int end = frame.limit();
+        int keyLen = 0;
+        while (start + keyLen < end && FrameDecoder.isTextByte(frame.get(start + keyLen))) {
+            keyLen++;
+        }
+        byte[] raw = retainRaw ? slice(frame, start, end - start) : null;
+        return message(frame, start, keyLen, frame.get(start + keyLen), start + keyLen + 5, end, raw, channels);
+    }
+
+    // payload holds a ProtocolV2 MESSAGE payload between position() and limit()
+    static Message<?> deserializeMessageV2(ByteBuffer payload, boolean retainRaw, ChannelRegistry channels) {
+        int start = payload.position();
+        int end = payload.limit();
+        int keyLen = ProtocolV2.getVarint(payload);
+        int key = payload.position();
+        if (keyLen <= 0 || key + keyLen >= end) {
+            throw new IndexOutOfBoundsException("key runs past the end of the frame");
+        }
+        byte[] raw = retainRaw ? slice(payload, start, end - start) : null;
+        return message(payload, key, keyLen, payload.get(key + keyLen), key + keyLen + 1, end, raw, channels);
+    }
+
+    // builds the message for a key stored at [key, key + keyLen) and a value at [value, end)
+    private static Message<?> message(ByteBuffer buffer, int key, int keyLen, byte typeKey, int value, int end,
+                                      byte[] raw, ChannelRegistry channels) {
+        int channel = channels.lookup(buffer, key, keyLen);
+        String name = channels.key(channel);
+        Type type = Type.forByte(typeKey);
         switch (type) {
             case STRING:
-                return new Message<>(key, type, new String(ArrayUtils.toPrimitive(bytes.subList(keyBytes.size() + 5, bytes.size()).toArray(new Byte[0]))), raw);
+                return new Message<>(name, channel, type, string(buffer, value, end - value), raw);
             case BYTE:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.get(), raw);
+                byte b = buffer.get(value);
+                return new Message<Byte>(name, channel, type, b, b, raw);
             case CHAR:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.getChar(), raw);
+                char c = buffer.getChar(value);
+                return new Message<Character>(name, channel, type, c, c, raw);
             case SHORT:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.getShort(), raw);
+                short s = buffer.getShort(value);
+                return new Message<Short>(name, channel, type, s, s, raw);
             case INT:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.getInt(), raw);
+                int i = buffer.getInt(value);
+                return new Message<Integer>(name, channel, type, i, i, raw);
             case FLOAT:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.getFloat(), raw);
+                float f = buffer.getFloat(value);
+                return new Message<Float>(name, channel, type, (long) f, f, raw);
             case LONG:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.getLong(), raw);
+                long l = buffer.getLong(value);
+                return new Message<Long>(name, channel, type, l, l, raw);
             case DOUBLE:
-                buffer.getInt();
-                return new Message<>(key, type, buffer.getDouble(), raw);
+                double d = buffer.getDouble(value);
+                return new Message<Double>(name, channel, type, (long) d, d, raw);
             default:
                 throw new RuntimeException("Invalid type received (this error should never happen)");
         }
     }
 
+    private static String string(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + index, length);
+        }
+        return new String(slice(buffer, index, length));
+    }
+
+    private static byte[] slice(ByteBuffer buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + index, bytes, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(index + i);
+            }
+        }
+        return bytes;
+    }
+
     static boolean validatePacket(List<Byte> bytes) {
         try {
             if (bytes.get(0) != 0) {
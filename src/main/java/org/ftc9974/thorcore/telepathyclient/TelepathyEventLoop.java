@@ -0,0 +1,211 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded NIO event loop. Socket reads, writes and timers for every Telepathy connection
+ * run on this thread, driven by selector readiness and timer deadlines, so an idle connection
+ * costs nothing but a parked thread. Connections decode on the loop as well, out of one read
+ * buffer that they all share, so each connection adds a socket and a decoder but no threads.
+ */
+class TelepathyEventLoop implements Runnable {
+
+    @FunctionalInterface
+    interface ChannelHandler {
+
+        // called on the loop thread with the ready key; key.readyOps() says what happened
+        void onReady(SelectionKey key) throws IOException;
+
+        // called on the loop thread when onReady throws; the key has already been cancelled
+        default void onError(SelectionKey key, IOException e) {
+        }
+    }
+
+    static final class Timer implements Comparable<Timer> {
+
+        private final Runnable task;
+        private final long periodNanos;
+        private long deadline;
+        private volatile boolean cancelled;
+
+        private Timer(Runnable task, long deadline, long periodNanos) {
+            this.task = task;
+            this.deadline = deadline;
+            this.periodNanos = periodNanos;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static TelepathyEventLoop shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks;
+    private final PriorityQueue<Timer> timers;
+    private final ByteBuffer readBuffer;
+
+    TelepathyEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        timers = new PriorityQueue<>();
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static synchronized TelepathyEventLoop shared() {
+        if (shared == null) {
+            try {
+                shared = new TelepathyEventLoop("TelepathyEventLoop");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // scratch buffer for socket reads, only valid on the loop thread until the handler returns
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    void register(SelectableChannel channel, int ops, ChannelHandler handler) {
+        execute(() -> {
+            try {
+                channel.register(selector, ops, handler);
+            } catch (ClosedChannelException e) {
+                handler.onError(null, e);
+            }
+        });
+    }
+
+    Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        return addTimer(task, unit.toNanos(delay), 0);
+    }
+
+    Timer scheduleAtFixedRate(Runnable task, long period, TimeUnit unit) {
+        return addTimer(task, unit.toNanos(period), unit.toNanos(period));
+    }
+
+    private Timer addTimer(Runnable task, long delayNanos, long periodNanos) {
+        Timer timer = new Timer(task, System.nanoTime() + delayNanos, periodNanos);
+        execute(() -> timers.add(timer));
+        return timer;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long timeout = runTimers();
+                if (tasks.isEmpty()) {
+                    if (timeout < 0) {
+                        selector.select();
+                    } else if (timeout == 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                    }
+                } else {
+                    selector.selectNow();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    dispatch(key);
+                }
+                selector.selectedKeys().clear();
+                runTasks();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (RuntimeException e) {
+                // a misbehaving handler must not take every connection down with it
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        ChannelHandler handler = (ChannelHandler) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            handler.onReady(key);
+        } catch (IOException e) {
+            key.cancel();
+            handler.onError(key, e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    // runs every expired timer and returns nanoseconds until the next one, or -1 if there are none
+    private long runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null) {
+            if (timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            if (timer.deadline - now > 0) {
+                return timer.deadline - now;
+            }
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                // a periodic task that throws once still runs next time, or a connection would
+                // quietly lose its heartbeat
+                e.printStackTrace();
+            }
+            if (timer.periodNanos > 0 && !timer.cancelled) {
+                timer.deadline += timer.periodNanos;
+                if (timer.deadline - now < 0) {
+                    // fell behind, don't try to catch up with a burst
+                    timer.deadline = now + timer.periodNanos;
+                }
+                timers.add(timer);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,215 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counters and histograms for one {@link TelepathyAPI}. Everything that is recorded per byte or per
+ * message is a plain field written by the event loop or an atomic increment, so recording never
+ * allocates or blocks. Once a second {@link #tick(long, long)} runs on the event loop and turns the
+ * counters into the rates and percentiles that readers see.
+ */
+final class TelepathyMetrics implements TelepathyMetricsMXBean {
+
+    private final TelepathyAPI telepathy;
+    private final ChannelRegistry channels;
+
+    final LatencyHistogram decode = new LatencyHistogram();
+    final LatencyHistogram listener = new LatencyHistogram();
+    final LatencyHistogram uiLag = new LatencyHistogram();
+
+    // event loop only, read racily by everyone else
+    private volatile long bytes;
+    private volatile long messages;
+    private long[] channelMessages = new long[16];
+    private long rejectedBefore;
+    private volatile long rejected;
+
+    // tick() state, event loop only
+    private long lastTick;
+    private long lastBytes;
+    private long lastMessages;
+    private long[] lastChannelMessages = new long[16];
+    // the last counts and the interval counts of each histogram
+    private final long[][] histogramScratch = new long[6][LatencyHistogram.BUCKETS];
+
+    // published by tick()
+    private volatile double bytesPerSecond;
+    private volatile double messagesPerSecond;
+    private volatile double[] channelRates = new double[0];
+    private volatile long decodeP50;
+    private volatile long decodeP99;
+    private volatile long listenerP50;
+    private volatile long listenerP99;
+    private volatile long uiLagP50;
+    private volatile long uiLagP99;
+
+    TelepathyMetrics(TelepathyAPI telepathy, ChannelRegistry channels) {
+        this.telepathy = telepathy;
+        this.channels = channels;
+        lastTick = System.nanoTime();
+    }
+
+    // event loop: one socket read of count bytes that took nanos to decode and dispatch
+    void recordRead(int count, long nanos) {
+        bytes += count;
+        decode.record(nanos);
+    }
+
+    // event loop, once per dispatched message
+    void recordMessage(int channel) {
+        if (channel >= channelMessages.length) {
+            channelMessages = Arrays.copyOf(channelMessages, Math.max(channel + 1, channelMessages.length * 2));
+        }
+        channelMessages[channel]++;
+        messages++;
+    }
+
+    // any thread: how long a message waited between being received and being shown
+    void recordUiLag(long nanos) {
+        uiLag.record(nanos);
+    }
+
+    // event loop: a frame passed validation but couldn't be decoded
+    void recordUndecodable() {
+        rejectedBefore++;
+        rejected++;
+    }
+
+    // event loop: the connection that just ended rejected this many frames
+    void endSession(long sessionRejected) {
+        rejectedBefore += sessionRejected;
+        rejected = rejectedBefore;
+    }
+
+    // event loop, about once a second. sessionRejected counts the current connection's rejected frames
+    void tick(long now, long sessionRejected) {
+        rejected = rejectedBefore + sessionRejected;
+        long elapsed = now - lastTick;
+        lastTick = now;
+        if (elapsed <= 0) {
+            return;
+        }
+        double seconds = elapsed / 1e9;
+        long bytes = this.bytes;
+        long messages = this.messages;
+        bytesPerSecond = (bytes - lastBytes) / seconds;
+        messagesPerSecond = (messages - lastMessages) / seconds;
+        lastBytes = bytes;
+        lastMessages = messages;
+
+        long[] counts = channelMessages;
+        if (lastChannelMessages.length < counts.length) {
+            lastChannelMessages = Arrays.copyOf(lastChannelMessages, counts.length);
+        }
+        double[] rates = channelRates.length == counts.length ? channelRates : new double[counts.length];
+        for (int channel = 0; channel < counts.length; channel++) {
+            rates[channel] = (counts[channel] - lastChannelMessages[channel]) / seconds;
+            lastChannelMessages[channel] = counts[channel];
+        }
+        channelRates = rates;
+
+        decode.interval(histogramScratch[0], histogramScratch[1]);
+        decodeP50 = LatencyHistogram.percentile(histogramScratch[1], 0.5);
+        decodeP99 = LatencyHistogram.percentile(histogramScratch[1], 0.99);
+        listener.interval(histogramScratch[2], histogramScratch[3]);
+        listenerP50 = LatencyHistogram.percentile(histogramScratch[3], 0.5);
+        listenerP99 = LatencyHistogram.percentile(histogramScratch[3], 0.99);
+        uiLag.interval(histogramScratch[4], histogramScratch[5]);
+        uiLagP50 = LatencyHistogram.percentile(histogramScratch[5], 0.5);
+        uiLagP99 = LatencyHistogram.percentile(histogramScratch[5], 0.99);
+    }
+
+    @Override
+    public String getServer() {
+        return telepathy.toString();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return telepathy.connected();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytes;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messages;
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    @Override
+    public Map<String, Double> getMessagesPerSecondByKey() {
+        double[] rates = channelRates;
+        Map<String, Double> byKey = new LinkedHashMap<>();
+        for (int channel = 0; channel < rates.length && channel < channels.size(); channel++) {
+            byKey.put(channels.key(channel), rates[channel]);
+        }
+        return byKey;
+    }
+
+    // messages per second of one channel, without building the whole map
+    double messagesPerSecond(int channel) {
+        double[] rates = channelRates;
+        return channel < rates.length ? rates[channel] : 0;
+    }
+
+    @Override
+    public long getRejectedFrames() {
+        return rejected;
+    }
+
+    @Override
+    public long getPolicyDroppedMessages() {
+        return telepathy.policyDroppedMessages();
+    }
+
+    @Override
+    public double getDecodeP50Micros() {
+        return decodeP50 / 1e3;
+    }
+
+    @Override
+    public double getDecodeP99Micros() {
+        return decodeP99 / 1e3;
+    }
+
+    @Override
+    public double getListenerP50Micros() {
+        return listenerP50 / 1e3;
+    }
+
+    @Override
+    public double getListenerP99Micros() {
+        return listenerP99 / 1e3;
+    }
+
+    @Override
+    public double getUiLagP50Millis() {
+        return uiLagP50 / 1e6;
+    }
+
+    @Override
+    public double getUiLagP99Millis() {
+        return uiLagP99 / 1e6;
+    }
+
+    @Override
+    public double getRoundTripMillis() {
+        long rtt = telepathy.roundTripNanos();
+        return rtt < 0 ? -1 : rtt / 1e6;
+    }
+}
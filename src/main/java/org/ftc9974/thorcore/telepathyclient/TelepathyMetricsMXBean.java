@@ -0,0 +1,51 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import java.util.Map;
+
+/**
+ * What one {@link TelepathyAPI} connection is doing, as seen through JMX (jconsole, VisualVM). Rates
+ * and percentiles cover the last second; totals cover the life of the TelepathyAPI, across reconnects.
+ */
+public interface TelepathyMetricsMXBean {
+
+    String getServer();
+
+    boolean isConnected();
+
+    long getBytesReceived();
+
+    double getBytesPerSecond();
+
+    long getMessagesReceived();
+
+    double getMessagesPerSecond();
+
+    // messages per second of every key seen so far
+    Map<String, Double> getMessagesPerSecondByKey();
+
+    // frames dropped because they failed validation (a bad length, type or CRC) or because they
+    // could not be decoded
+    long getRejectedFrames();
+
+    // messages key policies kept from the listeners: decimated, or replaced by a newer value while
+    // held back by a rate limit
+    long getPolicyDroppedMessages();
+
+    // socket read to the last message of the read being handed to the listeners
+    double getDecodeP50Micros();
+
+    double getDecodeP99Micros();
+
+    // time spent in listeners, per message
+    double getListenerP50Micros();
+
+    double getListenerP99Micros();
+
+    // time from a message being received to it being shown, as recorded by the telemetry window
+    double getUiLagP50Millis();
+
+    double getUiLagP99Millis();
+
+    // smoothed heartbeat round trip, or -1 if the server doesn't answer heartbeats
+    double getRoundTripMillis();
+}
@@ -1,12 +1,12 @@
 package org.ftc9974.thorcore.telepathyclient;
 
+import java.util.concurrent.CountDownLatch;
 
 public class TestClient {
 
     public static void main(String[] args) throws Exception {
         //Socket socket = new Socket("127.0.0.1", 6387);
-        TelepathyAPI.initialize("127.0.0.1", 6387);
-        System.out.println("Waiting for message");
+        TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", 6387);
 
         /*BufferedInputStream inputStream = new BufferedInputStream(socket.getInputStream());
         while (true) {
@@ -21,12 +21,18 @@ public class TestClient {
             }
         }*/
 
-        TelepathyAPI.addNewMessageListener(message -> {
+        CountDownLatch received = new CountDownLatch(1);
+        telepathy.addNewMessageListener(message -> {
             System.out.println("Message received");
             System.out.println(message.key);
             System.out.println(message.type);
-            System.out.println(message.message);
-            TelepathyAPI.shutdown();
+            System.out.println(message.getValue());
+            telepathy.shutdown();
+            received.countDown();
         });
+        telepathy.connect();
+        System.out.println("Waiting for message");
+        // the event loop runs on a daemon thread
+        received.await();
     }
 }
@@ -1,50 +1,735 @@
 package org.ftc9974.thorcore.telepathyclient;
 
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
-import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
+/**
+ * A Telepathy server for trying the client locally. By default it sends a few test messages and
+ * then every number typed on stdin. It can also generate load, --keys values of a --mix of types
+ * --rate times a second, or --replay a recording with its original timing. --speed scales either,
+ * --corrupt damages some of the writes and --timestamps adds the send time of every flush, so a
+ * client on the same machine can measure end-to-end latency.
+ */
 public class TestServer {
 
+    // how long an auto server waits for the client's HELLO before falling back to the legacy format
+    private static final int HELLO_TIMEOUT_MS = 500;
+    // batches between absolute (non-delta) batches
+    private static final int KEYFRAME_INTERVAL = 50;
+    private static final int NO_HELLO = -1;
+    // messages written between flushes when a replay doesn't wait
+    private static final int REPLAY_FLUSH_INTERVAL = 256;
+    private static final String[] STATES = {"IDLE", "DRIVE_TO_JUNCTION", "RAISE_LIFT", "SCORE_CONE", "PARK"};
+
+    // the client's latest SUBSCRIBE, or null until it sends one. set by the drain thread
+    private volatile Subscription subscription;
+    // when each key was last sent, for rate limited subscriptions. guarded by the output stream
+    private final Map<String, Long> lastSent = new HashMap<>();
+
+    // set when the client accepts FEATURE_TIMESTAMPS
+    private volatile boolean stampsValues;
+    // the simulated robot clock, see serverNanos()
+    private final long clockStart = System.nanoTime();
+    private final long clockOffsetNanos;
+    private final double clockDrift;
+    // writes the --timestamps stamps. like the encoder of the values, but never --corrupt, so the
+    // latency they measure isn't garbage
+    private Encoder stampEncoder;
+
+    private interface Encoder {
+
+        byte[] encode(String key, TelepathyAPI.Type type, byte[] value);
+    }
+
+    TestServer(Namespace ns) {
+        clockOffsetNanos = (long) (ns.getDouble("clockOffset") * 1e9);
+        clockDrift = ns.getDouble("clockDrift") / 1e6;
+    }
+
     public static void main(String[] args) throws Exception {
+        ArgumentParser parser = parser();
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+            return;
+        }
+        if (!(speed(ns.getString("speed")) >= 0)) {
+            System.err.println("--speed must be a positive number or max");
+            System.exit(1);
+            return;
+        }
+        try {
+            mix(ns.getString("mix"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("--mix " + ns.getString("mix") + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
         System.out.println("Starting server");
-        ServerSocket serverSocket = new ServerSocket(6387);
+        try (ServerSocket serverSocket = new ServerSocket(ns.getInt("port"))) {
+            new TestServer(ns).serve(serverSocket, ns, System.in);
+        }
+    }
+
+    static ArgumentParser parser() {
+        ArgumentParser parser = ArgumentParsers.newFor("TestServer").build()
+                .defaultHelp(true)
+                .description("Serves a few test messages, then sends every number typed on stdin as TestKey. A negative number exits. Can also generate load or replay a recording.");
+        parser.addArgument("-p", "--port")
+                .dest("port")
+                .setDefault(6387)
+                .type(Integer.class);
+        parser.addArgument("--protocol")
+                .help("Wire format to speak. auto uses v2 if the client offers it and the legacy format otherwise.")
+                .dest("protocol")
+                .choices("auto", "legacy", "v2")
+                .setDefault("auto");
+        parser.addArgument("--batch")
+                .help("With protocol v2, send values in BATCH frames with a key dictionary instead of one MESSAGE frame each.")
+                .dest("batch")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--delta")
+                .help("Delta encode batched values against the previous value of their key.")
+                .dest("delta")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--compress")
+                .help("With protocol v2, deflate the stream if the client asks for it.")
+                .dest("compress")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--keys")
+                .help("Also send this many numbered DOUBLE keys, to try the client with a large table.")
+                .dest("keys")
+                .setDefault(0)
+                .type(Integer.class);
+        parser.addArgument("--rate")
+                .help("Keep sending new values of the --keys keys this many times a second.")
+                .dest("rate")
+                .setDefault(0d)
+                .type(Double.class);
+        parser.addArgument("--mix")
+                .help("Types of the --keys keys as TYPE=WEIGHT pairs, for example double=6,int=1,string=1.")
+                .dest("mix")
+                .setDefault("double=1");
+        parser.addArgument("--replay")
+                .help("Replay a session directory recorded with --record, or a file written by --headless --format binary, instead of the test messages. Exits when it ends.")
+                .dest("replay");
+        parser.addArgument("--speed")
+                .help("1 sends --rate and --replay in real time, N that many times faster and max as fast as the client takes them.")
+                .dest("speed")
+                .setDefault("1");
+        parser.addArgument("--corrupt")
+                .help("Flip one bit in this fraction of the writes, to exercise the client's recovery from a damaged stream.")
+                .dest("corrupt")
+                .setDefault(0d)
+                .type(Double.class);
+        parser.addArgument("--seed")
+                .help("Seed for --corrupt, so a damaged stream can be reproduced.")
+                .dest("seed")
+                .setDefault(0L)
+                .type(Long.class);
+        parser.addArgument("--clock-offset")
+                .help("With protocol v2, run the clock that stamps values and pongs this many seconds ahead of the system's, like a robot's unrelated clock.")
+                .dest("clockOffset")
+                .setDefault(0d)
+                .type(Double.class);
+        parser.addArgument("--clock-drift")
+                .help("Make that clock run this many parts per million fast (or slow, if negative).")
+                .dest("clockDrift")
+                .setDefault(0d)
+                .type(Double.class);
+        parser.addArgument("--timestamps")
+                .help("Send " + TelepathyAPI.SEND_NANOS_KEY + " with every flush of --rate or --replay traffic. --headless clients on the same machine print latency percentiles from it.")
+                .dest("timestamps")
+                .action(Arguments.storeTrue());
+        return parser;
+    }
+
+    // serves the first client to connect to serverSocket, reading the values to send from input.
+    // speed and mix must have been checked
+    void serve(ServerSocket serverSocket, Namespace ns, InputStream input) throws IOException, InterruptedException {
+        double speed = speed(ns.getString("speed"));
+        List<TelepathyAPI.Type> mix = mix(ns.getString("mix"));
+        boolean timestamps = ns.getBoolean("timestamps");
         Socket socket = serverSocket.accept();
+        // writes are already batched by the flushes; Nagle would add delayed-ACK stalls to --timestamps
+        socket.setTcpNoDelay(true);
         System.out.println("Connected to Telepathy client");
         System.out.println(socket.getInetAddress().toString());
 
-        OutputStream outputStream = socket.getOutputStream();
+        // flushed after every test message, round of --rate values or stretch of a replay
+        OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        String protocol = ns.getString("protocol");
+        int offered = protocol.equals("legacy") ? NO_HELLO : clientHello(socket);
+        boolean v2 = protocol.equals("v2") || (protocol.equals("auto") && offered != NO_HELLO);
+        Encoder encoder;
+        if (v2) {
+            System.out.println("Speaking protocol v2");
+            int accepted = ProtocolV2.FEATURE_HEARTBEAT | ProtocolV2.FEATURE_SUBSCRIBE | ProtocolV2.FEATURE_TIMESTAMPS
+                    | (ns.getBoolean("compress") ? ProtocolV2.FEATURE_DEFLATE : 0);
+            int features = offered == NO_HELLO ? 0 : offered & accepted;
+            outputStream.write(ProtocolV2.hello(features));
+            ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(256);
+            if (ns.getBoolean("batch")) {
+                ProtocolV2.BatchEncoder batch = new ProtocolV2.BatchEncoder(writer, ns.getBoolean("delta"), KEYFRAME_INTERVAL);
+                encoder = (key, type, value) -> {
+                    add(batch, key, type, ByteBuffer.wrap(value));
+                    // interactive, so every value is its own batch
+                    batch.flush();
+                    return writer.toByteArray();
+                };
+            } else {
+                encoder = (key, type, value) -> {
+                    writer.message(key.getBytes(), type, value);
+                    return writer.toByteArray();
+                };
+            }
+            if ((features & ProtocolV2.FEATURE_TIMESTAMPS) != 0) {
+                System.out.println("Stamping values");
+                stampsValues = true;
+                encoder = timed(encoder);
+            }
+            if ((features & ProtocolV2.FEATURE_DEFLATE) != 0) {
+                System.out.println("Compressing");
+                encoder = compressed(encoder);
+            }
+        } else {
+            System.out.println("Speaking the legacy protocol");
+            encoder = TestServer::prepareForTransmit;
+        }
+        stampEncoder = encoder;
+        double corrupt = ns.getDouble("corrupt");
+        if (corrupt > 0) {
+            System.out.println("Corrupting " + corrupt * 100 + "% of writes");
+            encoder = corrupted(encoder, corrupt, new Random(ns.getLong("seed")));
+        }
+        // answers pings, and drains keep-alives so they can't fill the window
+        Thread drain = new Thread(() -> drain(socket, outputStream, v2), "TestServerDrain");
+        drain.setDaemon(true);
+        drain.start();
+
+        String replay = ns.getString("replay");
+        if (replay != null) {
+            long start = System.nanoTime();
+            long sent = replay(outputStream, encoder, Paths.get(replay), speed, timestamps);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Replayed %d messages in %.1fs (%.0f/s)%n", sent, seconds, sent / seconds);
+            socket.close();
+            return;
+        }
+
         System.out.println("Sending message");
-        outputStream.write(0);
-        outputStream.write(prepareForTransmit("TestKey", TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(12.7896).array()));
-        outputStream.write(0);
-        outputStream.write(prepareForTransmit("Another key", TelepathyAPI.Type.STRING, "Hello, World!".getBytes()));
-        outputStream.write(0);
-        outputStream.write(prepareForTransmit("Time", TelepathyAPI.Type.STRING, Date.from(Instant.now()).toString().getBytes()));
-        outputStream.write(0);
-        outputStream.write(prepareForTransmit("Another key", TelepathyAPI.Type.STRING, "Now I'm different".getBytes()));
-        outputStream.flush();
-        Scanner scanner = new Scanner(System.in);
-        double value = scanner.nextDouble();
-        while (value >= 0) {
-            outputStream.write(0);
-            outputStream.write(prepareForTransmit("TestKey", TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(value).array()));
-            value = scanner.nextDouble();
+        send(outputStream, encoder, "TestKey", TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(12.7896).array());
+        send(outputStream, encoder, "Another key", TelepathyAPI.Type.STRING, "Hello, World!".getBytes());
+        send(outputStream, encoder, "Time", TelepathyAPI.Type.STRING, Date.from(Instant.now()).toString().getBytes());
+        send(outputStream, encoder, "Another key", TelepathyAPI.Type.STRING, "Now I'm different".getBytes());
+        int keys = ns.getInt("keys");
+        for (int i = 0; i < keys; i++) {
+            TelepathyAPI.Type type = mix.get(i % mix.size());
+            send(outputStream, encoder, key(i), type, value(type, 0, i));
         }
         outputStream.flush();
+        double rate = ns.getDouble("rate");
+        Thread stream = null;
+        if (keys > 0 && rate > 0) {
+            Encoder keyEncoder = encoder;
+            double streamRate = rate * speed;
+            stream = new Thread(() -> stream(outputStream, keyEncoder, keys, mix, streamRate, timestamps), "TestServerStream");
+            stream.setDaemon(true);
+            stream.start();
+        }
+        Scanner scanner = new Scanner(input);
+        boolean exited = false;
+        while (scanner.hasNextDouble()) {
+            double value = scanner.nextDouble();
+            if (value < 0) {
+                exited = true;
+                break;
+            }
+            send(outputStream, encoder, "TestKey", TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(value).array());
+            synchronized (outputStream) {
+                outputStream.flush();
+            }
+        }
+        if (!exited && stream != null) {
+            // stdin ended, e.g. when started in the background; stream until the client leaves
+            stream.join();
+        } else {
+            synchronized (outputStream) {
+                outputStream.flush();
+            }
+        }
         socket.close();
     }
 
+    // the --speed factor, 0 for max, or -1 if it isn't valid
+    private static double speed(String speed) {
+        try {
+            double factor = speed.equals("max") ? 0 : Double.parseDouble(speed);
+            return factor >= 0 ? factor : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the --keys key types, one entry per unit of weight in the order given
+    private static List<TelepathyAPI.Type> mix(String spec) {
+        List<TelepathyAPI.Type> mix = new ArrayList<>();
+        for (String pair : spec.split(",")) {
+            String[] parts = pair.trim().split("=", 2);
+            TelepathyAPI.Type type = TelepathyAPI.Type.valueOf(parts[0].trim().toUpperCase());
+            int weight = parts.length == 2 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (weight < 0) {
+                throw new IllegalArgumentException("weights can't be negative");
+            }
+            for (int i = 0; i < weight; i++) {
+                mix.add(type);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("no types with a weight");
+        }
+        return mix;
+    }
+
+    private static String key(int i) {
+        return String.format("Key %05d", i);
+    }
+
+    // a value of key i at time t, encoded as in a legacy packet
+    private static byte[] value(TelepathyAPI.Type type, double t, int i) {
+        double wave = Math.sin(t + i) * (i + 1);
+        return encode(type, Math.round(wave * 100), wave, STATES[(int) (t + i) % STATES.length]);
+    }
+
+    // the value of type out of the one of longValue, doubleValue and text that holds it
+    private static byte[] encode(TelepathyAPI.Type type, long longValue, double doubleValue, String text) {
+        switch (type) {
+            case STRING:
+                return text.getBytes(StandardCharsets.UTF_8);
+            case BYTE:
+                return new byte[]{(byte) longValue};
+            case CHAR:
+                return ByteBuffer.allocate(2).putChar((char) longValue).array();
+            case SHORT:
+                return ByteBuffer.allocate(2).putShort((short) longValue).array();
+            case INT:
+                return ByteBuffer.allocate(4).putInt((int) longValue).array();
+            case FLOAT:
+                return ByteBuffer.allocate(4).putFloat((float) doubleValue).array();
+            case LONG:
+                return ByteBuffer.allocate(8).putLong(longValue).array();
+            case DOUBLE:
+            default:
+                return ByteBuffer.allocate(8).putDouble(doubleValue).array();
+        }
+    }
+
+    // reads what the client sends first. a v2 client starts with a HELLO frame; returns the
+    // features it offers, or NO_HELLO
+    private static int clientHello(Socket socket) throws IOException {
+        int[] hello = {NO_HELLO};
+        FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+            if (type == ProtocolV2.TYPE_HELLO) {
+                hello[0] = payload.hasRemaining() ? ProtocolV2.getVarint(payload) : 0;
+            }
+        });
+        socket.setSoTimeout(HELLO_TIMEOUT_MS);
+        InputStream inputStream = socket.getInputStream();
+        byte[] buffer = new byte[256];
+        try {
+            while (hello[0] == NO_HELLO) {
+                int read = inputStream.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                decoder.feed(buffer, 0, read);
+            }
+        } catch (SocketTimeoutException e) {
+            // legacy clients only ever send keep-alive bytes
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return hello[0];
+    }
+
+    // the clock values and pongs are stamped with: System.nanoTime(), shifted by --clock-offset and
+    // running --clock-drift fast
+    private long serverNanos() {
+        long elapsed = System.nanoTime() - clockStart;
+        return clockStart + elapsed + (long) (elapsed * clockDrift) + clockOffsetNanos;
+    }
+
+    // every encoded write is preceded by a TIME frame, so every value carries when it was sent
+    private Encoder timed(Encoder encoder) {
+        return (key, type, value) -> {
+            byte[] time = ProtocolV2.time(serverNanos());
+            byte[] frames = encoder.encode(key, type, value);
+            byte[] both = new byte[time.length + frames.length];
+            System.arraycopy(time, 0, both, 0, time.length);
+            System.arraycopy(frames, 0, both, time.length, frames.length);
+            return both;
+        };
+    }
+
+    // every encoded write becomes a sync-flushed piece of one deflate stream
+    private static Encoder compressed(Encoder encoder) {
+        ProtocolV2.Compressor compressor = new ProtocolV2.Compressor(Deflater.DEFAULT_COMPRESSION);
+        ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(256);
+        return (key, type, value) -> {
+            byte[] frames = encoder.encode(key, type, value);
+            compressor.compress(frames, 0, frames.length, writer);
+            return writer.toByteArray();
+        };
+    }
+
+    // flips one random bit in the given fraction of writes
+    private static Encoder corrupted(Encoder encoder, double fraction, Random random) {
+        return (key, type, value) -> {
+            byte[] bytes = encoder.encode(key, type, value);
+            if (random.nextDouble() < fraction) {
+                bytes[random.nextInt(bytes.length)] ^= 1 << random.nextInt(8);
+            }
+            return bytes;
+        };
+    }
+
+    // value is encoded as in a legacy packet
+    private static void add(ProtocolV2.BatchEncoder batch, String key, TelepathyAPI.Type type, ByteBuffer value) {
+        switch (type) {
+            case STRING:
+                batch.addString(key, new String(value.array(), value.position(), value.remaining()));
+                break;
+            case BYTE:
+                batch.addIntegral(key, type, value.get());
+                break;
+            case CHAR:
+                batch.addIntegral(key, type, value.getChar());
+                break;
+            case SHORT:
+                batch.addIntegral(key, type, value.getShort());
+                break;
+            case INT:
+                batch.addIntegral(key, type, value.getInt());
+                break;
+            case FLOAT:
+                batch.addFloat(key, value.getFloat());
+                break;
+            case LONG:
+                batch.addIntegral(key, type, value.getLong());
+                break;
+            case DOUBLE:
+                batch.addDouble(key, value.getDouble());
+                break;
+        }
+    }
+
+    private void drain(Socket socket, OutputStream outputStream, boolean v2) {
+        byte[] buffer = new byte[256];
+        try {
+            InputStream inputStream = socket.getInputStream();
+            FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+                if (type == ProtocolV2.TYPE_PING) {
+                    try {
+                        // uncompressed even when the stream is, so it never waits for a flush
+                        send(outputStream, stampsValues ? ProtocolV2.pong(payload, serverNanos()) : ProtocolV2.pong(payload));
+                    } catch (IOException e) {
+                        // socket closed; the read below will notice
+                    }
+                } else if (type == ProtocolV2.TYPE_SUBSCRIBE) {
+                    try {
+                        subscription = Subscription.fromPayload(payload);
+                        System.out.println("Client subscribed to " + subscription.size() + " keys and prefixes");
+                    } catch (IndexOutOfBoundsException e) {
+                        System.out.println("Ignoring a truncated SUBSCRIBE");
+                    }
+                }
+            });
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                if (v2) {
+                    decoder.feed(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            // socket closed
+        }
+    }
+
+    // pongs are written from the drain thread, so whole writes must not interleave
+    private static void send(OutputStream outputStream, byte[] bytes) throws IOException {
+        synchronized (outputStream) {
+            outputStream.write(bytes);
+            outputStream.flush();
+        }
+    }
+
+    // sends what was written so far, after the send time if timestamps is set
+    private void flush(OutputStream outputStream, boolean timestamps) throws IOException {
+        synchronized (outputStream) {
+            if (timestamps) {
+                send(outputStream, stampEncoder, TelepathyAPI.SEND_NANOS_KEY, TelepathyAPI.Type.LONG, ByteBuffer.allocate(8).putLong(System.nanoTime()).array());
+            }
+            outputStream.flush();
+        }
+    }
+
+    // sends one value, unless the client's subscription leaves its key out or limits its rate
+    private void send(OutputStream outputStream, Encoder encoder, String key, TelepathyAPI.Type type, byte[] value) throws IOException {
+        synchronized (outputStream) {
+            Subscription subscription = this.subscription;
+            if (subscription != null) {
+                long interval = subscription.intervalMicros(key);
+                if (interval < 0) {
+                    return;
+                }
+                long now = System.nanoTime();
+                Long last = lastSent.get(key);
+                if (interval > 0 && last != null && now - last < interval * 1000) {
+                    return;
+                }
+                lastSent.put(key, now);
+            }
+            outputStream.write(encoder.encode(key, type, value));
+        }
+    }
+
+    // new values of every numbered key, rate times a second (as fast as possible if rate is 0),
+    // until the socket closes
+    private void stream(OutputStream outputStream, Encoder encoder, int keys, List<TelepathyAPI.Type> mix, double rate, boolean timestamps) {
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = key(i);
+        }
+        long period = rate > 0 ? (long) (1e9 / rate) : 0;
+        long start = System.nanoTime();
+        long next = start;
+        try {
+            while (true) {
+                double t = (next - start) / 1e9;
+                for (int i = 0; i < keys; i++) {
+                    TelepathyAPI.Type type = mix.get(i % mix.size());
+                    send(outputStream, encoder, names[i], type, value(type, t, i));
+                }
+                flush(outputStream, timestamps);
+                next = period > 0 ? next + period : System.nanoTime();
+                sleepUntil(next);
+            }
+        } catch (IOException | InterruptedException e) {
+            // client gone
+        }
+    }
+
+    // sends a recording, keeping the gaps between its messages divided by speed (none if speed is
+    // 0). returns the number of messages sent
+    private long replay(OutputStream outputStream, Encoder encoder, Path path, double speed, boolean timestamps) throws IOException, InterruptedException {
+        try (Recording recording = Files.isDirectory(path) ? new SessionRecording(path) : new CaptureRecording(path)) {
+            long sent = 0;
+            long unflushed = 0;
+            long first = 0;
+            long start = System.nanoTime();
+            while (recording.next()) {
+                if (recording.key().equals(TelepathyAPI.SEND_NANOS_KEY)) {
+                    // from the recorded run's clock; --timestamps sends fresh ones
+                    continue;
+                }
+                if (sent == 0) {
+                    first = recording.timestamp();
+                }
+                long due = speed > 0 ? start + (long) ((recording.timestamp() - first) / speed) : 0;
+                boolean early = speed > 0 && due > System.nanoTime();
+                if (unflushed > 0 && (early || unflushed >= REPLAY_FLUSH_INTERVAL)) {
+                    flush(outputStream, timestamps);
+                    unflushed = 0;
+                }
+                if (early) {
+                    sleepUntil(due);
+                }
+                send(outputStream, encoder, recording.key(), recording.type(), recording.value());
+                sent++;
+                unflushed++;
+            }
+            flush(outputStream, timestamps);
+            return sent;
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long sleep = nanoTime - System.nanoTime();
+        if (sleep > 0) {
+            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        }
+    }
+
+    // a recording being replayed. next() moves to the following message and the rest describe it
+    private interface Recording extends Closeable {
+
+        boolean next() throws IOException;
+
+        // epoch nanos when the message was recorded
+        long timestamp();
+
+        String key();
+
+        TelepathyAPI.Type type();
+
+        // encoded as in a legacy packet
+        byte[] value();
+    }
+
+    // a session directory written by FlightRecorder
+    private static final class SessionRecording implements Recording {
+
+        private final FlightRecorder.Reader reader;
+
+        SessionRecording(Path directory) throws IOException {
+            reader = new FlightRecorder.Reader(directory);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            return reader.next();
+        }
+
+        @Override
+        public long timestamp() {
+            return reader.timestamp();
+        }
+
+        @Override
+        public String key() {
+            return reader.key();
+        }
+
+        @Override
+        public TelepathyAPI.Type type() {
+            return reader.type();
+        }
+
+        @Override
+        public byte[] value() {
+            return encode(reader.type(), reader.longValue(), reader.doubleValue(), reader.stringValue());
+        }
+
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+
+    // a file written by HeadlessClient in its binary format
+    private static final class CaptureRecording implements Recording {
+
+        private final Map<Integer, String> keys = new HashMap<>();
+        private MappedByteBuffer records;
+
+        private long timestamp;
+        private String key;
+        private TelepathyAPI.Type type;
+        private byte[] value;
+
+        CaptureRecording(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        @Override
+        public boolean next() {
+            // [int length][long epoch nanos][int channel][byte type][value]
+            while (records.remaining() >= 4 + 8 + 4 + 1) {
+                int length = records.getInt();
+                if (length < 4 + 8 + 4 + 1 || length - 4 > records.remaining()) {
+                    // a capture cut off mid-record
+                    break;
+                }
+                timestamp = records.getLong();
+                int channel = records.getInt();
+                byte typeKey = records.get();
+                byte[] bytes = new byte[length - (4 + 8 + 4 + 1)];
+                records.get(bytes);
+                if (typeKey == HeadlessClient.BINARY_KEY) {
+                    keys.put(channel, new String(bytes, StandardCharsets.UTF_8));
+                    continue;
+                }
+                key = keys.getOrDefault(channel, "Channel " + channel);
+                type = TelepathyAPI.Type.forByte(typeKey);
+                if (type == TelepathyAPI.Type.STRING) {
+                    value = bytes;
+                } else {
+                    ByteBuffer bits = ByteBuffer.wrap(bytes);
+                    boolean floating = type == TelepathyAPI.Type.FLOAT || type == TelepathyAPI.Type.DOUBLE;
+                    long longValue = floating ? 0 : bits.getLong(0);
+                    double doubleValue = floating ? bits.getDouble(0) : 0;
+                    value = encode(type, longValue, doubleValue, null);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public long timestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String key() {
+            return key;
+        }
+
+        @Override
+        public TelepathyAPI.Type type() {
+            return type;
+        }
+
+        @Override
+        public byte[] value() {
+            return value;
+        }
+
+        @Override
+        public void close() {
+            records = null;
+        }
+    }
+
     private static byte[] prepareForTransmit(String key, TelepathyAPI.Type type, byte[] value) {
         byte[] keyBytes = key.getBytes();
-        ByteBuffer messageBuffer = ByteBuffer.allocate(keyBytes.length + 1 + 4 + value.length);
+        ByteBuffer messageBuffer = ByteBuffer.allocate(1 + keyBytes.length + 1 + 4 + value.length);
+        messageBuffer.put((byte) 0);
         messageBuffer.put(keyBytes);
-        //messageBuffer.put((byte) 0);
         messageBuffer.put(type.typeKey);
         messageBuffer.putInt(value.length);
         messageBuffer.put(value);
@@ -0,0 +1,112 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+/**
+ * Fixed-size history of one numeric key. Samples are stored as primitive timestamp/value pairs in a
+ * ring, so memory use is set at construction and never grows with session length.
+ * <p>
+ * Every sample gets a sequence number (0 for the first sample ever added), which readers use to
+ * pick up only what was added since they last looked. The network thread writes, the FX thread
+ * reads; all access is synchronized on the buffer, so a reader that needs several calls to agree
+ * (e.g. first() and read()) can hold the buffer's monitor around them.
+ */
+class TimeSeriesBuffer {
+
+    private final long[] timestamps;
+    private final double[] values;
+    // samples older than this (relative to the newest one) are dropped; 0 keeps everything that fits
+    private final long windowNanos;
+
+    // index of the oldest retained sample in the arrays
+    private int tail;
+    private int size;
+    // sequence number the next sample will get
+    private long written;
+
+    TimeSeriesBuffer(int capacity, long windowNanos) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive");
+        }
+        timestamps = new long[capacity];
+        values = new double[capacity];
+        this.windowNanos = windowNanos;
+    }
+
+    synchronized void add(long timestampNanos, double value) {
+        int head = tail + size;
+        if (head >= timestamps.length) {
+            head -= timestamps.length;
+        }
+        timestamps[head] = timestampNanos;
+        values[head] = value;
+        if (size == timestamps.length) {
+            tail = head + 1 == timestamps.length ? 0 : head + 1;
+        } else {
+            size++;
+        }
+        written++;
+        if (windowNanos > 0) {
+            while (size > 1 && timestampNanos - timestamps[tail] > windowNanos) {
+                tail = tail + 1 == timestamps.length ? 0 : tail + 1;
+                size--;
+            }
+        }
+    }
+
+    int capacity() {
+        return timestamps.length;
+    }
+
+    long windowNanos() {
+        return windowNanos;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // sequence number of the newest sample plus one
+    synchronized long written() {
+        return written;
+    }
+
+    // sequence number of the oldest retained sample
+    synchronized long first() {
+        return written - size;
+    }
+
+    synchronized double latest() {
+        if (size == 0) {
+            return Double.NaN;
+        }
+        int head = tail + size - 1;
+        return values[head >= values.length ? head - values.length : head];
+    }
+
+    /**
+     * Copies retained samples with a sequence number of at least fromSequence, oldest first.
+     * Either destination may be null. Returns the number of samples copied; the first one has
+     * sequence number max(fromSequence, first()).
+     */
+    synchronized int read(long fromSequence, long[] timestampsOut, double[] valuesOut) {
+        long first = written - size;
+        int skip = (int) Math.max(0, Math.min(size, fromSequence - first));
+        int count = size - skip;
+        int limit = Math.min(count, Math.min(
+                timestampsOut == null ? Integer.MAX_VALUE : timestampsOut.length,
+                valuesOut == null ? Integer.MAX_VALUE : valuesOut.length));
+        int start = tail + skip;
+        if (start >= timestamps.length) {
+            start -= timestamps.length;
+        }
+        int firstRun = Math.min(limit, timestamps.length - start);
+        if (timestampsOut != null) {
+            System.arraycopy(timestamps, start, timestampsOut, 0, firstRun);
+            System.arraycopy(timestamps, 0, timestampsOut, firstRun, limit - firstRun);
+        }
+        if (valuesOut != null) {
+            System.arraycopy(values, start, valuesOut, 0, firstRun);
+            System.arraycopy(values, 0, valuesOut, firstRun, limit - firstRun);
+        }
+        return limit;
+    }
+}
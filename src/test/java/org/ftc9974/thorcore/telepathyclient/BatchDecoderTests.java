@@ -0,0 +1,225 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BatchDecoderTests {
+
+    private static final int KEYS = 20;
+
+    // decodes whole frames from writer, skipping the BATCH frames whose sequence number is in lost
+    private static List<String> decode(byte[] stream, int... lost) {
+        return decodeLosingDicts(stream, new int[0], lost);
+    }
+
+    // decode(), also skipping the DICT frames whose index (counting DICT frames from 0) is in lostDicts
+    private static List<String> decodeLosingDicts(byte[] stream, int[] lostDicts, int... lost) {
+        List<String> decoded = new ArrayList<>();
+        BatchDecoder batches = new BatchDecoder(new ChannelRegistry(), message ->
+                decoded.add(message.getKey() + " " + message.getType() + " " + message.valueString()));
+        int[] batch = new int[1];
+        int[] dict = new int[1];
+        FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+            if (type == ProtocolV2.TYPE_DICT) {
+                int index = dict[0]++;
+                for (int l : lostDicts) {
+                    if (l == index) {
+                        return;
+                    }
+                }
+                batches.onDict(payload);
+            } else if (type == ProtocolV2.TYPE_BATCH) {
+                int sequence = batch[0]++;
+                for (int l : lost) {
+                    if (l == sequence) {
+                        return;
+                    }
+                }
+                batches.onBatch(payload);
+            }
+        });
+        decoder.feed(stream, 0, stream.length);
+        return decoded;
+    }
+
+    // adds one value of key i to the batch and returns how the client should print it
+    private static String add(ProtocolV2.BatchEncoder encoder, int i, long step, Random random) {
+        String key = "robot/drive/key" + i;
+        switch (i % 4) {
+            case 0:
+                // encoder counts, a random walk
+                long ticks = step * 37 + random.nextInt(100);
+                encoder.addIntegral(key, TelepathyAPI.Type.INT, ticks);
+                return key + " INT " + (int) ticks;
+            case 1:
+                // noisy sensor
+                double noisy = random.nextGaussian();
+                encoder.addDouble(key, noisy);
+                return key + " DOUBLE " + noisy;
+            case 2:
+                // quantized value that rarely changes
+                double quantized = (step / 10) * 0.25;
+                encoder.addDouble(key, quantized);
+                return key + " DOUBLE " + quantized;
+            default:
+                String state = "state" + step / 50;
+                encoder.addString(key, state);
+                return key + " STRING " + state;
+        }
+    }
+
+    @Test
+    public void test_roundTrip() {
+        for (boolean delta : new boolean[]{false, true}) {
+            Random random = new Random(3);
+            ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(1024);
+            ProtocolV2.BatchEncoder encoder = new ProtocolV2.BatchEncoder(writer, delta, 10);
+            List<String> expected = new ArrayList<>();
+            for (int step = 0; step < 200; step++) {
+                for (int i = 0; i < KEYS; i++) {
+                    expected.add(add(encoder, i, step, random));
+                }
+                encoder.flush();
+            }
+            // a key that changes type is redeclared
+            encoder.addIntegral("robot/drive/key1", TelepathyAPI.Type.LONG, Long.MIN_VALUE);
+            encoder.addString("robot/drive/key1", "unplugged");
+            encoder.flush();
+            expected.add("robot/drive/key1 LONG " + Long.MIN_VALUE);
+            expected.add("robot/drive/key1 STRING unplugged");
+            Assert.assertEquals(expected, decode(writer.toByteArray()));
+        }
+    }
+
+    @Test
+    public void test_lostBatchOnlyCostsDeltasUntilTheNextKeyframe() {
+        Random random = new Random(5);
+        ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(1024);
+        ProtocolV2.BatchEncoder encoder = new ProtocolV2.BatchEncoder(writer, true, 10);
+        List<String> expected = new ArrayList<>();
+        List<String> optional = new ArrayList<>();
+        for (int step = 0; step < 40; step++) {
+            for (int i = 0; i < KEYS; i++) {
+                String message = add(encoder, i, step, random);
+                // batch 13 is lost; until keyframe 20 only strings, which aren't deltas, get through
+                if (step != 13 && (step < 13 || step >= 20 || message.contains(" STRING "))) {
+                    expected.add(message);
+                } else if (step > 13 && i % 4 == 1) {
+                    // noisy values that were sent raw instead of as a delta may get through too
+                    optional.add(message);
+                }
+            }
+            encoder.flush();
+        }
+        List<String> decoded = decode(writer.toByteArray(), 13);
+        List<String> required = new ArrayList<>(decoded);
+        required.removeAll(optional);
+        // nothing is ever decoded against a stale baseline
+        Assert.assertEquals(expected, required);
+    }
+
+    @Test
+    public void test_lostDictIsRedeclaredByTheNextKeyframe() {
+        for (boolean delta : new boolean[]{false, true}) {
+            Random random = new Random(7);
+            ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(1024);
+            ProtocolV2.BatchEncoder encoder = new ProtocolV2.BatchEncoder(writer, delta, 10);
+            List<String> expected = new ArrayList<>();
+            for (int step = 0; step < 30; step++) {
+                for (int i = 0; i < KEYS; i++) {
+                    String message = add(encoder, i, step, random);
+                    // the DICT declaring every key is lost, so nothing decodes until keyframe 10
+                    if (step >= 10) {
+                        expected.add(message);
+                    }
+                }
+                encoder.flush();
+            }
+            Assert.assertEquals(expected, decodeLosingDicts(writer.toByteArray(), new int[]{0}));
+        }
+    }
+
+    @Test
+    public void test_keyframeTooBigForOneBatchDeclaresEveryId() {
+        // enough keys that declaring them all takes more than one batch
+        int keys = 2000;
+        int steps = 40;
+        for (boolean lostDict : new boolean[]{false, true}) {
+            Random random = new Random(11);
+            ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(1024);
+            ProtocolV2.BatchEncoder encoder = new ProtocolV2.BatchEncoder(writer, true, 10);
+            List<String> expected = new ArrayList<>();
+            for (int step = 0; step < steps; step++) {
+                for (int i = 0; i < keys; i++) {
+                    // integral deltas never come right again without an absolute value
+                    String key = "robot/sensors/key" + i;
+                    long ticks = step * 37 + random.nextInt(100);
+                    encoder.addIntegral(key, TelepathyAPI.Type.INT, ticks);
+                    expected.add(key + " INT " + ticks);
+                }
+                encoder.flush();
+            }
+            // the first batch of the first keyframe, or its DICT, is lost
+            List<String> decoded = lostDict
+                    ? decodeLosingDicts(writer.toByteArray(), new int[]{0})
+                    : decode(writer.toByteArray(), 0);
+            Assert.assertTrue(expected.containsAll(decoded));
+            // the keyframes since have brought every key back
+            int tail = keys * (steps - 20);
+            Assert.assertTrue("decoded " + decoded.size(), decoded.size() >= tail);
+            Assert.assertEquals(expected.subList(expected.size() - tail, expected.size()),
+                    decoded.subList(decoded.size() - tail, decoded.size()));
+        }
+    }
+
+    @Test
+    public void test_lostTypeChangeIsNotDecodedWithTheWrongWidth() {
+        for (boolean delta : new boolean[]{false, true}) {
+            Random random = new Random(13);
+            ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(1024);
+            ProtocolV2.BatchEncoder encoder = new ProtocolV2.BatchEncoder(writer, delta, 10);
+            List<String> expected = new ArrayList<>();
+            for (int step = 0; step < 30; step++) {
+                for (int i = 0; i < KEYS; i++) {
+                    String message;
+                    if (i == 0 && step >= 5) {
+                        // key0 was an INT until now. its DICT is the only one since step 0's
+                        encoder.addDouble("robot/drive/key0", step + 0.5);
+                        message = "robot/drive/key0 DOUBLE " + (step + 0.5);
+                    } else {
+                        message = add(encoder, i, step, random);
+                    }
+                    // until keyframe 10 redeclares key0, its batches can't be read at all
+                    if (step < 5 || step >= 10) {
+                        expected.add(message);
+                    }
+                }
+                encoder.flush();
+            }
+            Assert.assertEquals(expected, decodeLosingDicts(writer.toByteArray(), new int[]{1}));
+        }
+    }
+
+    @Test
+    public void test_batchesAreSmallerThanLegacyPackets() {
+        ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(1024);
+        ProtocolV2.BatchEncoder encoder = new ProtocolV2.BatchEncoder(writer, true, 50);
+        long legacyBytes = 0;
+        for (int step = 0; step < 500; step++) {
+            for (int i = 0; i < KEYS; i++) {
+                String key = "robot/drive/key" + i;
+                double value = (step / 10) * 0.25 + i;
+                encoder.addDouble(key, value);
+                legacyBytes += 1 + key.length() + 1 + 4 + 8;
+            }
+            encoder.flush();
+        }
+        // slowly changing DOUBLEs with 16-19 character keys: 30-33 bytes each as legacy packets
+        long batchBytes = writer.size();
+        Assert.assertTrue("batched " + batchBytes + " B vs legacy " + legacyBytes + " B", batchBytes * 5 < legacyBytes);
+    }
+}
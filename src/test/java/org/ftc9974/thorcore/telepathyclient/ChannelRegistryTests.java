@@ -0,0 +1,30 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ChannelRegistryTests {
+
+    @Test
+    public void test_internsKeys() {
+        ChannelRegistry channels = new ChannelRegistry();
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = ("key" + i).getBytes();
+            Assert.assertEquals(i, channels.lookup(ByteBuffer.wrap(key), 0, key.length));
+        }
+        Assert.assertEquals(1000, channels.size());
+
+        ByteBuffer packet = ByteBuffer.wrap("..key123\u0007".getBytes());
+        int channel = channels.lookup(packet, 2, 6);
+        Assert.assertEquals(123, channel);
+        Assert.assertSame(channels.key(channel), channels.key(channels.lookup(packet, 2, 6)));
+        Assert.assertEquals("key123", channels.key(channel));
+
+        Assert.assertEquals(999, channels.find("key999"));
+        Assert.assertEquals(-1, channels.find("missing"));
+        Assert.assertEquals(1000, channels.intern("missing"));
+        Assert.assertEquals(1000, channels.find("missing"));
+    }
+}
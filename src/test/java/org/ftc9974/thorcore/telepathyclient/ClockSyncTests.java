@@ -0,0 +1,58 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class ClockSyncTests {
+
+    @Test
+    public void test_offsetAndDriftFromNoisyPongs() {
+        ClockSync clock = new ClockSync();
+        Random random = new Random(9974);
+        long offset = TimeUnit.SECONDS.toNanos(-3600);
+        double drift = 150e-6;
+        long local = TimeUnit.SECONDS.toNanos(100);
+        // two minutes of pings 100 ms apart. each way takes 1 ms plus up to 20 ms of queueing, and
+        // the two ways are independent, so single samples are off by up to 10 ms
+        for (int i = 0; i < 1200; i++) {
+            long sent = local;
+            long answered = sent + TimeUnit.MILLISECONDS.toNanos(1) + (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(20));
+            long received = answered + TimeUnit.MILLISECONDS.toNanos(1) + (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(20));
+            clock.onPong(sent, server(answered, offset, drift), received);
+            local += TimeUnit.MILLISECONDS.toNanos(100);
+        }
+        Assert.assertEquals(150, clock.driftPpm(), 20);
+        long stamp = server(local, offset, drift);
+        Assert.assertEquals(local, clock.toLocal(stamp), TimeUnit.MILLISECONDS.toNanos(2));
+        // half of a round trip, which takes at least 2 ms
+        Assert.assertTrue(clock.errorNanos() >= TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Test
+    public void test_timeFramesBoundTheOffsetUntilTheFirstPong() {
+        ClockSync clock = new ClockSync();
+        Assert.assertFalse(clock.synced());
+        Assert.assertEquals(42, clock.toLocal(42));
+        long offset = TimeUnit.SECONDS.toNanos(5);
+        // stamps arrive 8 ms, then 2 ms, then 6 ms after they were taken; the fastest one wins
+        clock.onTime(1000 + offset, 1000 + TimeUnit.MILLISECONDS.toNanos(8));
+        clock.onTime(2000 + offset, 2000 + TimeUnit.MILLISECONDS.toNanos(2));
+        clock.onTime(3000 + offset, 3000 + TimeUnit.MILLISECONDS.toNanos(6));
+        Assert.assertTrue(clock.synced());
+        Assert.assertEquals(-1, clock.errorNanos());
+        Assert.assertEquals(5000 + TimeUnit.MILLISECONDS.toNanos(2), clock.toLocal(5000 + offset));
+
+        // a pong replaces the bound with a measured offset
+        clock.onPong(10000, 10500 + offset, 11000);
+        Assert.assertEquals(500, clock.errorNanos());
+        Assert.assertEquals(20000, clock.toLocal(20000 + offset));
+    }
+
+    // the server's clock at local time t
+    private static long server(long t, long offset, double drift) {
+        return t + offset + (long) (t * drift);
+    }
+}
@@ -0,0 +1,123 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DispatchQueueTests {
+
+    private static TelepathyAPI.Message<?> message(int channel, long value) {
+        return new TelepathyAPI.Message<Long>("key" + channel, channel, TelepathyAPI.Type.LONG, value, value, null);
+    }
+
+    @Test
+    public void test_losslessDeliversEverythingInOrder() throws InterruptedException {
+        int count = 20_000;
+        long[] next = new long[1];
+        boolean[] outOfOrder = new boolean[1];
+        CountDownLatch done = new CountDownLatch(1);
+        DispatchQueue queue = new DispatchQueue(message -> {
+            if (message.getLong() != next[0]++) {
+                outOfOrder[0] = true;
+            }
+            if (next[0] == count) {
+                done.countDown();
+            }
+        }, TelepathyAPI.Delivery.LOSSLESS, "test");
+        for (int i = 0; i < count; i++) {
+            queue.offer(message(0, i));
+            // as the reader does, which stops reading while the queue is congested
+            while (queue.congested()) {
+                Thread.yield();
+            }
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(outOfOrder[0]);
+        // the last message is marked consumed just after the listener returns
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (queue.lag() != 0 && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertEquals(0, queue.lag());
+        Assert.assertEquals(0, queue.dropped());
+        queue.remove();
+    }
+
+    @Test
+    public void test_losslessStopsTheReaderInsteadOfBlockingIt() throws InterruptedException {
+        int count = 10_000;
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch drained = new CountDownLatch(1);
+        long[] next = new long[1];
+        boolean[] outOfOrder = new boolean[1];
+        CountDownLatch done = new CountDownLatch(1);
+        DispatchQueue queue = new DispatchQueue(message -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (message.getLong() != next[0]++) {
+                outOfOrder[0] = true;
+            }
+            if (next[0] == count) {
+                done.countDown();
+            }
+        }, TelepathyAPI.Delivery.LOSSLESS, "test") {
+            @Override
+            void onDrained() {
+                drained.countDown();
+            }
+        };
+        // the listener is stuck and the ring holds less than count, but offering still returns
+        for (int i = 0; i < count; i++) {
+            queue.offer(message(0, i));
+        }
+        Assert.assertTrue(queue.congested());
+        Assert.assertEquals(1, queue.stalls());
+        Assert.assertEquals(1, drained.getCount());
+
+        release.countDown();
+        Assert.assertTrue(drained.await(10, TimeUnit.SECONDS));
+        // each call moves what fits of the rest into the ring
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queue.congested() && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertFalse(queue.congested());
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(outOfOrder[0]);
+        Assert.assertEquals(0, queue.dropped());
+        Assert.assertEquals(1, queue.stalls());
+        queue.remove();
+    }
+
+    @Test
+    public void test_conflatedNeverBlocksTheReader() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        long[] lastSeen = new long[2];
+        CountDownLatch done = new CountDownLatch(1);
+        DispatchQueue queue = new DispatchQueue(message -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            lastSeen[message.channel] = message.getLong();
+            if (lastSeen[0] == 9999 && lastSeen[1] == 9999) {
+                done.countDown();
+            }
+        }, TelepathyAPI.Delivery.CONFLATED, "test");
+        // the listener is stuck, but offering still returns immediately
+        for (int i = 0; i < 10_000; i++) {
+            queue.offer(message(0, i));
+            queue.offer(message(1, i));
+        }
+        Assert.assertTrue(queue.dropped() > 0);
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        queue.remove();
+    }
+}
@@ -0,0 +1,67 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ExpressionTests {
+
+    @Test
+    public void test_precedence() {
+        Assert.assertEquals(7, evaluate("1 + 2 * 3"), 0);
+        Assert.assertEquals(9, evaluate("(1 + 2) * 3"), 0);
+        Assert.assertEquals(-4, evaluate("-2^2"), 0);
+        Assert.assertEquals(512, evaluate("2^3^2"), 0);
+        Assert.assertEquals(0.5, evaluate("2^-1"), 0);
+        Assert.assertEquals(1, evaluate("10 % 3"), 0);
+        Assert.assertEquals(2, evaluate("8 / 2 / 2"), 0);
+        Assert.assertEquals(0.0015, evaluate("1.5e-3"), 0);
+        Assert.assertEquals(5, evaluate("hypot(3, 4)"), 0);
+        Assert.assertEquals(180, evaluate("toDegrees(atan2(0, -1))"), 1e-12);
+    }
+
+    @Test
+    public void test_keys() {
+        Expression expression = Expression.parse("(\"Drive/Left\" + \"Drive Right\") / 2 - abs(\"Drive/Left\")");
+        Assert.assertEquals(List.of("Drive/Left", "Drive Right"), expression.inputs());
+        Assert.assertEquals(-1, expression.evaluate(new double[]{-2, 4}), 0);
+        Assert.assertEquals(1.5, expression.evaluate(new double[]{1, 4}), 0);
+    }
+
+    @Test
+    public void test_operatorsAreNeverPartOfABareKey() {
+        Expression divided = Expression.parse("Position/2");
+        Assert.assertEquals(List.of("Position"), divided.inputs());
+        Assert.assertEquals(1.5, divided.evaluate(new double[]{3}), 0);
+        Expression subtracted = Expression.parse("a/b-1");
+        Assert.assertEquals(List.of("a", "b"), subtracted.inputs());
+        Assert.assertEquals(2, subtracted.evaluate(new double[]{6, 2}), 0);
+        Assert.assertEquals(List.of("arm.angle_2$"), Expression.parse("arm.angle_2$").inputs());
+    }
+
+    @Test
+    public void test_errors() {
+        assertError("1 +", "Expected a value at 4");
+        assertError("(1 + 2", "Expected ')' at 7");
+        assertError("1 2", "Unexpected '2' at 3");
+        assertError("nope(1)", "Unknown function nope with 1 argument(s) at 1");
+        assertError("\"Drive", "Unterminated key at 1");
+        assertError("1..2", "Bad number at 1");
+    }
+
+    private static double evaluate(String source) {
+        Expression expression = Expression.parse(source);
+        Assert.assertTrue(expression.inputs().isEmpty());
+        return expression.evaluate(new double[0]);
+    }
+
+    private static void assertError(String source, String message) {
+        try {
+            Expression.parse(source);
+            Assert.fail(source + " parsed");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
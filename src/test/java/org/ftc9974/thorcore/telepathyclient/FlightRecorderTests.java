@@ -0,0 +1,128 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class FlightRecorderTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_recordAndSeek() throws IOException {
+        Path directory = folder.getRoot().toPath().resolve("session");
+        ChannelRegistry channels = new ChannelRegistry();
+        int speed = channels.intern("speed");
+        int state = channels.intern("state");
+
+        // small segments so the session spans several files
+        FlightRecorder recorder = new FlightRecorder(directory, channels, 4096);
+        long start = System.nanoTime();
+        int samples = 5000;
+        for (int i = 0; i < samples; i++) {
+            // 10 ms apart, so 50 seconds in total
+            long received = start + TimeUnit.MILLISECONDS.toNanos(10) * i;
+            TelepathyAPI.Message<?> message;
+            if (i % 100 == 0) {
+                message = new TelepathyAPI.Message<>("state", state, TelepathyAPI.Type.STRING, "step " + i, null);
+            } else {
+                message = new TelepathyAPI.Message<Double>("speed", speed, TelepathyAPI.Type.DOUBLE, i, i * 0.5, null);
+            }
+            message.receivedNanos = received;
+            message.timestampNanos = received - stampDelay(i);
+            recorder.offer(message);
+        }
+        recorder.close();
+        Assert.assertEquals(0, recorder.dropped());
+        // every segment truncated to what it holds, and the one mapped ahead is gone
+        int segments = 0;
+        while (Files.exists(directory.resolve(String.format("segment-%06d.tlog", segments)))) {
+            long size = Files.size(directory.resolve(String.format("segment-%06d.tlog", segments)));
+            Assert.assertTrue("segment " + segments + " is " + size + " bytes", size > 0 && size < 4096);
+            segments++;
+        }
+        Assert.assertTrue(segments > 2);
+        try (Stream<Path> files = Files.list(directory)) {
+            Assert.assertEquals(segments + 2, files.count());
+        }
+
+        try (FlightRecorder.Reader reader = new FlightRecorder.Reader(directory)) {
+            Assert.assertEquals("speed", reader.key(speed));
+            Assert.assertEquals("state", reader.key(state));
+            long first = reader.startTime();
+            int count = 0;
+            long previous = Long.MIN_VALUE;
+            while (reader.next()) {
+                Assert.assertTrue(reader.timestamp() > previous);
+                previous = reader.timestamp();
+                Assert.assertEquals(reader.timestamp() - stampDelay(count), reader.stamp());
+                if (count % 100 == 0) {
+                    Assert.assertEquals("step " + count, reader.stringValue());
+                } else {
+                    Assert.assertEquals(count * 0.5, reader.doubleValue(), 0);
+                }
+                count++;
+            }
+            Assert.assertEquals(samples, count);
+
+            // sample 3210 was received 32.1 s in
+            reader.seek(first + TimeUnit.MILLISECONDS.toNanos(32_100));
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(first + TimeUnit.MILLISECONDS.toNanos(32_100), reader.timestamp());
+            Assert.assertEquals(3210 * 0.5, reader.doubleValue(), 0);
+            Assert.assertEquals("speed", reader.key());
+
+            reader.seek(first - 1);
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(first, reader.timestamp());
+        }
+    }
+
+    @Test
+    public void test_aStalledRecorderNeverHoldsUpTheReader() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("session");
+        ChannelRegistry channels = new ChannelRegistry();
+        int speed = channels.intern("speed");
+        FlightRecorder recorder = new FlightRecorder(directory, channels, 1 << 20);
+        int total = FlightRecorder.QUEUE_SIZE + 10_000;
+        Thread reader = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                TelepathyAPI.Message<?> message = new TelepathyAPI.Message<Double>("speed", speed, TelepathyAPI.Type.DOUBLE, i, i, null);
+                message.receivedNanos = message.timestampNanos = i;
+                recorder.offer(message);
+            }
+        });
+        // writes synchronize on the recorder, so holding it stalls the recorder like a hung disk
+        synchronized (recorder) {
+            reader.start();
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+            Assert.assertFalse("the reader waited for the recorder", reader.isAlive());
+        }
+        recorder.close();
+        Assert.assertTrue(recorder.dropped() >= total - FlightRecorder.QUEUE_SIZE - 1);
+
+        int recorded = 0;
+        try (FlightRecorder.Reader session = new FlightRecorder.Reader(directory)) {
+            while (session.next()) {
+                // the oldest messages are kept, what didn't fit is lost
+                Assert.assertEquals(recorded, session.doubleValue(), 0);
+                recorded++;
+            }
+        }
+        Assert.assertEquals(total, recorded + recorder.dropped());
+    }
+
+    // how far the server stamp of sample i is behind its arrival. halfway through, a corrected
+    // clock estimate moves the stamps 2 s back, which mustn't disturb the order or the index
+    private static long stampDelay(int i) {
+        return TimeUnit.MILLISECONDS.toNanos(i < 2500 ? 5 : 2005);
+    }
+}
@@ -0,0 +1,131 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FrameDecoderTests {
+
+    // the List<List<Byte>> scanner FrameDecoder replaced, kept as the reference behaviour
+    private static List<List<Byte>> referenceScan(byte[] stream) {
+        List<List<Byte>> emitted = new ArrayList<>();
+        List<List<Byte>> packets = new ArrayList<>();
+        for (byte b : stream) {
+            if (b == 0) {
+                packets.add(new ArrayList<>());
+            }
+            for (List<Byte> packet : packets) {
+                packet.add(b);
+            }
+            List<List<Byte>> trimmedPackets = new ArrayList<>();
+            for (int i = 0; i < packets.size() - 1; i++) {
+                if (TelepathyAPI.validatePacket(packets.get(i))) {
+                    List<Byte> packet = packets.get(i);
+                    emitted.add(new ArrayList<>(packet.subList(1, packet.size())));
+                } else if (packets.get(i).stream().filter(x -> x == 0).count() < 20) {
+                    trimmedPackets.add(packets.get(i));
+                }
+            }
+            if (!packets.isEmpty()) {
+                trimmedPackets.add(packets.get(packets.size() - 1));
+            }
+            packets.clear();
+            packets.addAll(trimmedPackets);
+        }
+        return emitted;
+    }
+
+    private static List<List<Byte>> decode(byte[] stream, int chunkSize) {
+        List<List<Byte>> emitted = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(frame -> {
+            List<Byte> packet = new ArrayList<>();
+            while (frame.hasRemaining()) {
+                packet.add(frame.get());
+            }
+            emitted.add(packet);
+        }, 16);
+        for (int i = 0; i < stream.length; i += chunkSize) {
+            decoder.feed(stream, i, Math.min(chunkSize, stream.length - i));
+        }
+        return emitted;
+    }
+
+    private static byte[] packet(String key, TelepathyAPI.Type type, byte[] value) {
+        return ByteBuffer.allocate(1 + key.length() + 5 + value.length)
+                .put((byte) 0)
+                .put(key.getBytes())
+                .put(type.typeKey)
+                .putInt(value.length)
+                .put(value)
+                .array();
+    }
+
+    @Test
+    public void test_wellFormedStream() {
+        ByteBuffer stream = ByteBuffer.allocate(4096);
+        stream.put(packet("TestKey", TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(12.7896).array()));
+        stream.put(packet("Another key", TelepathyAPI.Type.STRING, "Hello, World!".getBytes()));
+        stream.put(packet("Zeros", TelepathyAPI.Type.LONG, new byte[8]));
+        stream.put(packet("TestKey", TelepathyAPI.Type.INT, ByteBuffer.allocate(4).putInt(42).array()));
+        byte[] bytes = new byte[stream.position()];
+        stream.flip().get(bytes);
+
+        List<List<Byte>> decoded = decode(bytes, 7);
+        Assert.assertEquals(4, decoded.size());
+        Assert.assertEquals(referenceScan(bytes), decoded);
+
+        ByteBuffer frame = ByteBuffer.wrap(bytes, 1, 7 + 5 + 8).slice();
+        TelepathyAPI.Message<?> message = TelepathyAPI.deserializeMessage(frame, true, new ChannelRegistry());
+        Assert.assertEquals("TestKey", message.key);
+        Assert.assertEquals(12.7896, message.getDouble(), 0);
+        Assert.assertEquals(12.7896, (double) message.getValue(), 0);
+    }
+
+    @Test
+    public void test_matchesReferenceOnCorruptedStreams() {
+        Random random = new Random(9974);
+        for (int run = 0; run < 200; run++) {
+            ByteBuffer stream = ByteBuffer.allocate(1 << 12);
+            while (stream.remaining() > 64) {
+                switch (random.nextInt(6)) {
+                    case 0:
+                        stream.put(packet("k" + random.nextInt(100), TelepathyAPI.Type.DOUBLE,
+                                ByteBuffer.allocate(8).putDouble(random.nextGaussian()).array()));
+                        break;
+                    case 1:
+                        stream.put(packet("s", TelepathyAPI.Type.STRING, ("v" + random.nextInt()).getBytes()));
+                        break;
+                    case 2:
+                        // truncated packet
+                        byte[] truncated = packet("trunc", TelepathyAPI.Type.LONG, new byte[8]);
+                        stream.put(truncated, 0, random.nextInt(truncated.length));
+                        break;
+                    case 3:
+                        // zero-heavy garbage
+                        for (int i = random.nextInt(30); i > 0; i--) {
+                            stream.put(random.nextInt(3) == 0 ? (byte) random.nextInt(256) : 0);
+                        }
+                        break;
+                    case 4:
+                        // small values look like keys, types and lengths
+                        for (int i = random.nextInt(20); i > 0; i--) {
+                            stream.put((byte) (random.nextInt(12) - 2));
+                        }
+                        break;
+                    default:
+                        byte[] garbage = new byte[random.nextInt(20)];
+                        random.nextBytes(garbage);
+                        stream.put(garbage);
+                        break;
+                }
+            }
+            byte[] bytes = new byte[stream.position()];
+            stream.flip().get(bytes);
+            Assert.assertEquals(referenceScan(bytes), decode(bytes, 1 + random.nextInt(512)));
+        }
+    }
+}
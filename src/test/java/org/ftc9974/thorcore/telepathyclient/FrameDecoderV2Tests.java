@@ -0,0 +1,86 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FrameDecoderV2Tests {
+
+    private static byte[] frame(String key, double value) {
+        ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(16);
+        writer.message(key.getBytes(), TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(value).array());
+        return writer.toByteArray();
+    }
+
+    private static List<String> decode(byte[] stream, Random random, FrameDecoderV2[] decoderOut) {
+        List<String> decoded = new ArrayList<>();
+        ChannelRegistry channels = new ChannelRegistry();
+        FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+            Assert.assertEquals(ProtocolV2.TYPE_MESSAGE, type);
+            TelepathyAPI.Message<?> message = TelepathyAPI.deserializeMessageV2(payload, false, channels);
+            decoded.add(message.getKey() + "=" + message.getDouble());
+        }, 16);
+        for (int offset = 0; offset < stream.length; ) {
+            int chunk = Math.min(stream.length - offset, 1 + random.nextInt(64));
+            decoder.feed(stream, offset, chunk);
+            offset += chunk;
+        }
+        if (decoderOut != null) {
+            decoderOut[0] = decoder;
+        }
+        return decoded;
+    }
+
+    @Test
+    public void test_roundTripWithKeepAlives() {
+        Random random = new Random(7);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            // keys up to 300 bytes need a two byte length varint
+            String key = "key" + new String(new char[random.nextInt(300)]).replace('\0', 'x');
+            // zero bytes in values and keep-alives between frames are both fine in v2
+            double value = random.nextBoolean() ? 0 : random.nextGaussian();
+            expected.add(key + "=" + value);
+            byte[] frame = frame(key, value);
+            stream.write(frame, 0, frame.length);
+            if (random.nextInt(4) == 0) {
+                stream.write(0);
+            }
+        }
+        FrameDecoderV2[] decoder = new FrameDecoderV2[1];
+        Assert.assertEquals(expected, decode(stream.toByteArray(), random, decoder));
+        Assert.assertEquals(0, decoder[0].rejected());
+    }
+
+    @Test
+    public void test_corruptFramesAreDroppedAndTheRestSurvive() {
+        Random random = new Random(11);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<>();
+        // garbage before the first frame, like joining a stream halfway through a frame
+        stream.write(new byte[]{5, ProtocolV2.MAGIC, 17, 0, 3}, 0, 5);
+        int corrupted = 0;
+        for (int i = 0; i < 2000; i++) {
+            String key = "drive/motor" + i % 8;
+            byte[] frame = frame(key, i);
+            if (random.nextInt(10) == 0) {
+                // any single flipped bit, header and CRC included, loses only this frame
+                frame[random.nextInt(frame.length)] ^= 1 << random.nextInt(8);
+                corrupted++;
+            } else {
+                expected.add(key + "=" + (double) i);
+            }
+            stream.write(frame, 0, frame.length);
+        }
+        FrameDecoderV2[] decoder = new FrameDecoderV2[1];
+        Assert.assertEquals(expected, decode(stream.toByteArray(), random, decoder));
+        Assert.assertEquals(expected.size(), decoder[0].frames());
+        Assert.assertTrue(decoder[0].rejected() >= corrupted);
+    }
+}
@@ -0,0 +1,57 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+public class HeadlessClientTests {
+
+    @Test
+    public void test_csv() {
+        String[] lines = write(HeadlessClient.Format.CSV).split("\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertEquals("time,key,type,value", lines[0]);
+        Assert.assertTrue(lines[1], lines[1].endsWith(",Drive,DOUBLE,1.5"));
+        Assert.assertTrue(lines[2], lines[2].endsWith(",\"Say \"\"hi\"\", robot\",STRING,\"a,b\""));
+        Assert.assertTrue(lines[3], lines[3].endsWith(",Drive,DOUBLE,NaN"));
+    }
+
+    @Test
+    public void test_ndjson() {
+        String[] lines = write(HeadlessClient.Format.NDJSON).split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertTrue(lines[0], lines[0].matches("\\{\"time\":\\d+,\"key\":\"Drive\",\"type\":\"DOUBLE\",\"value\":1.5}"));
+        Assert.assertTrue(lines[1], lines[1].endsWith("\"key\":\"Say \\\"hi\\\", robot\",\"type\":\"STRING\",\"value\":\"a,b\"}"));
+        Assert.assertTrue(lines[2], lines[2].endsWith("\"value\":null}"));
+    }
+
+    @Test
+    public void test_binaryDeclaresEachKeyOnce() {
+        ByteBuffer records = ByteBuffer.wrap(write(HeadlessClient.Format.BINARY).getBytes(StandardCharsets.ISO_8859_1));
+        byte[] types = new byte[5];
+        for (int i = 0; i < types.length; i++) {
+            int length = records.getInt();
+            records.getLong();
+            records.getInt();
+            types[i] = records.get();
+            records.position(records.position() + length - 17);
+        }
+        Assert.assertFalse(records.hasRemaining());
+        Assert.assertArrayEquals(new byte[]{HeadlessClient.BINARY_KEY, TelepathyAPI.Type.DOUBLE.typeKey,
+                HeadlessClient.BINARY_KEY, TelepathyAPI.Type.STRING.typeKey, TelepathyAPI.Type.DOUBLE.typeKey}, types);
+    }
+
+    // formats the same three messages and returns what was written
+    private static String write(HeadlessClient.Format format) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeadlessClient client = new HeadlessClient(format, Channels.newChannel(out), 0);
+        client.onNewMessage(new TelepathyAPI.Message<>("Drive", 0, TelepathyAPI.Type.DOUBLE, 0, 1.5, null));
+        client.onNewMessage(new TelepathyAPI.Message<>("Say \"hi\", robot", 1, TelepathyAPI.Type.STRING, "a,b", null));
+        client.onNewMessage(new TelepathyAPI.Message<>("Drive", 0, TelepathyAPI.Type.DOUBLE, 0, Double.NaN, null));
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
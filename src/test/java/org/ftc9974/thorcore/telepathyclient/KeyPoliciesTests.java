@@ -0,0 +1,100 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class KeyPoliciesTests {
+
+    private final TelepathyEventLoop loop = TelepathyEventLoop.shared();
+    private final ChannelRegistry channels = new ChannelRegistry();
+
+    @Test
+    public void test_parse() {
+        Assert.assertEquals(KeyPolicy.PASS, KeyPolicy.parse("pass"));
+        Assert.assertEquals(KeyPolicy.latest(10), KeyPolicy.parse("latest:10"));
+        Assert.assertEquals(KeyPolicy.decimate(4), KeyPolicy.parse(" decimate:4"));
+        Assert.assertEquals("latest:2.5", KeyPolicy.parse("latest:2.5").toString());
+        for (String bad : new String[]{"", "latest", "latest:0", "decimate:x", "pass:1", "fast"}) {
+            try {
+                KeyPolicy.parse(bad);
+                Assert.fail(bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void test_newestMatchingPatternWins() {
+        KeyPolicies policies = new KeyPolicies(loop, channels, message -> {});
+        policies.set("Drive/*", KeyPolicy.latest(10));
+        policies.set("*/Velocity", KeyPolicy.decimate(5));
+        Assert.assertEquals(KeyPolicy.decimate(5), policies.policy("Drive/Velocity"));
+        Assert.assertEquals(KeyPolicy.latest(10), policies.policy("Drive/Position"));
+        Assert.assertEquals(KeyPolicy.PASS, policies.policy("Drive"));
+        Assert.assertEquals(KeyPolicy.PASS, policies.policy("Arm.Angle"));
+        // setting a pattern again moves it to the front
+        policies.set("Drive/*", KeyPolicy.latest(1));
+        Assert.assertEquals(KeyPolicy.latest(1), policies.policy("Drive/Velocity"));
+        policies.remove("Drive/*");
+        Assert.assertEquals(KeyPolicy.decimate(5), policies.policy("Drive/Velocity"));
+    }
+
+    @Test
+    public void test_decimateAndKeepEverySample() throws Exception {
+        List<Double> delivered = new CopyOnWriteArrayList<>();
+        KeyPolicies policies = new KeyPolicies(loop, channels, message -> delivered.add(message.getDouble()));
+        policies.set("Arm", KeyPolicy.decimate(3));
+        for (int i = 0; i < 9; i++) {
+            admit(policies, "Arm", i, delivered);
+        }
+        Assert.assertEquals(List.of(0.0, 3.0, 6.0), delivered);
+        Assert.assertEquals(6, policies.dropped());
+
+        delivered.clear();
+        policies.keepEverySample("Arm", true);
+        for (int i = 0; i < 3; i++) {
+            admit(policies, "Arm", i, delivered);
+        }
+        Assert.assertEquals(List.of(0.0, 1.0, 2.0), delivered);
+    }
+
+    @Test
+    public void test_latestDeliversTheNewestValueWhenTheIntervalIsUp() throws Exception {
+        BlockingQueue<Double> delivered = new LinkedBlockingQueue<>();
+        KeyPolicies policies = new KeyPolicies(loop, channels, message -> delivered.add(message.getDouble()));
+        policies.set("Lift", KeyPolicy.latest(5));
+        // a burst inside one 200 ms interval: the first goes through, the last follows at the end
+        // of the interval, and the ones in between are dropped
+        for (int i = 0; i < 10; i++) {
+            admit(policies, "Lift", i, delivered);
+        }
+        Assert.assertEquals(0.0, delivered.poll(1, TimeUnit.SECONDS), 0);
+        long start = System.nanoTime();
+        Assert.assertEquals(9.0, delivered.poll(1, TimeUnit.SECONDS), 0);
+        Assert.assertTrue(System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertNull(delivered.poll(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(8, policies.dropped());
+    }
+
+    // admits one message on the event loop, and delivers it like TelepathyAPI does if it is admitted
+    private void admit(KeyPolicies policies, String key, double value, Collection<Double> delivered) throws Exception {
+        byte[] bytes = key.getBytes();
+        int channel = channels.lookup(ByteBuffer.wrap(bytes), 0, bytes.length);
+        TelepathyAPI.Message<?> message = new TelepathyAPI.Message<>(key, channel, TelepathyAPI.Type.DOUBLE, 0, value, null);
+        FutureTask<Boolean> admit = new FutureTask<>(() -> policies.admit(message, System.nanoTime()));
+        loop.execute(admit);
+        if (admit.get(1, TimeUnit.SECONDS)) {
+            delivered.add(value);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void test_bucketsAreWithinTwelvePercent() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+            Assert.assertTrue(value + " -> " + highest, highest >= value);
+            Assert.assertTrue(value + " -> " + highest, highest - value <= value / 8);
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void test_intervalPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] last = new long[LatencyHistogram.BUCKETS];
+        long[] interval = new long[LatencyHistogram.BUCKETS];
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(1_000_000);
+        }
+        histogram.interval(last, interval);
+        Assert.assertEquals(1_000_000, LatencyHistogram.percentile(interval, 0.99), 1_000_000 / 8);
+
+        // only what was recorded since the previous interval counts
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i);
+        }
+        histogram.interval(last, interval);
+        Assert.assertEquals(5_000, LatencyHistogram.percentile(interval, 0.5), 5_000 / 8);
+        Assert.assertEquals(9_900, LatencyHistogram.percentile(interval, 0.99), 9_900 / 8);
+        Assert.assertEquals(11_000, histogram.count());
+
+        histogram.interval(last, interval);
+        Assert.assertEquals(0, LatencyHistogram.percentile(interval, 0.5));
+    }
+
+    @Test
+    public void test_recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        TelepathyMetrics metrics = new TelepathyMetrics(new TelepathyAPI("127.0.0.1", 0), new ChannelRegistry());
+        Runnable record = () -> {
+            for (int i = 0; i < 100_000; i++) {
+                metrics.recordRead(64, i);
+                metrics.recordMessage(i & 7);
+                metrics.recordUiLag(i * 1000L);
+                metrics.listener.record(i);
+            }
+        };
+        for (int warmup = 0; warmup < 5; warmup++) {
+            record.run();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        record.run();
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        Assert.assertTrue("recording allocated " + allocated + " B", allocated < 1024);
+    }
+}
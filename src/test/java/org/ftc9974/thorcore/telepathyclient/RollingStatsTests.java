@@ -0,0 +1,138 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+public class RollingStatsTests {
+
+    @Test
+    public void test_matchesTheWindowComputedFromScratch() {
+        // 1000 ns window, samples 5 to 30 ns apart: up to 200 in the window, so a 64 sample ring
+        // fills up and a large one has to grow
+        for (int capacity : new int[]{64, RollingStats.DEFAULT_MAX_CAPACITY}) {
+            RollingStats stats = new RollingStats(1000, capacity);
+            Random random = new Random(9974);
+            int total = 20000;
+            long[] times = new long[total];
+            double[] values = new double[total];
+            long time = 0;
+            for (int i = 0; i < total; i++) {
+                time += 5 + random.nextInt(26);
+                times[i] = time;
+                // a large offset makes the incremental variance lose precision if it isn't recomputed
+                values[i] = 1e6 + random.nextGaussian() * (i % 2000 < 1000 ? 1 : 100);
+                stats.add(time, values[i]);
+
+                int first = i;
+                while (first > 0 && i - first + 1 < capacity && time - times[first - 1] <= 1000) {
+                    first--;
+                }
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                double sum = 0;
+                for (int j = first; j <= i; j++) {
+                    min = Math.min(min, values[j]);
+                    max = Math.max(max, values[j]);
+                    sum += values[j];
+                }
+                int count = i - first + 1;
+                double mean = sum / count;
+                double squares = 0;
+                for (int j = first; j <= i; j++) {
+                    squares += (values[j] - mean) * (values[j] - mean);
+                }
+                String sample = "capacity " + capacity + ", sample " + i;
+                Assert.assertEquals(sample, count, stats.count());
+                Assert.assertEquals(sample, min, stats.min(), 0);
+                Assert.assertEquals(sample, max, stats.max(), 0);
+                Assert.assertEquals(sample, mean, stats.mean(), 1e-6);
+                Assert.assertEquals(sample, Math.sqrt(squares / count), stats.stddev(), 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void test_coversTheWholeWindowAtHighRates() {
+        // 200 Hz for 20 s with a 10 s window
+        RollingStats stats = new RollingStats(10_000_000_000L);
+        for (int i = 0; i < 4000; i++) {
+            stats.add(i * 5_000_000L, i);
+        }
+        Assert.assertEquals(2001, stats.count());
+        Assert.assertEquals(1999, stats.min(), 0);
+        Assert.assertEquals(3999, stats.max(), 0);
+        Assert.assertEquals(2999, stats.mean(), 1e-6);
+        Assert.assertEquals(200, stats.rate(), 0.5);
+    }
+
+    @Test
+    public void test_rateWhenTheRingIsFull() {
+        // a 1024 sample ring only holds 5 s of a 200 Hz key, but the rate is over what it holds
+        RollingStats stats = new RollingStats(10_000_000_000L, 1024);
+        for (int i = 0; i < 4000; i++) {
+            stats.add(i * 5_000_000L, i);
+        }
+        Assert.assertEquals(1024, stats.capacity());
+        Assert.assertEquals(1024, stats.count());
+        Assert.assertEquals(4000 - 1024, stats.min(), 0);
+        Assert.assertEquals(200, stats.rate(), 0.5);
+    }
+
+    @Test
+    public void test_aKeyThatStopsEmptiesOut() {
+        RollingStats stats = new RollingStats(1_000_000_000);
+        for (int i = 0; i < 100; i++) {
+            stats.add(i * 10_000_000L, i);
+            stats.add(i * 10_000_000L, Double.NaN);
+        }
+        Assert.assertEquals(100, stats.count());
+        Assert.assertEquals(100 / 0.99, stats.rate(), 1e-9);
+        Assert.assertEquals(49.5, stats.mean(), 1e-9);
+
+        // half the window later, half the samples are left and the rate has fallen with them
+        stats.expire(1_495_000_000L);
+        Assert.assertEquals(50, stats.count());
+        Assert.assertEquals(50, stats.min(), 0);
+        Assert.assertEquals(50 / 0.995, stats.rate(), 1e-9);
+
+        stats.expire(5_000_000_000L);
+        Assert.assertEquals(0, stats.count());
+        Assert.assertTrue(Double.isNaN(stats.min()));
+        Assert.assertTrue(Double.isNaN(stats.max()));
+        Assert.assertTrue(Double.isNaN(stats.mean()));
+        Assert.assertEquals(0, stats.rate(), 0);
+    }
+
+    @Test
+    public void test_addingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        // 500 Hz with a 1 s window, once the ring has grown to fit it
+        RollingStats stats = new RollingStats(1_000_000_000);
+        long[] time = new long[1];
+        Runnable add = () -> {
+            for (int i = 0; i < 100_000; i++) {
+                time[0] += 2_000_000;
+                stats.add(time[0], Math.sin(i));
+                if (i % 100 == 0) {
+                    stats.expire(time[0]);
+                    stats.rate();
+                    stats.stddev();
+                }
+            }
+        };
+        for (int warmup = 0; warmup < 5; warmup++) {
+            add.run();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        add.run();
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        Assert.assertTrue("adding allocated " + allocated + " B", allocated < 1024);
+    }
+}
@@ -0,0 +1,83 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+public class TelemetryRowsTests {
+
+    @Test
+    public void test_rowsAreFoundByChannel() {
+        List<TelemetryRows.Row> list = new ArrayList<>();
+        TelemetryRows<TelemetryRows.Row> rows = new TelemetryRows<>(list, TelemetryRows.Row::new);
+        Assert.assertNull(rows.row(0));
+        // far past the initial 16 channels, then back below them
+        int[] channels = {3, 15, 16, 40, 1000, 0};
+        for (int channel : channels) {
+            rows.add(message("Key" + channel, channel, channel));
+        }
+        Assert.assertEquals(channels.length, rows.size());
+        for (int i = 0; i < channels.length; i++) {
+            TelemetryRows.Row row = rows.row(channels[i]);
+            Assert.assertSame(list.get(i), row);
+            Assert.assertEquals("Key" + channels[i], row.key);
+            Assert.assertEquals(channels[i], row.channel);
+        }
+        Assert.assertNull(rows.row(4));
+        Assert.assertNull(rows.row(999));
+        Assert.assertNull(rows.row(1001));
+        Assert.assertNull(rows.row(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void test_filterMatchesPartOfTheKeyInAnyCase() {
+        Assert.assertNull(TelemetryRows.filter(""));
+        Assert.assertNull(TelemetryRows.filter("  "));
+
+        Predicate<TelemetryRows.Row> filter = TelemetryRows.filter(" DRIVE/ ");
+        Assert.assertTrue(filter.test(new TelemetryRows.Row(message("Drive/Left", 0, 1))));
+        Assert.assertTrue(filter.test(new TelemetryRows.Row(message("robot/drive/Right", 1, 1))));
+        Assert.assertFalse(filter.test(new TelemetryRows.Row(message("Drive", 2, 1))));
+        Assert.assertFalse(filter.test(new TelemetryRows.Row(message("Arm/Angle", 3, 1))));
+    }
+
+    @Test
+    public void test_watchedKeysAreSubscribedToAtFullRate() {
+        TelemetryRows<TelemetryRows.Row> rows = new TelemetryRows<>(new ArrayList<>(), TelemetryRows.Row::new);
+        TelemetryRows.Row arm = rows.add(message("Arm/Angle", 0, 1));
+        TelemetryRows.Row error = rows.add(message("Error", 1, 1));
+        TelemetryRows.Row battery = rows.add(message("Battery", 2, 12));
+        Assert.assertFalse(rows.takeWatchedChanged());
+
+        rows.setWatched(error, true);
+        rows.setWatched(arm, true);
+        rows.setWatched(battery, false);
+        Assert.assertTrue(rows.takeWatchedChanged());
+        Assert.assertFalse(rows.takeWatchedChanged());
+        Assert.assertEquals(List.of(error, arm), new ArrayList<>(rows.watched()));
+
+        // in view and graphed is no change
+        rows.setWatched(arm, true);
+        Assert.assertFalse(rows.takeWatchedChanged());
+
+        Subscription subscription = rows.subscription(2, key -> key.equals("Error") ? Set.of("Target", "Position") : Set.of());
+        Assert.assertEquals(0, subscription.intervalMicros("Arm/Angle"));
+        Assert.assertEquals(0, subscription.intervalMicros("Error"));
+        Assert.assertEquals(0, subscription.intervalMicros("Target"));
+        Assert.assertEquals(0, subscription.intervalMicros("Position"));
+        Assert.assertEquals(500000, subscription.intervalMicros("Battery"));
+
+        rows.setWatched(arm, false);
+        Assert.assertTrue(rows.takeWatchedChanged());
+        Assert.assertEquals(List.of(error), new ArrayList<>(rows.watched()));
+        Assert.assertEquals(500000, rows.subscription(2, key -> Set.of()).intervalMicros("Arm/Angle"));
+    }
+
+    private static TelepathyAPI.Message<Double> message(String key, int channel, double value) {
+        return new TelepathyAPI.Message<>(key, channel, TelepathyAPI.Type.DOUBLE, 0, value, null);
+    }
+}
@@ -1,12 +1,33 @@
 package org.ftc9974.thorcore.telepathyclient;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 public class TelepathyAPITests {
 
+    private static volatile Object sink;
+    private static volatile double doubleSink;
+
     @Test
     public void test_validation() {
         List<Byte> packet = List.of(
@@ -22,4 +43,607 @@ public class TelepathyAPITests {
 
         Assert.assertTrue(TelepathyAPI.validatePacket(packet));
     }
+
+    @Test
+    public void test_primitiveAccessors() {
+        TelepathyAPI.Message<?> message = TelepathyAPI.deserializeMessage(frame("i", TelepathyAPI.Type.INT,
+                ByteBuffer.allocate(4).putInt(-42).array()), false, new ChannelRegistry());
+        Assert.assertTrue(message.isNumeric());
+        Assert.assertEquals(-42, message.getLong());
+        Assert.assertEquals(-42.0, message.getDouble(), 0);
+        Assert.assertEquals("-42", message.valueString());
+        Assert.assertEquals(-42, message.getValue());
+        Assert.assertNull(message.raw);
+
+        message = TelepathyAPI.deserializeMessage(frame("s", TelepathyAPI.Type.STRING, "text".getBytes()), true, new ChannelRegistry());
+        Assert.assertFalse(message.isNumeric());
+        Assert.assertEquals("text", message.getValue());
+        Assert.assertEquals(1 + 5 + 4, message.raw.length);
+    }
+
+    @Test
+    public void test_numericDecodeDoesNotBox() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        int frames = 200_000;
+
+        byte[] packet = ByteBuffer.allocate(1 + 12 + 5 + 8)
+                .put((byte) 0)
+                .put("drive/motor0".getBytes())
+                .put(TelepathyAPI.Type.DOUBLE.typeKey)
+                .putInt(8)
+                .putDouble(0.25)
+                .array();
+        byte[] stream = new byte[packet.length * 1000];
+        for (int i = 0; i < 1000; i++) {
+            System.arraycopy(packet, 0, stream, i * packet.length, packet.length);
+        }
+        ChannelRegistry channels = new ChannelRegistry();
+        FrameDecoder decoder = new FrameDecoder(frame -> sink = TelepathyAPI.deserializeMessage(frame, false, channels), stream.length);
+
+        // the only object a numeric message can't do without is the message itself; its key is interned
+        long[] baseline = new long[1];
+        Runnable expected = () -> {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < frames; i++) {
+                sink = new TelepathyAPI.Message<Double>("drive/motor0", 0, TelepathyAPI.Type.DOUBLE, 0, i, null);
+            }
+            baseline[0] = threads.getThreadAllocatedBytes(thread) - before;
+        };
+        long[] decoded = new long[1];
+        Runnable decode = () -> {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < frames / 1000; i++) {
+                decoder.feed(stream, 0, stream.length);
+            }
+            decoded[0] = threads.getThreadAllocatedBytes(thread) - before;
+        };
+        long[] accessed = new long[1];
+        Runnable access = () -> {
+            TelepathyAPI.Message<?> message = (TelepathyAPI.Message<?>) sink;
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < frames; i++) {
+                doubleSink = message.getDouble() + message.getLong();
+            }
+            accessed[0] = threads.getThreadAllocatedBytes(thread) - before;
+        };
+        for (int warmup = 0; warmup < 5; warmup++) {
+            expected.run();
+            decode.run();
+            access.run();
+        }
+
+        // a boxed Double, a raw copy or a new key String would each add at least 16 bytes per frame
+        Assert.assertTrue("decode allocated " + decoded[0] / frames + " B/frame, expected ~" + baseline[0] / frames,
+                decoded[0] < baseline[0] + frames * 8L);
+        Assert.assertTrue("primitive accessors allocated " + accessed[0] + " B", accessed[0] < frames);
+    }
+
+    @Test
+    public void test_connectionsAreIndependent() throws Exception {
+        try (ServerSocket first = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ServerSocket second = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI a = new TelepathyAPI("127.0.0.1", first.getLocalPort());
+            TelepathyAPI b = new TelepathyAPI("127.0.0.1", second.getLocalPort());
+            BlockingQueue<TelepathyAPI.Message<?>> fromA = new LinkedBlockingQueue<>();
+            BlockingQueue<TelepathyAPI.Message<?>> fromB = new LinkedBlockingQueue<>();
+            CountDownLatch aDisconnected = new CountDownLatch(1);
+            // listeners go on before connect, so the first packet can't be missed
+            a.addNewMessageListener(fromA::add);
+            a.addDisconnectionListener(aDisconnected::countDown);
+            b.addNewMessageListener(fromB::add);
+            a.connect();
+            b.connect();
+            try (Socket serverA = first.accept(); Socket serverB = second.accept()) {
+                serverA.getOutputStream().write(packet("robotA/battery", 12.5));
+                serverB.getOutputStream().write(packet("robotB/battery", 11.0));
+                serverB.getOutputStream().write(packet("robotB/heading", 90));
+                // the newest packet is only checked once another 0x00 follows it
+                serverA.getOutputStream().write(0);
+                serverB.getOutputStream().write(0);
+
+                TelepathyAPI.Message<?> message = fromA.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(message);
+                Assert.assertEquals("robotA/battery", message.getKey());
+                Assert.assertEquals(0, message.getChannel());
+                Assert.assertEquals(12.5, message.getDouble(), 0);
+                // the servers ignored the HELLO, so the client fell back to the legacy format
+                Assert.assertEquals(1, a.protocolVersion());
+                message = fromB.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(message);
+                Assert.assertEquals("robotB/battery", message.getKey());
+                // each connection has its own channel ids
+                Assert.assertEquals(0, message.getChannel());
+
+                serverA.close();
+                Assert.assertTrue(aDisconnected.await(5, TimeUnit.SECONDS));
+                Assert.assertFalse(a.connected());
+                Assert.assertTrue(b.connected());
+                message = fromB.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(message);
+                Assert.assertEquals("robotB/heading", message.getKey());
+            } finally {
+                a.shutdown();
+                b.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_aStalledListenerOnlyHoldsUpItsOwnConnection() throws Exception {
+        int count = 100_000;
+        try (ServerSocket first = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ServerSocket second = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            // both on the shared event loop
+            TelepathyAPI a = new TelepathyAPI("127.0.0.1", first.getLocalPort());
+            TelepathyAPI b = new TelepathyAPI("127.0.0.1", second.getLocalPort());
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch allFromA = new CountDownLatch(1);
+            double[] next = new double[1];
+            boolean[] outOfOrder = new boolean[1];
+            TelepathyAPI.ListenerHandle handle = a.addNewMessageListener(message -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                // the legacy format lets a 0x00 inside a value start a packet of its own now and then
+                if (!message.getKey().equals("robotA/count")) {
+                    return;
+                }
+                if (message.getDouble() != next[0]++) {
+                    outOfOrder[0] = true;
+                }
+                if (next[0] == count) {
+                    allFromA.countDown();
+                }
+            });
+            BlockingQueue<TelepathyAPI.Message<?>> fromB = new LinkedBlockingQueue<>();
+            b.addNewMessageListener(fromB::add);
+            a.connect();
+            b.connect();
+            try (Socket serverA = first.accept(); Socket serverB = second.accept()) {
+                // far more than the listener's queue holds. blocks once the client stops reading
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            serverA.getOutputStream().write(packet("robotA/count", i));
+                        }
+                        serverA.getOutputStream().write(0);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.setDaemon(true);
+                writer.start();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (handle.stalls() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assert.assertEquals(1, handle.stalls());
+
+                for (int i = 0; i < 100; i++) {
+                    serverB.getOutputStream().write(packet("robotB/count", i));
+                }
+                serverB.getOutputStream().write(0);
+                for (int i = 0; i < 100; i++) {
+                    TelepathyAPI.Message<?> message = fromB.poll(5, TimeUnit.SECONDS);
+                    Assert.assertNotNull("message " + i + " from b", message);
+                    if (!message.getKey().equals("robotB/count")) {
+                        i--;
+                        continue;
+                    }
+                    Assert.assertEquals(i, message.getDouble(), 0);
+                }
+                Assert.assertTrue(a.connected());
+
+                release.countDown();
+                Assert.assertTrue(allFromA.await(30, TimeUnit.SECONDS));
+                Assert.assertFalse(outOfOrder[0]);
+                writer.join(5000);
+                Assert.assertTrue(a.connected());
+            } finally {
+                a.shutdown();
+                b.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_negotiatesV2() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            BlockingQueue<TelepathyAPI.Message<?>> received = new LinkedBlockingQueue<>();
+            telepathy.addNewMessageListener(received::add);
+            telepathy.connect();
+            try (Socket socket = server.accept()) {
+                boolean[] hello = new boolean[1];
+                FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> hello[0] |= type == ProtocolV2.TYPE_HELLO);
+                byte[] buffer = new byte[64];
+                while (!hello[0]) {
+                    int read = socket.getInputStream().read(buffer);
+                    Assert.assertTrue(read > 0);
+                    decoder.feed(buffer, 0, read);
+                }
+                ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(64);
+                writer.message("robot/heading".getBytes(), TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(0).array());
+                socket.getOutputStream().write(ProtocolV2.hello(0));
+                // a value full of zero bytes, which the legacy format can't frame reliably
+                socket.getOutputStream().write(writer.toByteArray());
+
+                TelepathyAPI.Message<?> message = received.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(message);
+                Assert.assertEquals("robot/heading", message.getKey());
+                Assert.assertEquals(0, message.getDouble(), 0);
+                Assert.assertEquals(2, telepathy.protocolVersion());
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_compressedStream() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            telepathy.setCompression(true);
+            BlockingQueue<TelepathyAPI.Message<?>> received = new LinkedBlockingQueue<>();
+            telepathy.addNewMessageListener(received::add);
+            telepathy.connect();
+            try (Socket socket = server.accept()) {
+                int[] offered = {-1};
+                FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> offered[0] = ProtocolV2.getVarint(payload));
+                byte[] buffer = new byte[64];
+                while (offered[0] < 0) {
+                    int read = socket.getInputStream().read(buffer);
+                    Assert.assertTrue(read > 0);
+                    decoder.feed(buffer, 0, read);
+                }
+                Assert.assertEquals(ProtocolV2.FEATURE_DEFLATE, offered[0] & ProtocolV2.FEATURE_DEFLATE);
+                socket.getOutputStream().write(ProtocolV2.hello(ProtocolV2.FEATURE_DEFLATE));
+
+                ProtocolV2.Compressor compressor = new ProtocolV2.Compressor(Deflater.DEFAULT_COMPRESSION);
+                ProtocolV2.FrameWriter frames = new ProtocolV2.FrameWriter(256);
+                ProtocolV2.FrameWriter compressed = new ProtocolV2.FrameWriter(256);
+                for (int i = 0; i < 100; i++) {
+                    frames.message("robot/state".getBytes(), TelepathyAPI.Type.STRING, ("DRIVE_TO_JUNCTION " + i).getBytes());
+                    byte[] bytes = frames.toByteArray();
+                    compressor.compress(bytes, 0, bytes.length, compressed);
+                }
+                compressor.end();
+                byte[] stream = compressed.toByteArray();
+                // split mid frame
+                socket.getOutputStream().write(stream, 0, stream.length / 2);
+                socket.getOutputStream().flush();
+                Thread.sleep(50);
+                socket.getOutputStream().write(stream, stream.length / 2, stream.length - stream.length / 2);
+
+                for (int i = 0; i < 100; i++) {
+                    TelepathyAPI.Message<?> message = received.poll(5, TimeUnit.SECONDS);
+                    Assert.assertNotNull(message);
+                    Assert.assertEquals("DRIVE_TO_JUNCTION " + i, message.getValue());
+                }
+                Assert.assertTrue(telepathy.compressed());
+                Assert.assertEquals(stream.length, telepathy.compressedBytes());
+                // inflatedBytes is updated once the frame carrying the last message is decoded
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                while (telepathy.inflatedBytes() <= stream.length && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                Assert.assertTrue(telepathy.inflatedBytes() > stream.length);
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_heartbeatMeasuresLatencyAndDetectsASilentServer() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            telepathy.setMissedPongLimit(3);
+            CountDownLatch disconnected = new CountDownLatch(1);
+            telepathy.addDisconnectionListener(disconnected::countDown);
+            telepathy.connect();
+            try (Socket socket = server.accept()) {
+                socket.getOutputStream().write(ProtocolV2.hello(ProtocolV2.FEATURE_HEARTBEAT));
+                int[] pongs = new int[1];
+                FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+                    if (type == ProtocolV2.TYPE_PING && pongs[0] < 5) {
+                        pongs[0]++;
+                        try {
+                            socket.getOutputStream().write(ProtocolV2.pong(payload));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+                byte[] buffer = new byte[64];
+                while (pongs[0] < 5) {
+                    int read = socket.getInputStream().read(buffer);
+                    Assert.assertTrue(read > 0);
+                    decoder.feed(buffer, 0, read);
+                }
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                while (telepathy.roundTripNanos() < 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                Assert.assertTrue(telepathy.roundTripNanos() >= 0);
+                Assert.assertTrue(telepathy.roundTripNanos() < TimeUnit.SECONDS.toNanos(1));
+
+                // the socket stays open, but nothing answers the pings any more
+                Assert.assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+                Assert.assertFalse(telepathy.connected());
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_serverTimestampsAreMovedOntoTheLocalClock() throws Exception {
+        // the server's clock runs an hour ahead
+        long offset = TimeUnit.HOURS.toNanos(1);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            BlockingQueue<TelepathyAPI.Message<?>> received = new LinkedBlockingQueue<>();
+            telepathy.addNewMessageListener(received::add);
+            telepathy.connect();
+            try (Socket socket = server.accept()) {
+                socket.getOutputStream().write(ProtocolV2.hello(ProtocolV2.FEATURE_HEARTBEAT | ProtocolV2.FEATURE_TIMESTAMPS));
+                int[] pongs = new int[1];
+                FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+                    if (type == ProtocolV2.TYPE_PING) {
+                        pongs[0]++;
+                        try {
+                            socket.getOutputStream().write(ProtocolV2.pong(payload, System.nanoTime() + offset));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+                byte[] buffer = new byte[64];
+                while (pongs[0] < 3) {
+                    int read = socket.getInputStream().read(buffer);
+                    Assert.assertTrue(read > 0);
+                    decoder.feed(buffer, 0, read);
+                }
+                // sampled 20 ms before it is sent
+                ProtocolV2.FrameWriter writer = new ProtocolV2.FrameWriter(64);
+                writer.message("arm/angle".getBytes(), TelepathyAPI.Type.DOUBLE, ByteBuffer.allocate(8).putDouble(1).array());
+                long sampled = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(20);
+                socket.getOutputStream().write(ProtocolV2.time(sampled + offset));
+                socket.getOutputStream().write(writer.toByteArray());
+
+                TelepathyAPI.Message<?> message = received.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(message);
+                Assert.assertTrue(telepathy.serverTimestamps());
+                Assert.assertTrue(message.hasServerTimestamp());
+                // loopback pongs pin the offset down to well under a millisecond; the margin is for slow machines
+                Assert.assertEquals(sampled, message.getTimestampNanos(), TimeUnit.MILLISECONDS.toNanos(10));
+                Assert.assertTrue(message.getTimestampNanos() <= message.getReceivedNanos());
+                Assert.assertEquals(offset, telepathy.clockOffsetNanos(), TimeUnit.MILLISECONDS.toNanos(10));
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_subscriptionsAreSentOnHelloAndWhenChanged() throws Exception {
+        Subscription watching = new Subscription().key("Arm/Angle").prefix("Drive/", 10).prefix("", 1);
+        Assert.assertEquals(0, watching.intervalMicros("Arm/Angle"));
+        Assert.assertEquals(100000, watching.intervalMicros("Drive/Left"));
+        Assert.assertEquals(1000000, watching.intervalMicros("Battery"));
+        Assert.assertEquals(-1, new Subscription().key("Arm/Angle").intervalMicros("Arm"));
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            // before connecting, so it is sent as soon as the server accepts the feature
+            telepathy.subscribe(watching);
+            telepathy.connect();
+            try (Socket socket = server.accept()) {
+                BlockingQueue<Subscription> received = new LinkedBlockingQueue<>();
+                FrameDecoderV2 decoder = new FrameDecoderV2((type, payload) -> {
+                    if (type == ProtocolV2.TYPE_HELLO) {
+                        Assert.assertTrue((ProtocolV2.getVarint(payload) & ProtocolV2.FEATURE_SUBSCRIBE) != 0);
+                    } else if (type == ProtocolV2.TYPE_SUBSCRIBE) {
+                        received.add(Subscription.fromPayload(payload));
+                    }
+                });
+                Thread reader = new Thread(() -> {
+                    byte[] buffer = new byte[256];
+                    try {
+                        int read;
+                        while ((read = socket.getInputStream().read(buffer)) >= 0) {
+                            decoder.feed(buffer, 0, read);
+                        }
+                    } catch (IOException e) {
+                        // closed by the test
+                    }
+                });
+                reader.start();
+                socket.getOutputStream().write(ProtocolV2.hello(ProtocolV2.FEATURE_SUBSCRIBE));
+
+                Subscription first = received.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(first);
+                Assert.assertEquals(3, first.size());
+                Assert.assertEquals(100000, first.intervalMicros("Drive/Right"));
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                while (!telepathy.subscriptionsSupported() && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+                Assert.assertTrue(telepathy.subscriptionsSupported());
+
+                telepathy.subscribe(new Subscription().key("Battery"));
+                Subscription second = received.poll(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(second);
+                Assert.assertEquals(0, second.intervalMicros("Battery"));
+                Assert.assertEquals(-1, second.intervalMicros("Arm/Angle"));
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_derivedKeysFollowTheirInputs() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            telepathy.deriveKey("Error", "Target - Position");
+            telepathy.deriveKey("Error/Abs", "abs(Error)");
+            try {
+                telepathy.deriveKey("Target", "Error + Position");
+                Assert.fail("accepted a cycle");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            Assert.assertEquals(Set.of("Target", "Position"), telepathy.derivedKeyInputs("Error/Abs"));
+            // a bare key is cut at the first operator
+            telepathy.deriveKey("Typo", "Target-Positoin");
+            BlockingQueue<TelepathyAPI.Message<?>> messages = new LinkedBlockingQueue<>();
+            telepathy.addNewMessageListener(messages::add);
+            telepathy.connect();
+            try (Socket socket = server.accept()) {
+                socket.getOutputStream().write(packet("Target", 10));
+                socket.getOutputStream().write(packet("Position", 12.5));
+                socket.getOutputStream().write(packet("Position", 9));
+                socket.getOutputStream().write(0);
+
+                List<String> received = new ArrayList<>();
+                List<Double> values = new ArrayList<>();
+                for (int i = 0; i < 7; i++) {
+                    TelepathyAPI.Message<?> message = messages.poll(5, TimeUnit.SECONDS);
+                    Assert.assertNotNull(message);
+                    received.add(message.getKey());
+                    values.add(message.getDouble());
+                    Assert.assertEquals((long) message.getDouble(), message.longValue);
+                }
+                // nothing until both inputs have a value, then each change right after its input
+                Assert.assertEquals(List.of("Target", "Position", "Error", "Error/Abs", "Position", "Error", "Error/Abs"), received);
+                Assert.assertEquals(List.of(10.0, 12.5, -2.5, 2.5, 9.0, 1.0, 1.0), values);
+                Assert.assertEquals(Map.of("Typo", List.of("Positoin")), telepathy.missingDerivedInputs());
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void test_metricsAreVisibleOverJmx() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", server.getLocalPort());
+            CountDownLatch received = new CountDownLatch(3);
+            telepathy.addNewMessageListener(message -> received.countDown());
+            telepathy.connect();
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = mbeans.queryNames(new ObjectName("org.ftc9974.thorcore.telepathyclient:type=TelepathyAPI,*"), null)
+                    .stream()
+                    .filter(n -> n.getKeyProperty("name").contains(":" + server.getLocalPort() + " "))
+                    .findFirst()
+                    .orElseThrow(AssertionError::new);
+            try (Socket socket = server.accept()) {
+                socket.getOutputStream().write(packet("robot/x", 1));
+                // a STRING packet with a control character in its value
+                socket.getOutputStream().write(new byte[]{0, 'b', 'a', 'd', 0, 0, 0, 0, 4, 'a', 1, 'b', 'c'});
+                socket.getOutputStream().write(packet("robot/x", 2));
+                socket.getOutputStream().write(packet("robot/y", 3));
+                socket.getOutputStream().write(0);
+                Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+
+                // rates and the rejected count are published once a second
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+                while ((long) mbeans.getAttribute(name, "RejectedFrames") == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                Assert.assertEquals(1L, mbeans.getAttribute(name, "RejectedFrames"));
+                Assert.assertEquals(3L, mbeans.getAttribute(name, "MessagesReceived"));
+                Assert.assertEquals(true, mbeans.getAttribute(name, "Connected"));
+                Assert.assertTrue((long) mbeans.getAttribute(name, "BytesReceived") > 0);
+            } finally {
+                telepathy.shutdown();
+            }
+            Assert.assertFalse(mbeans.isRegistered(name));
+        }
+    }
+
+    @Test
+    public void test_startRetriesWithBackoffAndReconnects() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(20, 160, 1000, TimeUnit.MILLISECONDS);
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long ceiling = Math.min(160, 20L << attempt);
+            long delay = TimeUnit.NANOSECONDS.toMillis(policy.delayNanos(attempt));
+            Assert.assertTrue(attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+        }
+
+        int port;
+        try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = unused.getLocalPort();
+        }
+        TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", port);
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        BlockingQueue<TelepathyAPI.Message<?>> received = new LinkedBlockingQueue<>();
+        telepathy.addConnectionListener(new TelepathyAPI.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                events.add("connected");
+            }
+
+            @Override
+            public void onConnectFailed(IOException cause, long retryDelayMillis) {
+                events.add("failed");
+            }
+        });
+        telepathy.addDisconnectionListener(() -> events.add("disconnected"));
+        telepathy.addNewMessageListener(received::add);
+        try {
+            // nothing is listening yet, so the first attempts are refused
+            telepathy.start(policy);
+            Assert.assertEquals("failed", events.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals("failed", events.poll(5, TimeUnit.SECONDS));
+
+            try (ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+                for (int connection = 0; connection < 2; connection++) {
+                    Socket socket = server.accept();
+                    String event;
+                    while ((event = events.poll(5, TimeUnit.SECONDS)).equals("failed")) {
+                        // attempts that were refused before the server was up
+                    }
+                    Assert.assertEquals("connected", event);
+                    socket.getOutputStream().write(packet("robot/x", connection));
+                    socket.getOutputStream().write(0);
+                    TelepathyAPI.Message<?> message = received.poll(5, TimeUnit.SECONDS);
+                    Assert.assertNotNull(message);
+                    // the same key keeps its channel across reconnects
+                    Assert.assertEquals(0, message.getChannel());
+                    Assert.assertEquals(connection, message.getDouble(), 0);
+                    socket.close();
+                    Assert.assertEquals("disconnected", events.poll(5, TimeUnit.SECONDS));
+                }
+            }
+        } finally {
+            telepathy.shutdown();
+        }
+    }
+
+    private static byte[] packet(String key, double value) {
+        return ByteBuffer.allocate(1 + key.length() + 5 + 8)
+                .put((byte) 0)
+                .put(key.getBytes())
+                .put(TelepathyAPI.Type.DOUBLE.typeKey)
+                .putInt(8)
+                .putDouble(value)
+                .array();
+    }
+
+    private static ByteBuffer frame(String key, TelepathyAPI.Type type, byte[] value) {
+        return ByteBuffer.allocate(key.length() + 5 + value.length)
+                .put(key.getBytes())
+                .put(type.typeKey)
+                .putInt(value.length)
+                .put(value)
+                .flip();
+    }
 }
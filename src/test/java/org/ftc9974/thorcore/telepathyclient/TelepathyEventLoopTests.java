@@ -0,0 +1,41 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TelepathyEventLoopTests {
+
+    @Test
+    public void test_periodicTimerSurvivesATaskThatThrows() throws Exception {
+        TelepathyEventLoop loop = new TelepathyEventLoop("TelepathyEventLoopTests");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch ran = new CountDownLatch(5);
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            TelepathyEventLoop.Timer timer = loop.scheduleAtFixedRate(() -> {
+                ran.countDown();
+                // runs 1 and 3, so nothing throws once the test stops capturing stderr
+                int run = runs.incrementAndGet();
+                if (run < 5 && run % 2 == 1) {
+                    throw new IllegalStateException("run " + run);
+                }
+            }, 1, TimeUnit.MILLISECONDS);
+            Assert.assertTrue("ran " + runs.get() + " times", ran.await(5, TimeUnit.SECONDS));
+            timer.cancel();
+        } finally {
+            System.setErr(err);
+        }
+
+        // and the loop still runs everything else
+        CountDownLatch executed = new CountDownLatch(1);
+        loop.execute(executed::countDown);
+        Assert.assertTrue(executed.await(5, TimeUnit.SECONDS));
+    }
+}
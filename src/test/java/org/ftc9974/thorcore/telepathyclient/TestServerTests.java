@@ -0,0 +1,194 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TestServerTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_replaysARecordedSession() throws Exception {
+        Path session = folder.getRoot().toPath().resolve("session");
+        ChannelRegistry channels = new ChannelRegistry();
+        FlightRecorder recorder = new FlightRecorder(session, channels);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            TelepathyAPI.Message<?> message = message(channels, i);
+            message.timestampNanos = message.receivedNanos = i * 1_000_000L;
+            recorder.offer(message);
+            expected.add(describe(message));
+        }
+        recorder.close();
+
+        Assert.assertEquals(expected, receive(expected.size(),
+                "--protocol", "v2", "--batch", "--delta", "--replay", session.toString(), "--speed", "max"));
+    }
+
+    @Test
+    public void test_replaysABinaryCapture() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("capture.bin");
+        ChannelRegistry channels = new ChannelRegistry();
+        List<String> expected = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(capture, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            HeadlessClient client = new HeadlessClient(HeadlessClient.Format.BINARY, out, 0);
+            for (int i = 0; i < 200; i++) {
+                TelepathyAPI.Message<?> message = message(channels, i);
+                message.timestampNanos = i * 1_000_000L;
+                client.onNewMessage(message);
+                expected.add(describe(message));
+            }
+        }
+
+        Assert.assertEquals(expected, receive(expected.size(),
+                "--protocol", "v2", "--replay", capture.toString(), "--speed", "max"));
+    }
+
+    @Test
+    public void test_mixSetsTheTypesOfTheKeys() throws Exception {
+        // four test messages, then the keys
+        List<String> received = receive(10, "--protocol", "v2", "--keys", "6", "--mix", "int=1,string=2");
+        for (int i = 0; i < 6; i++) {
+            String type = i % 3 == 0 ? "INT" : "STRING";
+            Assert.assertTrue(received.get(4 + i), received.get(4 + i).startsWith(String.format("Key %05d %s ", i, type)));
+        }
+    }
+
+    @Test
+    public void test_timestampsGiveLatencyPercentiles() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serve(socket, "--protocol", "v2", "--keys", "10", "--rate", "200", "--timestamps");
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", socket.getLocalPort());
+            HeadlessClient client = new HeadlessClient(HeadlessClient.Format.CSV, Channels.newChannel(new ByteArrayOutputStream()), 550);
+            client.attach(telepathy);
+            telepathy.connect();
+            try {
+                Assert.assertTrue(client.await(10, TimeUnit.SECONDS));
+            } finally {
+                telepathy.shutdown();
+            }
+            Assert.assertEquals(0, client.close());
+
+            String summary = client.latencySummary();
+            Assert.assertNotNull(summary);
+            Matcher matcher = Pattern.compile("Latency from (\\d+) timestamps: p50 ([\\d.]+)us, p90 ([\\d.]+)us, "
+                    + "p99 ([\\d.]+)us, p99.9 ([\\d.]+)us, max ([\\d.]+)us").matcher(summary);
+            Assert.assertTrue(summary, matcher.matches());
+            // 11 messages a round, one of them the stamp
+            Assert.assertTrue(summary, Long.parseLong(matcher.group(1)) >= 45);
+            double previous = 0;
+            for (int group = 2; group <= 6; group++) {
+                double percentile = Double.parseDouble(matcher.group(group));
+                Assert.assertTrue(summary, percentile >= previous);
+                previous = percentile;
+            }
+            // loopback; anything near a second would be a stamp read wrongly
+            Assert.assertTrue(summary, previous < 500_000);
+        }
+    }
+
+    @Test
+    public void test_corruptionSparesTheTimestamps() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serve(socket, "--protocol", "legacy", "--keys", "20", "--rate", "500", "--timestamps",
+                    "--corrupt", "0.3", "--seed", "9974");
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", socket.getLocalPort());
+            BlockingQueue<TelepathyAPI.Message<?>> stamps = new LinkedBlockingQueue<>();
+            telepathy.addNewMessageListener(message -> {
+                if (message.getKey().equals(TelepathyAPI.SEND_NANOS_KEY)) {
+                    stamps.add(message);
+                }
+            });
+            telepathy.connect();
+            try {
+                for (int i = 0; i < 100; i++) {
+                    TelepathyAPI.Message<?> stamp = stamps.poll(10, TimeUnit.SECONDS);
+                    Assert.assertNotNull("only " + i + " stamps got through", stamp);
+                    long latency = stamp.getReceivedNanos() - stamp.getLong();
+                    Assert.assertTrue("stamp " + i + " gave a latency of " + latency + " ns",
+                            latency >= 0 && latency < TimeUnit.SECONDS.toNanos(1));
+                }
+            } finally {
+                telepathy.shutdown();
+            }
+        }
+    }
+
+    // serves one client of socket in the background, as TestServer with args would
+    private static void serve(ServerSocket socket, String... args) throws ArgumentParserException {
+        Namespace ns = TestServer.parser().parseArgs(args);
+        Thread thread = new Thread(() -> {
+            try {
+                new TestServer(ns).serve(socket, ns, new ByteArrayInputStream(new byte[0]));
+            } catch (IOException | InterruptedException e) {
+                // the client left
+            }
+        }, "TestServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // the first count messages a TestServer with args sends, described, without its timestamps
+    private static List<String> receive(int count, String... args) throws Exception {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serve(socket, args);
+            TelepathyAPI telepathy = new TelepathyAPI("127.0.0.1", socket.getLocalPort());
+            BlockingQueue<TelepathyAPI.Message<?>> messages = new LinkedBlockingQueue<>();
+            telepathy.addNewMessageListener(messages::add);
+            telepathy.connect();
+            List<String> received = new ArrayList<>();
+            try {
+                while (received.size() < count) {
+                    TelepathyAPI.Message<?> message = messages.poll(10, TimeUnit.SECONDS);
+                    Assert.assertNotNull("only got " + received, message);
+                    if (!message.getKey().equals(TelepathyAPI.SEND_NANOS_KEY)) {
+                        received.add(describe(message));
+                    }
+                }
+            } finally {
+                telepathy.shutdown();
+            }
+            return received;
+        }
+    }
+
+    // message i of a recording with a key of every kind of value
+    private static TelepathyAPI.Message<?> message(ChannelRegistry channels, int i) {
+        switch (i % 4) {
+            case 0:
+                return new TelepathyAPI.Message<>("Drive/Speed", channels.intern("Drive/Speed"), TelepathyAPI.Type.DOUBLE, 0, i * 0.25, null);
+            case 1:
+                return new TelepathyAPI.Message<>("Lift/Ticks", channels.intern("Lift/Ticks"), TelepathyAPI.Type.INT, i * 37, i * 37, null);
+            case 2:
+                return new TelepathyAPI.Message<>("Clock", channels.intern("Clock"), TelepathyAPI.Type.LONG, -i * 1_000_000_007L, -i * 1_000_000_007L, null);
+            default:
+                return new TelepathyAPI.Message<>("State", channels.intern("State"), TelepathyAPI.Type.STRING, "step " + i, null);
+        }
+    }
+
+    private static String describe(TelepathyAPI.Message<?> message) {
+        return message.getKey() + " " + message.getType() + " " + message.valueString();
+    }
+}
@@ -0,0 +1,40 @@
+package org.ftc9974.thorcore.telepathyclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeSeriesBufferTests {
+
+    @Test
+    public void test_retainsNewestSamples() {
+        TimeSeriesBuffer buffer = new TimeSeriesBuffer(4, 0);
+        for (int i = 0; i < 10; i++) {
+            buffer.add(i, i * 10);
+        }
+        Assert.assertEquals(4, buffer.size());
+        Assert.assertEquals(10, buffer.written());
+        Assert.assertEquals(6, buffer.first());
+        Assert.assertEquals(90, buffer.latest(), 0);
+
+        long[] timestamps = new long[4];
+        double[] values = new double[4];
+        Assert.assertEquals(4, buffer.read(0, timestamps, values));
+        Assert.assertArrayEquals(new long[]{6, 7, 8, 9}, timestamps);
+        Assert.assertArrayEquals(new double[]{60, 70, 80, 90}, values, 0);
+
+        Assert.assertEquals(2, buffer.read(8, null, values));
+        Assert.assertEquals(80, values[0], 0);
+        Assert.assertEquals(0, buffer.read(10, timestamps, null));
+    }
+
+    @Test
+    public void test_timeWindow() {
+        TimeSeriesBuffer buffer = new TimeSeriesBuffer(100, 5);
+        for (int i = 0; i < 20; i++) {
+            buffer.add(i, i);
+        }
+        // samples 14..19 are within 5ns of the newest
+        Assert.assertEquals(6, buffer.size());
+        Assert.assertEquals(14, buffer.first());
+    }
+}